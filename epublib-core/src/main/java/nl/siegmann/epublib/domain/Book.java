@@ -1,5 +1,7 @@
 package nl.siegmann.epublib.domain;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -293,7 +295,7 @@ import java.util.Map;
  * @author paul
  *
  */
-public class Book implements Serializable {
+public class Book implements Serializable, Closeable {
 	
 	private static final long serialVersionUID = 2068355170895770100L;
 
@@ -596,6 +598,27 @@ public class Book implements Serializable {
         this.packageId = packageId;
     }
 
+    /**
+     * Closes all resources of the book, see Resource.close(), the epub file its lazy resources are read from
+     * and the ResourceStorage that the EpubReader keeps its data in, which deletes its temporary files.
+     * 
+     * A book that was read lazily keeps its epub file open until it is closed.
+     * Its lazy resources can still be read afterwards, the epub file is opened again when needed.
+     * The other resources that the EpubReader read cannot be read anymore.
+     * 
+     * @throws IOException if the epub file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        List<Resource> allResources = new ArrayList<Resource>(resources.getAll());
+        for (Resource resource: new Resource[] {opfResource, ncxResource, navResource}) {
+            if (resource != null) {
+                allResources.add(resource);
+            }
+        }
+        Resources.close(allResources);
+    }
+
     public String getZipPath() {
         return zipPath;
     }
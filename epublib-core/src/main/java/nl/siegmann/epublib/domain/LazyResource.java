@@ -0,0 +1,238 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.siegmann.epublib.util.IOUtil;
+
+/**
+ * A Resource whose data is read from the epub's zip file the first time it is accessed.
+ *
+ * Only the zip entry's name and size are known up front, which is all the zip's central directory provides.
+ * The data that is read is kept in the shared ResourceCache, which may evict it again to make room for the data of other resources.
+ *
+ * @author paul
+ *
+ */
+public class LazyResource extends Resource {
+
+	private static final long serialVersionUID = 5089400472352002866L;
+	private static final Logger log = LoggerFactory.getLogger(LazyResource.class);
+
+	private transient ZipFile zipFile;
+	// shared by the lazy resources of a book, not restored after deserialization
+	private transient SharedZipFile sharedZipFile;
+	private String zipFileName;
+	private String originalHref;
+	private boolean modified = false;
+
+	/**
+	 * Creates a lazy resource for the given zip entry.
+	 *
+	 * The zipFile is used to load the data and must be kept open for as long as this resource is in use.
+	 *
+	 * @param zipFile the epub the entry is part of
+	 * @param zipEntry the entry containing the resource's data
+	 */
+	public LazyResource(ZipFile zipFile, ZipEntry zipEntry) {
+		this(zipFile.getName(), zipEntry.getSize(), zipEntry.getName());
+		this.zipFile = zipFile;
+	}
+
+	/**
+	 * Creates a lazy resource for the entry with the given name in the given shared zip file.
+	 *
+	 * The shared zip file is opened when the data is first loaded and is used by all the resources it is given to.
+	 *
+	 * @param sharedZipFile the epub the entry is part of
+	 * @param size the uncompressed size of the entry
+	 * @param href the name of the zip entry
+	 */
+	public LazyResource(SharedZipFile sharedZipFile, long size, String href) {
+		this(sharedZipFile.getFileName(), size, href);
+		this.sharedZipFile = sharedZipFile;
+	}
+
+	/**
+	 * Creates a lazy resource for the entry with the given name in the given zip file.
+	 *
+	 * The zip file will be opened every time the data is loaded.
+	 * Use LazyResource(SharedZipFile, long, String) for the resources of the same epub to have them share the opened file.
+	 *
+	 * @param zipFileName the file name of the epub
+	 * @param size the uncompressed size of the entry
+	 * @param href the name of the zip entry
+	 */
+	public LazyResource(String zipFileName, long size, String href) {
+		super(zipFileName, size, href);
+		this.zipFileName = zipFileName;
+		this.originalHref = href;
+	}
+
+	/**
+	 * Gets the data from the ResourceCache, loading it from the zip file if it is not in there.
+	 *
+	 * A copy of the cached data is returned, as changes to it would be lost once it is evicted from the cache.
+	 * Use setData to change the data.
+	 */
+	@Override
+	public synchronized byte[] getData() throws IOException {
+		if (isLoaded()) {
+			return super.getData();
+		}
+		byte[] result = getCachedData();
+		if (result == null) {
+			result = readData();
+			cacheData(result);
+		}
+		return result.clone();
+	}
+
+	/**
+	 * Streams the data straight from the zip file if it is not in memory, without caching it.
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (isLoaded()) {
+			return super.getInputStream();
+		}
+		byte[] cachedData = getCachedData();
+		if (cachedData != null) {
+			return new ByteArrayInputStream(cachedData);
+		}
+		if (zipFile != null) {
+			return getEntryInputStream(zipFile);
+		}
+		if (sharedZipFile != null) {
+			return sharedZipFile.getInputStream(originalHref);
+		}
+		final ZipFile zip = new ZipFile(zipFileName);
+		try {
+			return new FilterInputStream(getEntryInputStream(zip)) {
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						zip.close();
+					}
+				}
+			};
+		} catch (IOException e) {
+			zip.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Loads the data from the given zip file into the ResourceCache if it is not in memory yet.
+	 *
+	 * Used to load many resources from the same opened epub file, instead of opening the epub file for each one of them.
+	 *
+	 * @param zip the opened epub file this resource is part of
+	 * @throws IOException
+	 */
+	public synchronized void preload(ZipFile zip) throws IOException {
+		if (! isInitialized()) {
+			cacheData(readData(zip));
+		}
+	}
+
+	/**
+	 * Sets the data of the Resource, after which the resource no longer matches the zip entry it was read from.
+	 */
+	@Override
+	public synchronized void setData(byte[] data) {
+		super.setData(data);
+		this.modified = true;
+	}
+
+	/**
+	 * Whether the data was changed through setData since the resource was read.
+	 *
+	 * The data of an unmodified resource is still the same as that of its zip entry,
+	 * which allows the EpubWriter to copy the compressed entry as is.
+	 *
+	 * @return whether the data was changed since the resource was read.
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	private byte[] readData() throws IOException {
+		if (zipFile != null) {
+			return readData(zipFile);
+		}
+		if (sharedZipFile != null) {
+			ZipFile zip = sharedZipFile.acquire();
+			try {
+				return readData(zip);
+			} finally {
+				sharedZipFile.release();
+			}
+		}
+		ZipFile zip = new ZipFile(zipFileName);
+		try {
+			return readData(zip);
+		} finally {
+			zip.close();
+		}
+	}
+
+	private byte[] readData(ZipFile zip) throws IOException {
+		log.debug("Initializing lazy resource " + zipFileName + "#" + originalHref);
+		InputStream in = getEntryInputStream(zip);
+		try {
+			return IOUtil.toByteArray(in, getSize());
+		} finally {
+			in.close();
+		}
+	}
+
+	private InputStream getEntryInputStream(ZipFile zip) throws IOException {
+		ZipEntry zipEntry = zip.getEntry(originalHref);
+		if (zipEntry == null) {
+			throw new IOException("Could not find entry " + originalHref + " in " + zipFileName);
+		}
+		return zip.getInputStream(zipEntry);
+	}
+
+	/**
+	 * The file name of the epub this resource is read from.
+	 *
+	 * @return the file name of the epub this resource is read from.
+	 */
+	public String getZipFileName() {
+		return zipFileName;
+	}
+
+	/**
+	 * The epub file this resource shares with the other resources of its book.
+	 *
+	 * It is closed by Book.close().
+	 *
+	 * @return the epub file this resource shares with the other resources of its book, null if it does not share one.
+	 */
+	public SharedZipFile getSharedZipFile() {
+		return sharedZipFile;
+	}
+
+	/**
+	 * The name of the zip entry this resource is read from.
+	 *
+	 * Unlike the href this is the full path within the epub file.
+	 *
+	 * @return the name of the zip entry this resource is read from.
+	 */
+	public String getOriginalHref() {
+		return originalHref;
+	}
+}
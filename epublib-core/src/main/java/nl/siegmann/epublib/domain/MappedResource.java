@@ -0,0 +1,237 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import nl.siegmann.epublib.util.ByteBufferInputStream;
+import nl.siegmann.epublib.util.IOUtil;
+import nl.siegmann.epublib.util.zip.ZipDirectory;
+import nl.siegmann.epublib.util.zip.ZipDirectoryEntry;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * A Resource that reads its data from a memory-mapped region of the epub file.
+ *
+ * Entries that are stored uncompressed are served straight from the mapped file, without copying them onto the heap.
+ * Compressed entries are inflated from the mapped file every time their data is requested.
+ * The data is not kept in memory by the resource itself, the operating system's page cache takes care of that.
+ * Entries of more than 2GB cannot be mapped, their data is streamed from the file instead.
+ * The resources of a book read by EpubReader.readEpubMapped share one MappedZipFile, which maps the epub file once.
+ *
+ * @author paul
+ *
+ */
+public class MappedResource extends LazyResource {
+
+	private static final long serialVersionUID = -3546622806400950547L;
+
+	private ZipDirectoryEntry zipEntry;
+	// shared by the mapped resources of a book, after deserialization the resource maps the file on its own
+	private transient MappedZipFile mappedZipFile;
+	private transient ByteBuffer mappedData;
+
+	/**
+	 * Creates a resource for the given entry of the given zip file, which it maps on its own.
+	 *
+	 * Use MappedResource(MappedZipFile, ZipDirectoryEntry) for the resources of the same epub to have them share the mapping.
+	 *
+	 * @param zipFile the epub file
+	 * @param zipEntry the central directory entry of the resource
+	 */
+	public MappedResource(File zipFile, ZipDirectoryEntry zipEntry) {
+		this(new MappedZipFile(zipFile), zipEntry);
+	}
+
+	/**
+	 * Creates a resource for the given entry of the given mapped zip file.
+	 *
+	 * @param mappedZipFile the epub file, shared by the resources of the same epub
+	 * @param zipEntry the central directory entry of the resource
+	 */
+	public MappedResource(MappedZipFile mappedZipFile, ZipDirectoryEntry zipEntry) {
+		super(mappedZipFile.getFile().getPath(), zipEntry.getSize(), zipEntry.getName());
+		this.mappedZipFile = mappedZipFile;
+		this.zipEntry = zipEntry;
+	}
+
+	/**
+	 * A copy of the resource's data.
+	 *
+	 * Every call reads the data from the mapped file again, use getByteBuffer() or getInputStream() to avoid the copy.
+	 */
+	@Override
+	public byte[] getData() throws IOException {
+		if (isLoaded()) {
+			return super.getData();
+		}
+		if (zipEntry.isStored() && isMappable()) {
+			ByteBuffer buffer = getMappedData();
+			byte[] result = new byte[buffer.remaining()];
+			buffer.get(result);
+			return result;
+		}
+		InputStream in = getInputStream();
+		try {
+			return IOUtil.toByteArray(in, zipEntry.getSize());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * For uncompressed entries a read-only view of the mapped file, without any copying.
+	 */
+	@Override
+	public ByteBuffer getByteBuffer() throws IOException {
+		if (isLoaded() || ! zipEntry.isStored() || ! isMappable()) {
+			return super.getByteBuffer();
+		}
+		return getMappedData();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (isLoaded()) {
+			return super.getInputStream();
+		}
+		InputStream in = isMappable() ? new ByteBufferInputStream(getMappedData()) : getFileInputStream();
+		if (zipEntry.isStored()) {
+			return in;
+		}
+		// the inflater needs an extra dummy byte at the end of the raw deflate data
+		in = new SequenceInputStream(in, new ByteArrayInputStream(new byte[1]));
+		return new InflaterInputStream(in, new Inflater(true), IOUtil.IO_COPY_BUFFER_SIZE) {
+
+			@Override
+			public void close() throws IOException {
+				inf.end();
+				super.close();
+			}
+		};
+	}
+
+	@Override
+	public ReadableByteChannel getReadableByteChannel() throws IOException {
+		if (isLoaded() || ! zipEntry.isStored() || ! isMappable()) {
+			return super.getReadableByteChannel();
+		}
+		return new ByteBufferChannel(getMappedData());
+	}
+
+	/**
+	 * Drops this resource's reference to its mapped data.
+	 *
+	 * This does not unmap the file, which java cannot do explicitly. The mapping is released by the garbage collector
+	 * once the MappedZipFile and the buffers that were handed out are no longer referenced.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		synchronized (this) {
+			mappedData = null;
+		}
+	}
+
+	/**
+	 * The central directory entry of this resource.
+	 *
+	 * @return the central directory entry of this resource.
+	 */
+	public ZipDirectoryEntry getZipEntry() {
+		return zipEntry;
+	}
+
+	/**
+	 * The mapped epub file this resource's data is read from.
+	 *
+	 * @return the mapped epub file this resource's data is read from.
+	 */
+	public synchronized MappedZipFile getMappedZipFile() {
+		if (mappedZipFile == null) {
+			mappedZipFile = new MappedZipFile(new File(getZipFileName()));
+		}
+		return mappedZipFile;
+	}
+
+	/**
+	 * Gets the entry's (compressed) data from the mapped file on first use.
+	 *
+	 * @return a read-only duplicate of the mapped data.
+	 * @throws IOException
+	 */
+	private synchronized ByteBuffer getMappedData() throws IOException {
+		if (mappedData == null) {
+			mappedData = getMappedZipFile().getEntryData(zipEntry);
+		}
+		return mappedData.duplicate();
+	}
+
+	/**
+	 * Whether the entry's data is small enough to be mapped into a single ByteBuffer.
+	 */
+	private boolean isMappable() {
+		return zipEntry.getCompressedSize() <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Opens a stream reading the entry's (compressed) data straight from the file, for entries that cannot be mapped.
+	 */
+	private InputStream getFileInputStream() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(getZipFileName(), "r");
+		try {
+			file.seek(ZipDirectory.getDataOffset(zipEntry, file));
+			InputStream in = new BufferedInputStream(Channels.newInputStream(file.getChannel()), IOUtil.IO_COPY_BUFFER_SIZE);
+			return new BoundedInputStream(in, zipEntry.getCompressedSize());
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * A ReadableByteChannel over the remaining bytes of a ByteBuffer.
+	 */
+	private static class ByteBufferChannel implements ReadableByteChannel {
+
+		private ByteBuffer buffer;
+		private boolean open = true;
+
+		public ByteBufferChannel(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(ByteBuffer target) {
+			if (! buffer.hasRemaining()) {
+				return -1;
+			}
+			int readSize = Math.min(target.remaining(), buffer.remaining());
+			ByteBuffer chunk = buffer.slice();
+			chunk.limit(readSize);
+			target.put(chunk);
+			buffer.position(buffer.position() + readSize);
+			return readSize;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import nl.siegmann.epublib.util.zip.ZipDirectory;
+import nl.siegmann.epublib.util.zip.ZipDirectoryEntry;
+
+/**
+ * An epub file that is memory-mapped once for all the MappedResources of a book, instead of once for each of them.
+ *
+ * The file is mapped when the data of one of its entries is first needed. Files of more than 2GB cannot be mapped
+ * into a single ByteBuffer, for those every entry is mapped on its own.
+ * Java cannot unmap a file explicitly, the mapping is released by the garbage collector once neither this nor any
+ * of the ByteBuffers it handed out is referenced anymore.
+ * Thread-safe.
+ *
+ * @see MappedResource
+ *
+ * @author paul
+ *
+ */
+public class MappedZipFile {
+
+	private final File file;
+	private ByteBuffer mappedFile;
+
+	/**
+	 * @param file the epub file
+	 */
+	public MappedZipFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the (compressed) data of the given entry from the mapped file.
+	 *
+	 * @param zipEntry an entry of this zip file of at most 2GB
+	 * @return a read-only buffer with the entry's data.
+	 * @throws IOException
+	 */
+	ByteBuffer getEntryData(ZipDirectoryEntry zipEntry) throws IOException {
+		ByteBuffer zipData = getMappedFile();
+		if (zipData == null) {
+			return mapEntryData(zipEntry);
+		}
+		long dataOffset = ZipDirectory.getDataOffset(zipEntry, zipData);
+		if (dataOffset + zipEntry.getCompressedSize() > zipData.limit()) {
+			throw new IOException("Data of zip entry " + zipEntry.getName() + " lies beyond the end of " + file);
+		}
+		ByteBuffer result = zipData.duplicate();
+		result.position((int) dataOffset);
+		result.limit((int) (dataOffset + zipEntry.getCompressedSize()));
+		return result.slice();
+	}
+
+	/**
+	 * Maps the whole file on first use.
+	 *
+	 * @return the mapped file, null if the file is too large to be mapped as a whole.
+	 */
+	private synchronized ByteBuffer getMappedFile() throws IOException {
+		if (mappedFile == null) {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				if (in.length() > Integer.MAX_VALUE) {
+					return null;
+				}
+				mappedFile = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length()).asReadOnlyBuffer();
+			} finally {
+				in.close();
+			}
+		}
+		return mappedFile;
+	}
+
+	private ByteBuffer mapEntryData(ZipDirectoryEntry zipEntry) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long dataOffset = ZipDirectory.getDataOffset(zipEntry, in);
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, dataOffset, zipEntry.getCompressedSize()).asReadOnlyBuffer();
+		} finally {
+			in.close();
+		}
+	}
+}
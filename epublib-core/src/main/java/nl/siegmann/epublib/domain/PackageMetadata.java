@@ -0,0 +1,70 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.Serializable;
+
+import nl.siegmann.epublib.util.StringUtil;
+
+/**
+ * The metadata of an epub as read from its package document, without the rest of the book.
+ *
+ * @see nl.siegmann.epublib.epub.EpubReader#readMetadata(String)
+ *
+ * @author paul
+ *
+ */
+public class PackageMetadata implements Serializable {
+
+	private static final long serialVersionUID = -4960226914452052513L;
+
+	private String packageHref;
+	private Version version = Version.V2;
+	private Metadata metadata;
+	private String coverImageHref;
+
+	public PackageMetadata(String packageHref, Version version, Metadata metadata, String coverImageHref) {
+		this.packageHref = packageHref;
+		this.version = version;
+		this.metadata = metadata;
+		this.coverImageHref = coverImageHref;
+	}
+
+	/**
+	 * The location of the package document within the epub file.
+	 *
+	 * Example: OEBPS/content.opf
+	 *
+	 * @return the location of the package document within the epub file.
+	 */
+	public String getPackageHref() {
+		return packageHref;
+	}
+
+	public Version getVersion() {
+		return version;
+	}
+
+	/**
+	 * The book's metadata (titles, authors, identifiers, etc)
+	 *
+	 * @return the book's metadata
+	 */
+	public Metadata getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * The href of the cover image, relative to the package document like all hrefs in the package document.
+	 *
+	 * @return null if no cover image was found or if it was not looked for.
+	 */
+	public String getCoverImageHref() {
+		return coverImageHref;
+	}
+
+	public String toString() {
+		return StringUtil.toString("packageHref", packageHref,
+				"version", version,
+				"title", metadata.getFirstTitle() == null ? null : metadata.getFirstTitle().getValue(),
+				"coverImageHref", coverImageHref);
+	}
+}
@@ -1,6 +1,12 @@
 package nl.siegmann.epublib.domain;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -36,6 +42,15 @@ public class Resource implements Serializable {
 		
 	private String fileName;
 	private long cachedSize;
+
+	// the data as stored by a ResourceStorage, used instead of data
+	private transient ResourceContent content;
+
+	// identifies this resource's data in the ResourceCache
+	private transient Object cacheKey;
+
+	// the Resources and Spines this resource was added to, they are told when its id, href or mediatype changes
+	private transient List<ResourceOwner> owners;
 	
 	/**
 	 * Creates an empty Resource with the given href.
@@ -109,13 +124,12 @@ public class Resource implements Serializable {
 	}
 
     /**
-     * Creates a Resource that tries to load the data, but falls back to lazy loading.
+     * Creates a Resource with the data from the given InputStream, of which the size is known ahead.
      *
-     * If the size of the resource is known ahead of time we can use that to allocate
-     * a matching byte[]. If this succeeds we can safely load the data.
+     * The data is kept by the storage shared by all resources that are not given a storage of their own,
+     * use Resource(InputStream, String, ResourceStorage, long) to give the resource the storage of its book.
      *
-     * If it fails we leave the data null for now and it will be lazy-loaded when
-     * it is accessed.
+     * @see ResourceStorage#getDefaultStorage()
      *
      * @param in
      * @param fileName
@@ -124,11 +138,28 @@ public class Resource implements Serializable {
      * @throws IOException
      */
     public Resource(InputStream in, String fileName, int length, String href) throws IOException {
-        this(  null, IOUtil.toByteArray(in, length), href, MediatypeService.determineMediaType(href));
+        this(in, href, ResourceStorage.getDefaultStorage(), length);
         this.fileName = fileName;
         this.cachedSize = length;
     }
 
+	/**
+	 * Creates a resource with the data from the given InputStream at the specified href, stored by the given storage.
+	 * The MediaType will be determined based on the href extension.
+	 * 
+	 * The storage keeps the data on the heap or in a temporary file, the resource gives access to it either way.
+	 * 
+	 * @param in The Resource's contents
+	 * @param href The location of the resource within the epub. Example: "cover.jpg".
+	 * @param storage the storage that keeps the data
+	 * @param size the size of the data if it is known ahead, -1 otherwise
+	 * @throws IOException
+	 */
+	public Resource(InputStream in, String href, ResourceStorage storage, long size) throws IOException {
+		this(null, null, href, MediatypeService.determineMediaType(href));
+		this.content = storage.store(in, size);
+	}
+
 	/**
 	 * Creates a Lazy resource, by not actually loading the data for this entry.
 	 * 
@@ -179,11 +210,23 @@ public class Resource implements Serializable {
 	/**
 	 * Gets the contents of the Resource as an InputStream.
 	 * 
+	 * Data that is not in memory is streamed from where it is stored, without reading it into a byte[] first.
+	 * 
 	 * @return The contents of the Resource.
 	 * 
 	 * @throws IOException
 	 */
 	public InputStream getInputStream() throws IOException {
+		if (data == null && content != null) {
+			return content.getInputStream();
+		}
+		if (data == null && fileName != null) {
+			byte[] cachedData = getCachedData();
+			if (cachedData != null) {
+				return new ByteArrayInputStream(cachedData);
+			}
+			return new BufferedInputStream(new FileInputStream(fileName), IOUtil.IO_COPY_BUFFER_SIZE);
+		}
 		return new ByteArrayInputStream(getData());
 	}
 
@@ -194,31 +237,117 @@ public class Resource implements Serializable {
 	 * it will be loaded into memory at this point.
 	 *  This included opening the zip file, so expect a first load to be slow.
 	 * 
+	 * Data that a ResourceStorage keeps off the heap or in a temporary file is copied into a new array on every call,
+	 * use getInputStream() to read it without the copy.
+	 * 
 	 * @return The contents of the resource
 	 */
 	public byte[] getData() throws IOException {
 		
+		if ( data == null && content != null ) {
+			return content.getData();
+		}
+		
 		if ( data == null ) {
-            FileInputStream inputStream = new FileInputStream(fileName);
-            byte[] data = IOUtil.toByteArray(inputStream);
-            inputStream.close();
-            return data;
+			byte[] result = getCachedData();
+			if ( result == null ) {
+				FileInputStream inputStream = new FileInputStream(fileName);
+				try {
+					result = IOUtil.toByteArray(inputStream, inputStream.getChannel().size());
+				} finally {
+					inputStream.close();
+				}
+				cacheData(result);
+			}
+			// the cached array is not handed out, changes to it would be lost once it is evicted
+			return result.clone();
 		}
 		
 		return data;
 	}
+
+	/**
+	 * Gets the data of this resource from the ResourceCache.
+	 * 
+	 * @return the cached data, null if it is not in the cache.
+	 */
+	byte[] getCachedData() {
+		return ResourceCache.getInstance().get(getCacheKey());
+	}
+
+	/**
+	 * Puts the data that was loaded for this resource in the ResourceCache.
+	 * 
+	 * @param data
+	 */
+	void cacheData(byte[] data) {
+		ResourceCache.getInstance().put(getCacheKey(), data);
+	}
+
+	private synchronized Object getCacheKey() {
+		if (cacheKey == null) {
+			cacheKey = new Object();
+		}
+		return cacheKey;
+	}
+
+	private synchronized void uncacheData() {
+		if (cacheKey != null) {
+			ResourceCache.getInstance().remove(cacheKey);
+		}
+	}
 	
+	/**
+	 * The contents of the resource as a read-only ByteBuffer.
+	 * 
+	 * Resources that are backed by a memory-mapped file return a view of the mapped file,
+	 * all others wrap the result of getData().
+	 * 
+	 * @return The contents of the resource
+	 * @throws IOException
+	 */
+	public ByteBuffer getByteBuffer() throws IOException {
+		return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets the contents of the Resource as a ReadableByteChannel.
+	 * 
+	 * @return The contents of the Resource.
+	 * @throws IOException
+	 */
+	public ReadableByteChannel getReadableByteChannel() throws IOException {
+		return Channels.newChannel(getInputStream());
+	}
+
 	/**
 	 * Tells this resource to release its cached data.
 	 * 
-	 * If this resource was not lazy-loaded, this is a no-op.
+	 * Data that a ResourceStorage keeps on the heap, off the heap or in a temporary file is given back to the storage,
+	 * after which it cannot be read anymore unless this resource was lazy-loaded.
+	 * Lazy-loaded resources load their data again when needed.
+	 * Data that was given to this resource as a byte[] is kept.
 	 */
 	public void close() {
+		if ( this.content != null ) {
+			this.content.release();
+		}
 		if ( this.fileName != null ) {
+			this.content = null;
 			this.data = null;
+			uncacheData();
 		}
 	}
 
+	/**
+	 * The storage that keeps the data of this resource.
+	 * 
+	 * @return the storage that keeps the data of this resource, null if its data is not kept by a storage.
+	 */
+	ResourceStorage getStorage() {
+		return content == null ? null : content.getStorage();
+	}
+
 	/**
 	 * Sets the data of the Resource.
 	 * If the data is a of a different type then the original data then make sure to change the MediaType.
@@ -226,16 +355,37 @@ public class Resource implements Serializable {
 	 * @param data
 	 */
 	public void setData(byte[] data) {
+		if (content != null) {
+			content.release();
+			content = null;
+		}
+		uncacheData();
 		this.data = data;
 	}
 	
 	/**
 	 * Returns if the data for this resource has been loaded into memory.
 	 * 
+	 * Data that was loaded lazily counts as loaded for as long as it is in the ResourceCache.
+	 * 
 	 * @return true if data was loaded.
 	 */
 	public boolean isInitialized() {
-		return data != null;
+		if (isLoaded()) {
+			return true;
+		}
+		synchronized (this) {
+			return cacheKey != null && ResourceCache.getInstance().contains(cacheKey);
+		}
+	}
+
+	/**
+	 * Whether the resource holds its data itself, as opposed to having it in the ResourceCache or not at all.
+	 * 
+	 * @return whether the resource holds its data itself.
+	 */
+	boolean isLoaded() {
+		return data != null || content != null;
 	}
 
 	/**
@@ -248,6 +398,10 @@ public class Resource implements Serializable {
 			return data.length;
 		}
 		
+		if ( content != null ) {
+			return content.getSize();
+		}
+		
 		return cachedSize;
 	}
 	
@@ -266,7 +420,50 @@ public class Resource implements Serializable {
 	 * @param id
 	 */
 	public void setId(String id) {
+		String oldId = this.id;
 		this.id = id;
+		if (owners != null && ! StringUtil.equals(oldId, id)) {
+			for (ResourceOwner owner: owners) {
+				owner.resourceIdChanged(this, oldId);
+			}
+		}
+	}
+
+	/**
+	 * Registers the given owner, which is told when the id, href or mediatype of this resource changes.
+	 *
+	 * @param owner
+	 */
+	void addOwner(ResourceOwner owner) {
+		if (owners == null) {
+			owners = new ArrayList<ResourceOwner>(1);
+		} else {
+			for (ResourceOwner existingOwner: owners) {
+				if (existingOwner == owner) {
+					return;
+				}
+			}
+		}
+		owners.add(owner);
+	}
+
+	/**
+	 * Unregisters the given owner.
+	 *
+	 * @param owner
+	 */
+	void removeOwner(ResourceOwner owner) {
+		if (owners == null) {
+			return;
+		}
+		for (Iterator<ResourceOwner> iter = owners.iterator(); iter.hasNext();) {
+			if (iter.next() == owner) {
+				iter.remove();
+			}
+		}
+		if (owners.isEmpty()) {
+			owners = null;
+		}
 	}
 	
 	/**
@@ -298,7 +495,13 @@ public class Resource implements Serializable {
 	 * @param href
 	 */
 	public void setHref(String href) {
+		String oldHref = this.href;
 		this.href = href;
+		if (owners != null && ! StringUtil.equals(oldHref, href)) {
+			for (ResourceOwner owner: owners) {
+				owner.resourceHrefChanged(this, oldHref);
+			}
+		}
 	}
 
 	/**
@@ -324,15 +527,40 @@ public class Resource implements Serializable {
 	 * Gets the contents of the Resource as Reader.
 	 * 
 	 * Does all sorts of smart things (courtesy of apache commons io XMLStreamREader) to handle encodings, byte order markers, etc.
+	 * Reads from getInputStream, so data that is not in memory is streamed as well.
 	 * 
 	 * @param resource
 	 * @return
 	 * @throws IOException
 	 */
 	public Reader getReader() throws IOException {
-		return new XmlStreamReader(new ByteArrayInputStream(getData()), getInputEncoding());
+		return new XmlStreamReader(getInputStream(), getInputEncoding());
 	}
 	
+	/**
+	 * Whether the data is kept in a temporary file by a ResourceStorage, instead of on the heap.
+	 * 
+	 * @return whether the data is kept in a temporary file.
+	 */
+	public boolean isStoredInFile() {
+		return data == null && content != null && ! content.isInMemory();
+	}
+
+	/**
+	 * Data that is kept by a ResourceStorage is serialized like data on the heap.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		byte[] originalData = data;
+		if (data == null && content != null) {
+			data = content.getData();
+		}
+		try {
+			out.defaultWriteObject();
+		} finally {
+			data = originalData;
+		}
+	}
+
 	/**
 	 * Gets the hashCode of the Resource's href.
 	 * 
@@ -362,7 +590,13 @@ public class Resource implements Serializable {
 	}
 	
 	public void setMediaTypeProperty(MediaTypeProperty mediaTypeProperty) {
+		MediaTypeProperty oldMediaTypeProperty = this.mediaTypeProperty;
 		this.mediaTypeProperty = mediaTypeProperty;
+		if (owners != null && oldMediaTypeProperty != mediaTypeProperty) {
+			for (ResourceOwner owner: owners) {
+				owner.resourceMediaTypeChanged(this, oldMediaTypeProperty);
+			}
+		}
 	}
 
 	public void setTitle(String title) {
@@ -0,0 +1,213 @@
+package nl.siegmann.epublib.domain;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nl.siegmann.epublib.util.StringUtil;
+
+/**
+ * Keeps the data of lazily loaded resources in memory, up to a byte budget that is shared by all books.
+ *
+ * When the budget is exceeded the least recently used data is evicted, after which it is loaded again
+ * from the epub file on the next access. Data larger than the maxEntrySize is not cached at all,
+ * so that one large image or video cannot push out all the chapters that are being read.
+ *
+ * The resources use the shared instance returned by getInstance(). Thread-safe.
+ *
+ * @author paul
+ *
+ */
+public class ResourceCache {
+
+	public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+	private static final ResourceCache instance = new ResourceCache(DEFAULT_MAX_SIZE);
+
+	// in access order, the least recently used entry first
+	private final Map<Object, byte[]> entries = new LinkedHashMap<Object, byte[]>(16, 0.75f, true);
+	private long maxSize;
+	private long maxEntrySize;
+	private long size = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * Creates a cache that caches entries of up to a quarter of the maxSize.
+	 *
+	 * @param maxSize the maximum number of bytes of data in the cache
+	 */
+	public ResourceCache(long maxSize) {
+		this(maxSize, maxSize / 4);
+	}
+
+	/**
+	 * @param maxSize the maximum number of bytes of data in the cache
+	 * @param maxEntrySize the maximum size of data that is cached
+	 */
+	public ResourceCache(long maxSize, long maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	/**
+	 * The cache used by the resources.
+	 *
+	 * @return the cache used by the resources.
+	 */
+	public static ResourceCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Gets the cached data, marking it as most recently used.
+	 *
+	 * @param key
+	 * @return the cached data, null if it is not in the cache.
+	 */
+	public synchronized byte[] get(Object key) {
+		byte[] result = entries.get(key);
+		if (result == null) {
+			missCount++;
+		} else {
+			hitCount++;
+		}
+		return result;
+	}
+
+	/**
+	 * Whether data is cached for the given key, without counting this as a use.
+	 *
+	 * @param key
+	 * @return whether data is cached for the given key.
+	 */
+	public synchronized boolean contains(Object key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Caches the given data, evicting the least recently used data if needed.
+	 *
+	 * Data larger than the maxEntrySize is not cached.
+	 *
+	 * @param key
+	 * @param data
+	 */
+	public synchronized void put(Object key, byte[] data) {
+		remove(key);
+		if (data.length > maxEntrySize || data.length > maxSize) {
+			return;
+		}
+		entries.put(key, data);
+		size += data.length;
+		evict();
+	}
+
+	/**
+	 * Removes the data for the given key from the cache.
+	 *
+	 * @param key
+	 */
+	public synchronized void remove(Object key) {
+		byte[] data = entries.remove(key);
+		if (data != null) {
+			size -= data.length;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	private void evict() {
+		for (Iterator<byte[]> iter = entries.values().iterator(); size > maxSize && iter.hasNext();) {
+			size -= iter.next().length;
+			iter.remove();
+			evictionCount++;
+		}
+	}
+
+	/**
+	 * The number of bytes of data in the cache.
+	 *
+	 * @return the number of bytes of data in the cache.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of data in the cache, evicting data if the cache is now too large.
+	 *
+	 * @param maxSize
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	public synchronized long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * Sets the maximum size of data that is cached. Data that is cached already stays in the cache.
+	 *
+	 * @param maxEntrySize
+	 */
+	public synchronized void setMaxEntrySize(long maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	/**
+	 * The number of times get found the data in the cache.
+	 *
+	 * @return the number of times get found the data in the cache.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * The number of times get did not find the data in the cache.
+	 *
+	 * @return the number of times get did not find the data in the cache.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * The number of times data was removed from the cache to make room for other data.
+	 *
+	 * @return the number of times data was removed from the cache to make room for other data.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public synchronized void resetCounts() {
+		hitCount = 0;
+		missCount = 0;
+		evictionCount = 0;
+	}
+
+	public synchronized String toString() {
+		return StringUtil.toString("size", size,
+				"maxSize", maxSize,
+				"entries", entries.size(),
+				"hits", hitCount,
+				"misses", missCount,
+				"evictions", evictionCount);
+	}
+}
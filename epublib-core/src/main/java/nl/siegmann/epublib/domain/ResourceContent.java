@@ -0,0 +1,75 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The data of a resource as stored by a ResourceStorage, either on the heap, off the heap or in a temporary file.
+ *
+ * @see ResourceStorage
+ *
+ * @author paul
+ *
+ */
+public abstract class ResourceContent {
+
+	ResourceContent() {
+	}
+
+	/**
+	 * The size of the data in bytes.
+	 *
+	 * @return the size of the data in bytes.
+	 */
+	public abstract long getSize();
+
+	/**
+	 * Whether the data is kept on the heap.
+	 *
+	 * @return whether the data is kept on the heap, false if it is stored in a temporary file.
+	 */
+	public abstract boolean isInMemory();
+
+	/**
+	 * Whether the data is kept in memory outside of the heap.
+	 *
+	 * Off-heap data is released by Resource.close().
+	 *
+	 * @return whether the data is kept in memory outside of the heap.
+	 */
+	public boolean isOffHeap() {
+		return false;
+	}
+
+	/**
+	 * Opens a stream reading the data.
+	 *
+	 * Data that is stored in a temporary file is read from that file without loading it into memory.
+	 *
+	 * @return a stream reading the data.
+	 * @throws IOException
+	 */
+	public abstract InputStream getInputStream() throws IOException;
+
+	/**
+	 * The data as a byte[].
+	 *
+	 * Data that is stored in a temporary file is read into a new array on every call.
+	 *
+	 * @return the data.
+	 * @throws IOException
+	 */
+	public abstract byte[] getData() throws IOException;
+
+	/**
+	 * Gives the heap space or the temporary file back to the storage.
+	 *
+	 * The data cannot be read anymore afterwards.
+	 */
+	public abstract void release();
+
+	/**
+	 * The storage that keeps the data.
+	 */
+	abstract ResourceStorage getStorage();
+}
@@ -0,0 +1,36 @@
+package nl.siegmann.epublib.domain;
+
+/**
+ * Is told by the resources it was registered with through Resource.addOwner when their id, href or mediatype changes.
+ *
+ * Used by the collections of resources that index them by these properties, like Resources and Spine.
+ *
+ * @author paul
+ *
+ */
+interface ResourceOwner {
+
+	/**
+	 * Called after the id of the resource has changed.
+	 *
+	 * @param resource
+	 * @param oldId
+	 */
+	void resourceIdChanged(Resource resource, String oldId);
+
+	/**
+	 * Called after the href of the resource has changed.
+	 *
+	 * @param resource
+	 * @param oldHref
+	 */
+	void resourceHrefChanged(Resource resource, String oldHref);
+
+	/**
+	 * Called after the mediatype of the resource has changed.
+	 *
+	 * @param resource
+	 * @param oldMediaTypeProperty
+	 */
+	void resourceMediaTypeChanged(Resource resource, MediaTypeProperty oldMediaTypeProperty);
+}
@@ -0,0 +1,645 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.siegmann.epublib.util.IOUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the data of resources on the heap up to a byte budget, and in temporary files beyond it.
+ *
+ * A resource is kept on the heap if it is no larger than the maxResourceSize and if it fits in what is left of
+ * the maxSize of all the resources of this storage together. Otherwise its data is written to a temporary file.
+ * The EpubReader uses one storage per book, which limits the heap used by every book that is read.
+ *
+ * An off-heap storage keeps the data in direct ByteBuffers instead of on the heap, so that large amounts of
+ * resource data do not add to the garbage collector's work. The data is kept in pages of PAGE_SIZE bytes.
+ * The last part of the data that does not fill a whole page is kept in a smaller buffer, of the smallest of the
+ * sizes MIN_BUFFER_SIZE, 2 * MIN_BUFFER_SIZE, ... PAGE_SIZE that it fits in, so that small resources do not take
+ * a whole page each. The buffers are given back to a pool per size shared by all storages when the content is
+ * released, for instance by Resource.close(), and all the streams reading it are closed.
+ *
+ * Temporary files are deleted when the content is released.
+ * close() releases all the content of a storage that was not released yet, the EpubReader's storage of a book is
+ * closed by Book.close().
+ * Thread-safe.
+ *
+ * @author paul
+ *
+ */
+public class ResourceStorage {
+
+	private static final Logger log = LoggerFactory.getLogger(ResourceStorage.class);
+
+	public static final long DEFAULT_MAX_RESOURCE_SIZE = 16 * 1024 * 1024;
+	public static final long DEFAULT_MAX_SIZE = 128 * 1024 * 1024;
+	public static final int PAGE_SIZE = 16 * 1024;
+	public static final int MIN_BUFFER_SIZE = 512;
+
+	// the maximum number of bytes of released off-heap buffers that are kept for reuse, the others are left to the garbage collector
+	private static final long MAX_FREE_BYTES = 4096L * PAGE_SIZE;
+	// the released buffers by size, freeBuffers[i] holds the buffers of MIN_BUFFER_SIZE << i bytes
+	private static final Queue<ByteBuffer>[] freeBuffers = createFreeBuffers();
+	private static final AtomicLong freeBytes = new AtomicLong();
+
+	// used by the resources that are not given a storage of their own
+	private static final ResourceStorage defaultStorage = new ResourceStorage(DEFAULT_MAX_RESOURCE_SIZE, Long.MAX_VALUE, null, false, true);
+
+	private final long maxResourceSize;
+	private final long maxSize;
+	private final File directory;
+	private final boolean offHeap;
+	private final AtomicLong heapSize = new AtomicLong();
+	private final AtomicInteger fileCount = new AtomicInteger();
+	// the content that was not released yet, null for the default storage which is never closed
+	private final Set<ResourceContent> contents;
+
+	public ResourceStorage() {
+		this(DEFAULT_MAX_RESOURCE_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	public ResourceStorage(long maxResourceSize, long maxSize) {
+		this(maxResourceSize, maxSize, null);
+	}
+
+	/**
+	 * @param maxResourceSize the maximum size of a resource that is kept on the heap
+	 * @param maxSize the maximum size of all resources of this storage that are kept on the heap together
+	 * @param directory the directory for the temporary files, null for the system's temporary directory
+	 */
+	public ResourceStorage(long maxResourceSize, long maxSize, File directory) {
+		this(maxResourceSize, maxSize, directory, false);
+	}
+
+	/**
+	 * @param maxResourceSize the maximum size of a resource that is kept in memory
+	 * @param maxSize the maximum size of all resources of this storage that are kept in memory together
+	 * @param directory the directory for the temporary files, null for the system's temporary directory
+	 * @param offHeap whether the data is kept in direct ByteBuffers instead of on the heap
+	 */
+	public ResourceStorage(long maxResourceSize, long maxSize, File directory, boolean offHeap) {
+		this(maxResourceSize, maxSize, directory, offHeap, false);
+	}
+
+	private ResourceStorage(long maxResourceSize, long maxSize, File directory, boolean offHeap, boolean shared) {
+		if (maxResourceSize < 0 || maxSize < 0) {
+			throw new IllegalArgumentException("Sizes must not be negative: maxResourceSize " + maxResourceSize + ", maxSize " + maxSize);
+		}
+		this.maxResourceSize = maxResourceSize;
+		this.maxSize = maxSize;
+		this.directory = directory;
+		this.offHeap = offHeap;
+		this.contents = shared ? null : Collections.newSetFromMap(new ConcurrentHashMap<ResourceContent, Boolean>());
+	}
+
+	/**
+	 * The storage shared by all resources that are not given a storage of their own.
+	 *
+	 * As this storage cannot be closed it does not limit the size of these resources together, only resources larger
+	 * than DEFAULT_MAX_RESOURCE_SIZE are written to temporary files.
+	 * A resource gives its data back when it is closed or when its data is replaced. Temporary files of resources
+	 * that were not closed are deleted when the JVM exits.
+	 *
+	 * @return the storage shared by all resources that are not given a storage of their own.
+	 */
+	public static ResourceStorage getDefaultStorage() {
+		return defaultStorage;
+	}
+
+	/**
+	 * Reads the given stream to its end and stores its data.
+	 *
+	 * The stream is not closed.
+	 *
+	 * @param in
+	 * @return the stored data.
+	 * @throws IOException
+	 */
+	public ResourceContent store(InputStream in) throws IOException {
+		return store(in, -1);
+	}
+
+	/**
+	 * Reads the given stream to its end and stores its data.
+	 *
+	 * The stream is not closed.
+	 *
+	 * @param in
+	 * @param expectedSize the size of the data if it is known ahead, -1 otherwise.
+	 * Data that is known to be too large for the heap is written to a temporary file straight away.
+	 * @return the stored data.
+	 * @throws IOException
+	 */
+	public ResourceContent store(InputStream in, long expectedSize) throws IOException {
+		if (offHeap) {
+			return storeOffHeap(in, expectedSize);
+		}
+		long heapLimit = Math.min(Math.min(maxResourceSize, maxSize - heapSize.get()), IOUtil.MAX_ARRAY_SIZE);
+		if (expectedSize > heapLimit) {
+			return storeInFile(null, 0, in);
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(expectedSize > 0 ? (int) expectedSize : IOUtil.IO_COPY_BUFFER_SIZE);
+		byte[] readBuffer = new byte[IOUtil.IO_COPY_BUFFER_SIZE];
+		for (int readLength = in.read(readBuffer); readLength >= 0; readLength = in.read(readBuffer)) {
+			buffer.write(readBuffer, 0, readLength);
+			if (buffer.size() > heapLimit) {
+				return storeInFile(buffer.toByteArray(), buffer.size(), in);
+			}
+		}
+		byte[] data = buffer.toByteArray();
+		if (heapSize.addAndGet(data.length) > maxSize) {
+			// another thread took the space in the meantime
+			heapSize.addAndGet(-data.length);
+			return storeInFile(data, data.length, new ByteArrayInputStream(new byte[0]));
+		}
+		return added(new HeapContent(data, this));
+	}
+
+	private ResourceContent storeOffHeap(InputStream in, long expectedSize) throws IOException {
+		long memoryLimit = Math.min(maxResourceSize, maxSize - heapSize.get());
+		if (expectedSize > memoryLimit) {
+			return storeInFile(null, 0, in);
+		}
+		List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+		boolean stored = false;
+		try {
+			long size = 0;
+			byte[] readBuffer = new byte[IOUtil.IO_COPY_BUFFER_SIZE];
+			for (int readLength = in.read(readBuffer); readLength >= 0; readLength = in.read(readBuffer)) {
+				for (int offset = 0; offset < readLength;) {
+					ByteBuffer page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+					if (page == null || ! page.hasRemaining()) {
+						page = allocatePage();
+						pages.add(page);
+					}
+					int length = Math.min(readLength - offset, page.remaining());
+					page.put(readBuffer, offset, length);
+					offset += length;
+				}
+				size += readLength;
+				if (size > memoryLimit) {
+					return storeInFile(null, 0, new SequenceInputStream(new PagesInputStream(pages, size, null), in));
+				}
+			}
+			trimLastPage(pages);
+			long capacity = getCapacity(pages);
+			if (heapSize.addAndGet(capacity) > maxSize) {
+				// another thread took the space in the meantime
+				heapSize.addAndGet(-capacity);
+				return storeInFile(null, 0, new PagesInputStream(pages, size, null));
+			}
+			stored = true;
+			return added(new OffHeapContent(pages, size, capacity, this));
+		} finally {
+			if (! stored) {
+				releasePages(pages);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Queue<ByteBuffer>[] createFreeBuffers() {
+		Queue<ByteBuffer>[] result = new Queue[Integer.numberOfTrailingZeros(PAGE_SIZE / MIN_BUFFER_SIZE) + 1];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+		return result;
+	}
+
+	/**
+	 * The index in freeBuffers of the smallest buffer size that holds the given number of bytes.
+	 */
+	private static int getSizeClass(int length) {
+		int result = 0;
+		while ((MIN_BUFFER_SIZE << result) < length) {
+			result++;
+		}
+		return result;
+	}
+
+	private static ByteBuffer allocatePage() {
+		return allocateBuffer(freeBuffers.length - 1);
+	}
+
+	private static ByteBuffer allocateBuffer(int sizeClass) {
+		ByteBuffer result = freeBuffers[sizeClass].poll();
+		if (result == null) {
+			return ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << sizeClass);
+		}
+		freeBytes.addAndGet(-result.capacity());
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * Replaces the last page, if it is not full, by the smallest buffer its data fits in.
+	 */
+	private static void trimLastPage(List<ByteBuffer> pages) {
+		if (pages.isEmpty()) {
+			return;
+		}
+		ByteBuffer page = pages.get(pages.size() - 1);
+		int sizeClass = getSizeClass(page.position());
+		if (sizeClass == freeBuffers.length - 1) {
+			return;
+		}
+		page.flip();
+		ByteBuffer lastPage = allocateBuffer(sizeClass);
+		lastPage.put(page);
+		pages.set(pages.size() - 1, lastPage);
+		releasePages(Collections.singletonList(page));
+	}
+
+	private static long getCapacity(List<ByteBuffer> pages) {
+		long result = 0;
+		for (ByteBuffer page: pages) {
+			result += page.capacity();
+		}
+		return result;
+	}
+
+	private static void releasePages(List<ByteBuffer> pages) {
+		for (ByteBuffer page: pages) {
+			if (freeBytes.addAndGet(page.capacity()) > MAX_FREE_BYTES) {
+				freeBytes.addAndGet(-page.capacity());
+				return;
+			}
+			freeBuffers[getSizeClass(page.capacity())].add(page);
+		}
+	}
+
+	private ResourceContent storeInFile(byte[] head, int headLength, InputStream in) throws IOException {
+		File file = File.createTempFile("epublib", ".resource", directory);
+		long size = headLength;
+		boolean stored = false;
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				if (head != null) {
+					out.write(head, 0, headLength);
+				}
+				byte[] buffer = new byte[IOUtil.IO_COPY_BUFFER_SIZE];
+				for (int readLength = in.read(buffer); readLength >= 0; readLength = in.read(buffer)) {
+					out.write(buffer, 0, readLength);
+					size += readLength;
+				}
+			} finally {
+				out.close();
+			}
+			stored = true;
+		} finally {
+			if (! stored) {
+				file.delete();
+			}
+		}
+		fileCount.incrementAndGet();
+		if (contents == null) {
+			file.deleteOnExit();
+		}
+		return added(new FileContent(file, size, this));
+	}
+
+	private ResourceContent added(ResourceContent content) {
+		if (contents != null) {
+			contents.add(content);
+		}
+		return content;
+	}
+
+	private void removed(ResourceContent content) {
+		if (contents != null) {
+			contents.remove(content);
+		}
+	}
+
+	/**
+	 * Releases all the content of this storage that was not released yet.
+	 *
+	 * The resources using it cannot read their data anymore afterwards, except for lazy-loaded resources,
+	 * which load it again when needed. The storage can still store new content.
+	 *
+	 * @throws UnsupportedOperationException for the default storage, which is shared by resources of all books
+	 */
+	public void close() {
+		if (contents == null) {
+			throw new UnsupportedOperationException("The default storage cannot be closed");
+		}
+		for (ResourceContent content: new ArrayList<ResourceContent>(contents)) {
+			content.release();
+		}
+	}
+
+	/**
+	 * The number of bytes of resource data this storage currently keeps on the heap.
+	 *
+	 * For an off-heap storage this is the number of bytes of the off-heap buffers it currently uses.
+	 *
+	 * @return the number of bytes of resource data this storage currently keeps on the heap.
+	 */
+	public long getHeapSize() {
+		return heapSize.get();
+	}
+
+	/**
+	 * The number of temporary files this storage currently uses.
+	 *
+	 * @return the number of temporary files this storage currently uses.
+	 */
+	public int getFileCount() {
+		return fileCount.get();
+	}
+
+	public long getMaxResourceSize() {
+		return maxResourceSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	private static class HeapContent extends ResourceContent {
+
+		private byte[] data;
+		private ResourceStorage storage;
+
+		public HeapContent(byte[] data, ResourceStorage storage) {
+			this.data = data;
+			this.storage = storage;
+		}
+
+		@Override
+		public long getSize() {
+			return getLoadedData().length;
+		}
+
+		@Override
+		public boolean isInMemory() {
+			return true;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(getLoadedData());
+		}
+
+		@Override
+		public byte[] getData() {
+			return getLoadedData();
+		}
+
+		private synchronized byte[] getLoadedData() {
+			if (data == null) {
+				throw new IllegalStateException("Resource content was released");
+			}
+			return data;
+		}
+
+		@Override
+		public synchronized void release() {
+			if (data == null) {
+				return;
+			}
+			storage.heapSize.addAndGet(-data.length);
+			storage.removed(this);
+			data = null;
+		}
+
+		@Override
+		ResourceStorage getStorage() {
+			return storage;
+		}
+	}
+
+	private static class OffHeapContent extends ResourceContent {
+
+		private List<ByteBuffer> pages;
+		private final long size;
+		// the size of the off-heap buffers, which is what is taken from the storage
+		private final long capacity;
+		private final ResourceStorage storage;
+		private boolean released = false;
+		// the content itself until it is released, and its open streams.
+		// The pages are given back to the pool when there are no more references.
+		private int references = 1;
+
+		public OffHeapContent(List<ByteBuffer> pages, long size, long capacity, ResourceStorage storage) {
+			this.pages = pages;
+			this.size = size;
+			this.capacity = capacity;
+			this.storage = storage;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public boolean isInMemory() {
+			return true;
+		}
+
+		@Override
+		public boolean isOffHeap() {
+			return true;
+		}
+
+		/**
+		 * Reads the pages directly, the pages are not reused before the stream is closed.
+		 */
+		@Override
+		public synchronized InputStream getInputStream() {
+			if (released) {
+				throw new IllegalStateException("Resource content was released");
+			}
+			references++;
+			return new PagesInputStream(pages, size, this);
+		}
+
+		/**
+		 * Copies the data onto the heap.
+		 */
+		@Override
+		public byte[] getData() throws IOException {
+			InputStream in = getInputStream();
+			try {
+				return IOUtil.toByteArray(in, size);
+			} finally {
+				in.close();
+			}
+		}
+
+		@Override
+		public synchronized void release() {
+			if (released) {
+				return;
+			}
+			released = true;
+			storage.heapSize.addAndGet(-capacity);
+			storage.removed(this);
+			unreference();
+		}
+
+		@Override
+		ResourceStorage getStorage() {
+			return storage;
+		}
+
+		synchronized void streamClosed() {
+			unreference();
+		}
+
+		private void unreference() {
+			references--;
+			if (references == 0) {
+				releasePages(pages);
+				pages = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the first size bytes of the given pages, without changing the pages' positions.
+	 * 
+	 * Tells the content the pages belong to, if any, when it is closed.
+	 */
+	private static class PagesInputStream extends InputStream {
+
+		private final List<ByteBuffer> pages;
+		private long remaining;
+		private int pageIndex = 0;
+		private ByteBuffer page;
+		private OffHeapContent content;
+
+		public PagesInputStream(List<ByteBuffer> pages, long size, OffHeapContent content) {
+			this.pages = pages;
+			this.remaining = size;
+			this.content = content;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] result = new byte[1];
+			return read(result, 0, 1) < 0 ? -1 : result[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			if (page == null || ! page.hasRemaining()) {
+				page = pages.get(pageIndex++).duplicate();
+				page.clear();
+				page.limit((int) Math.min(page.capacity(), remaining));
+			}
+			int readLength = Math.min(length, page.remaining());
+			page.get(buffer, offset, readLength);
+			remaining -= readLength;
+			return readLength;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() {
+			remaining = 0;
+			if (content != null) {
+				content.streamClosed();
+				content = null;
+			}
+		}
+	}
+
+	private static class FileContent extends ResourceContent {
+
+		private final File file;
+		private final long size;
+		private final ResourceStorage storage;
+		private boolean released = false;
+
+		public FileContent(File file, long size, ResourceStorage storage) {
+			this.file = file;
+			this.size = size;
+			this.storage = storage;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public boolean isInMemory() {
+			return false;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (released) {
+				throw new IllegalStateException("Resource content was released");
+			}
+			return new BufferedInputStream(new FileInputStream(file), IOUtil.IO_COPY_BUFFER_SIZE);
+		}
+
+		@Override
+		public byte[] getData() throws IOException {
+			InputStream in = getInputStream();
+			try {
+				return IOUtil.toByteArray(in, size);
+			} finally {
+				in.close();
+			}
+		}
+
+		@Override
+		public synchronized void release() {
+			if (released) {
+				return;
+			}
+			released = true;
+			storage.fileCount.decrementAndGet();
+			storage.removed(this);
+			if (! file.delete()) {
+				log.warn("Unable to delete temporary file " + file);
+			}
+		}
+
+		@Override
+		ResourceStorage getStorage() {
+			return storage;
+		}
+	}
+}
@@ -4,6 +4,8 @@ import nl.siegmann.epublib.Constants;
 import nl.siegmann.epublib.service.MediatypeService;
 import nl.siegmann.epublib.util.StringUtil;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
 
@@ -25,6 +27,48 @@ public class Resources implements Serializable {
 	private int lastId = 1;
 	
 	private Map<String, Resource> resources = new HashMap<String, Resource>();
+
+	// the resources by id, kept up to date by add/remove and by the resources themselves when their id changes.
+	// addAll does not fix the ids, so several resources can have the same id, getById finds the first one indexed
+	private transient Map<String, List<Resource>> resourcesById = new HashMap<String, List<Resource>>();
+
+	// the resources by mediatype, kept up to date the same way as resourcesById
+	private transient Map<MediaTypeProperty, MediaTypeBucket> resourcesByMediaType = new HashMap<MediaTypeProperty, MediaTypeBucket>();
+
+	// registered with the resources, to keep the indexes up to date when their id or mediatype changes
+	private transient ResourceOwner resourceOwner;
+
+	/**
+	 * The resources with a certain mediatype.
+	 * 
+	 * The resources are compared by identity as a resource's href, and thereby its hashCode, can change.
+	 */
+	private static class MediaTypeBucket {
+		private final Set<Resource> resources = Collections.newSetFromMap(new IdentityHashMap<Resource, Boolean>());
+		private List<Resource> view;
+
+		void add(Resource resource) {
+			if (resources.add(resource)) {
+				view = null;
+			}
+		}
+
+		void remove(Resource resource) {
+			if (resources.remove(resource)) {
+				view = null;
+			}
+		}
+
+		/**
+		 * @return a read-only list of the resources, only copied again after the bucket has changed
+		 */
+		List<Resource> getView() {
+			if (view == null) {
+				view = Collections.unmodifiableList(new ArrayList<Resource>(resources));
+			}
+			return view;
+		}
+	}
 	
 	/**
 	 * Adds a resource to the resources.
@@ -37,10 +81,136 @@ public class Resources implements Serializable {
 	public Resource add(Resource resource) {
 		fixResourceHref(resource);
 		fixResourceId(resource);
-		this.resources.put(resource.getHref(), resource);
+		put(resource);
 		return resource;
 	}
 
+	/**
+	 * Puts the resource in the href map and the indexes, replacing any resource with the same href.
+	 *
+	 * @param resource
+	 */
+	private void put(Resource resource) {
+		Resource previous = resources.put(resource.getHref(), resource);
+		if (previous != null && previous != resource) {
+			unindex(previous);
+		}
+		index(resource);
+	}
+
+	/**
+	 * Adds the resource to the id and mediatype indexes.
+	 *
+	 * @param resource
+	 */
+	private void index(Resource resource) {
+		resource.addOwner(getResourceOwner());
+		indexId(resource.getId(), resource);
+		MediaTypeBucket bucket = resourcesByMediaType.get(resource.getMediaTypeProperty());
+		if (bucket == null) {
+			bucket = new MediaTypeBucket();
+			resourcesByMediaType.put(resource.getMediaTypeProperty(), bucket);
+		}
+		bucket.add(resource);
+	}
+
+	/**
+	 * Removes the resource from the id and mediatype indexes.
+	 *
+	 * @param resource
+	 */
+	private void unindex(Resource resource) {
+		resource.removeOwner(getResourceOwner());
+		unindexId(resource.getId(), resource);
+		MediaTypeBucket bucket = resourcesByMediaType.get(resource.getMediaTypeProperty());
+		if (bucket != null) {
+			bucket.remove(resource);
+		}
+	}
+
+	private ResourceOwner getResourceOwner() {
+		if (resourceOwner == null) {
+			resourceOwner = new ResourceOwner() {
+
+				@Override
+				public void resourceIdChanged(Resource resource, String oldId) {
+					Resources.this.resourceIdChanged(resource, oldId);
+				}
+
+				@Override
+				public void resourceHrefChanged(Resource resource, String oldHref) {
+					// the href map is keyed by the href the resource was added with
+				}
+
+				@Override
+				public void resourceMediaTypeChanged(Resource resource, MediaTypeProperty oldMediaTypeProperty) {
+					Resources.this.resourceMediaTypeChanged(resource, oldMediaTypeProperty);
+				}
+			};
+		}
+		return resourceOwner;
+	}
+
+	/**
+	 * Called by a resource of this collection when its id has changed.
+	 *
+	 * @param resource
+	 * @param oldId
+	 */
+	private void resourceIdChanged(Resource resource, String oldId) {
+		unindexId(oldId, resource);
+		indexId(resource.getId(), resource);
+	}
+
+	private void indexId(String id, Resource resource) {
+		if (StringUtil.isBlank(id)) {
+			return;
+		}
+		List<Resource> idResources = resourcesById.get(id);
+		if (idResources == null) {
+			idResources = new ArrayList<Resource>(1);
+			resourcesById.put(id, idResources);
+		}
+		for (Resource idResource: idResources) {
+			if (idResource == resource) {
+				return;
+			}
+		}
+		idResources.add(resource);
+	}
+
+	private void unindexId(String id, Resource resource) {
+		if (StringUtil.isBlank(id)) {
+			return;
+		}
+		List<Resource> idResources = resourcesById.get(id);
+		if (idResources == null) {
+			return;
+		}
+		for (Iterator<Resource> iter = idResources.iterator(); iter.hasNext();) {
+			if (iter.next() == resource) {
+				iter.remove();
+			}
+		}
+		if (idResources.isEmpty()) {
+			resourcesById.remove(id);
+		}
+	}
+
+	/**
+	 * Called by a resource of this collection when its mediatype has changed.
+	 *
+	 * @param resource
+	 * @param oldMediaTypeProperty
+	 */
+	private void resourceMediaTypeChanged(Resource resource, MediaTypeProperty oldMediaTypeProperty) {
+		MediaTypeBucket bucket = resourcesByMediaType.get(oldMediaTypeProperty);
+		if (bucket != null) {
+			bucket.remove(resource);
+		}
+		index(resource);
+	}
+
 	/**
 	 * Checks the id of the given resource and changes to a unique identifier if it isn't one already.
 	 * 
@@ -90,6 +260,9 @@ public class Resources implements Serializable {
 	/**
 	 * Creates a new resource id that is guarenteed to be unique for this set of Resources
 	 * 
+	 * The counter continues where the previous call left off, so ids are only probed again
+	 * when they were taken by resources that were added with an id of their own.
+	 * 
 	 * @param resource
 	 * @return
 	 */
@@ -107,7 +280,7 @@ public class Resources implements Serializable {
 		while (containsId(result)) {
 			result = prefix + (++ counter);
 		}
-		lastId = counter;
+		lastId = counter < Integer.MAX_VALUE ? counter + 1 : counter;
 		return result;
 	}
 
@@ -121,12 +294,7 @@ public class Resources implements Serializable {
 		if (StringUtil.isBlank(id)) {
 			return false;
 		}
-		for (Resource resource: resources.values()) {
-			if (id.equals(resource.getId())) {
-				return true;
-			}
-		}
-		return false;
+		return resourcesById.containsKey(id);
 	}
 	
 	/**
@@ -139,12 +307,8 @@ public class Resources implements Serializable {
 		if (StringUtil.isBlank(id)) {
 			return null;
 		}
-		for (Resource resource: resources.values()) {
-			if (id.equals(resource.getId())) {
-				return resource;
-			}
-		}
-		return null;
+		List<Resource> idResources = resourcesById.get(id);
+		return idResources == null ? null : idResources.get(0);
 	}
 	
 	/**
@@ -154,7 +318,11 @@ public class Resources implements Serializable {
 	 * @return the removed resource, null if not found
 	 */
 	public Resource remove(String href) {
-		return resources.remove(href);
+		Resource result = resources.remove(href);
+		if (result != null) {
+			unindex(result);
+		}
+		return result;
 	}
 	
 	private void fixResourceHref(Resource resource) {
@@ -200,6 +368,8 @@ public class Resources implements Serializable {
 	 * The resources that make up this book.
 	 * Resources can be xhtml pages, images, xml documents, etc.
 	 * 
+	 * Resources should be added and removed through add and remove, changes made directly to this map are not seen by getById.
+	 * 
 	 * @return
 	 */
 	public Map<String, Resource> getResourceMap() {
@@ -229,9 +399,59 @@ public class Resources implements Serializable {
 	 * @param resources
 	 */
 	public void set(Collection<Resource> resources) {
-		this.resources.clear();
+		clear();
 		addAll(resources);
 	}
+
+	/**
+	 * Closes all resources, see Resource.close(), the epub files that the lazy resources among them share
+	 * and the ResourceStorages that keep their data.
+	 * 
+	 * Lazy resources can still be read afterwards, their epub file is opened again when needed.
+	 * 
+	 * @throws IOException if one of the epub files could not be closed
+	 */
+	public void close() throws IOException {
+		close(resources.values());
+	}
+
+	// package
+	static void close(Collection<Resource> resources) throws IOException {
+		Set<SharedZipFile> sharedZipFiles = Collections.newSetFromMap(new IdentityHashMap<SharedZipFile, Boolean>());
+		Set<ResourceStorage> storages = Collections.newSetFromMap(new IdentityHashMap<ResourceStorage, Boolean>());
+		for (Resource resource: resources) {
+			if (resource.getStorage() != null && resource.getStorage() != ResourceStorage.getDefaultStorage()) {
+				storages.add(resource.getStorage());
+			}
+			resource.close();
+			if (resource instanceof LazyResource && ((LazyResource) resource).getSharedZipFile() != null) {
+				sharedZipFiles.add(((LazyResource) resource).getSharedZipFile());
+			}
+		}
+		for (ResourceStorage storage: storages) {
+			storage.close();
+		}
+		IOException closeException = null;
+		for (SharedZipFile sharedZipFile: sharedZipFiles) {
+			try {
+				sharedZipFile.close();
+			} catch (IOException e) {
+				closeException = e;
+			}
+		}
+		if (closeException != null) {
+			throw closeException;
+		}
+	}
+
+	private void clear() {
+		for (Resource resource: this.resources.values()) {
+			resource.removeOwner(getResourceOwner());
+		}
+		this.resources.clear();
+		this.resourcesById.clear();
+		this.resourcesByMediaType.clear();
+	}
 	
 	/**
 	 * Adds all resources from the given Collection of resources to the existing collection.
@@ -241,7 +461,7 @@ public class Resources implements Serializable {
 	public void addAll(Collection<Resource> resources) {
 		for(Resource resource: resources) {
 			fixResourceHref(resource);
-			this.resources.put(resource.getHref(), resource);
+			put(resource);
 		}
 	}
 
@@ -251,7 +471,25 @@ public class Resources implements Serializable {
 	 * @param resources A map with as keys the resources href and as values the Resources
 	 */
 	public void set(Map<String, Resource> resources) {
+		clear();
 		this.resources = new HashMap<String, Resource>(resources);
+		reindex();
+	}
+
+	/**
+	 * Rebuilds the id and mediatype indexes from the href map.
+	 */
+	private void reindex() {
+		resourcesById = new HashMap<String, List<Resource>>();
+		resourcesByMediaType = new HashMap<MediaTypeProperty, MediaTypeBucket>();
+		for (Resource resource: resources.values()) {
+			index(resource);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		reindex();
 	}
 	
 	
@@ -296,7 +534,11 @@ public class Resources implements Serializable {
 	 * @return
 	 */
 	public Resource findFirstResourceByMediaType(MediaTypeProperty mediaTypeProperty) {
-		return findFirstResourceByMediaType(resources.values(), mediaTypeProperty);
+		MediaTypeBucket bucket = resourcesByMediaType.get(mediaTypeProperty);
+		if (bucket == null || bucket.resources.isEmpty()) {
+			return null;
+		}
+		return bucket.resources.iterator().next();
 	}
 	
 	/**
@@ -320,42 +562,40 @@ public class Resources implements Serializable {
 	 * All resources that have the given MediaType.
 	 * 
 	 * @param mediaTypeProperty
-	 * @return
+	 * @return a read-only list
 	 */
 	public List<Resource> getResourcesByMediaType(MediaTypeProperty mediaTypeProperty) {
-		List<Resource> result = new ArrayList<Resource>();
 		if (mediaTypeProperty == null) {
-			return result;
+			return Collections.emptyList();
 		}
-		for (Resource resource: getAll()) {
-			if (resource.getMediaTypeProperty() == mediaTypeProperty) {
-				result.add(resource);
-			}
+		MediaTypeBucket bucket = resourcesByMediaType.get(mediaTypeProperty);
+		if (bucket == null) {
+			return Collections.emptyList();
 		}
-		return result;
+		return bucket.getView();
 	}
 
 	/**
 	 * All Resources that match any of the given list of MediaTypes
 	 * 
 	 * @param mediaTypePropertieses
-	 * @return
+	 * @return a read-only list
 	 */
 	public List<Resource> getResourcesByMediaTypes(MediaTypeProperty[] mediaTypePropertieses) {
-		List<Resource> result = new ArrayList<Resource>();
-		if (mediaTypePropertieses == null) {
-			return result;
+		if (mediaTypePropertieses == null || mediaTypePropertieses.length == 0) {
+			return Collections.emptyList();
 		}
-		
-		// this is the fastest way of doing this according to 
-		// http://stackoverflow.com/questions/1128723/in-java-how-can-i-test-if-an-array-contains-a-certain-value
-		List<MediaTypeProperty> mediaTypesListProperties = Arrays.asList(mediaTypePropertieses);
-		for (Resource resource: getAll()) {
-			if (mediaTypesListProperties.contains(resource.getMediaTypeProperty())) {
-				result.add(resource);
+		if (mediaTypePropertieses.length == 1) {
+			return getResourcesByMediaType(mediaTypePropertieses[0]);
+		}
+		List<Resource> result = new ArrayList<Resource>();
+		for (MediaTypeProperty mediaTypeProperty: new LinkedHashSet<MediaTypeProperty>(Arrays.asList(mediaTypePropertieses))) {
+			MediaTypeBucket bucket = resourcesByMediaType.get(mediaTypeProperty);
+			if (bucket != null) {
+				result.addAll(bucket.resources);
 			}
 		}
-		return result;
+		return Collections.unmodifiableList(result);
 	}
 
 
@@ -0,0 +1,138 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An epub file that is opened once for all the lazy resources of a book, instead of once for every time one of
+ * them is read.
+ *
+ * The file is opened when a resource is first read and is kept open until close() is called, or until the
+ * ZipFile is garbage collected. Reading a resource after close() opens the file again.
+ * If the file was changed since it was opened it is opened again as well, as a ZipFile cannot read a file
+ * that was overwritten underneath it. A ZipFile may even crash the JVM on a file that was made shorter.
+ * Thread-safe.
+ *
+ * @see LazyResource
+ *
+ * @author paul
+ *
+ */
+public class SharedZipFile {
+
+	private final String fileName;
+	private ZipFile zipFile;
+	// the length and modification time of the file when it was opened
+	private long openedLength;
+	private long openedLastModified;
+	// the number of reads in progress, the file is not closed while there are any
+	private int users = 0;
+	private boolean closeRequested = false;
+
+	/**
+	 * @param fileName the file name of the epub
+	 */
+	public SharedZipFile(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Gets the opened zip file, which must be given back with release() when done.
+	 */
+	synchronized ZipFile acquire() throws IOException {
+		File file = new File(fileName);
+		if (zipFile != null && (file.length() != openedLength || file.lastModified() != openedLastModified)) {
+			if (users > 0) {
+				throw new IOException("Epub file " + fileName + " was changed while it is being read");
+			}
+			closeZipFile();
+		}
+		if (zipFile == null) {
+			openedLength = file.length();
+			openedLastModified = file.lastModified();
+			zipFile = new ZipFile(file);
+		}
+		closeRequested = false;
+		users++;
+		return zipFile;
+	}
+
+	synchronized void release() throws IOException {
+		users--;
+		if (users == 0 && closeRequested) {
+			closeZipFile();
+		}
+	}
+
+	/**
+	 * Opens a stream on the given entry, the zip file is kept open until the stream is closed.
+	 */
+	InputStream getInputStream(String entryName) throws IOException {
+		ZipFile zip = acquire();
+		try {
+			ZipEntry zipEntry = zip.getEntry(entryName);
+			if (zipEntry == null) {
+				throw new IOException("Could not find entry " + entryName + " in " + fileName);
+			}
+			return new FilterInputStream(zip.getInputStream(zipEntry)) {
+
+				private boolean closed = false;
+
+				@Override
+				public void close() throws IOException {
+					if (closed) {
+						return;
+					}
+					closed = true;
+					try {
+						super.close();
+					} finally {
+						release();
+					}
+				}
+			};
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the zip file, or once the reads in progress are done if there are any.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (users > 0) {
+			closeRequested = true;
+		} else {
+			closeZipFile();
+		}
+	}
+
+	private void closeZipFile() throws IOException {
+		closeRequested = false;
+		if (zipFile != null) {
+			ZipFile zip = zipFile;
+			zipFile = null;
+			zip.close();
+		}
+	}
+
+	/**
+	 * Whether the zip file is currently open.
+	 *
+	 * @return whether the zip file is currently open.
+	 */
+	public synchronized boolean isOpen() {
+		return zipFile != null;
+	}
+}
@@ -1,9 +1,13 @@
 package nl.siegmann.epublib.domain;
 
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 import nl.siegmann.epublib.util.StringUtil;
 
@@ -28,6 +32,63 @@ public class Spine implements Serializable {
 	private Resource tocResource;
 	private List<SpineReference> spineReferences;
 
+	// the first position of every href and resource id, built when first needed
+	private transient Map<String, Integer> indexByHref;
+	private transient Map<String, Integer> indexById;
+	// the list and its size when the indexes were built, a different list or size means the indexes are out of date.
+	// the list returned by getSpineReferences, the spine references and their resources set indexedSpineReferences
+	// to null when they change
+	private transient List<SpineReference> indexedSpineReferences;
+	private transient int indexedSize;
+	// registered with the indexed resources, to be told when their id or href changes
+	private transient ResourceOwner resourceOwner;
+	// the view on spineReferences returned by getSpineReferences
+	private transient List<SpineReference> spineReferencesView;
+
+	/**
+	 * The spine references as returned by getSpineReferences.
+	 * 
+	 * Changes through this list reset the href and id indexes.
+	 */
+	private class SpineReferenceList extends AbstractList<SpineReference> implements RandomAccess {
+
+		@Override
+		public SpineReference get(int index) {
+			return spineReferences.get(index);
+		}
+
+		@Override
+		public int size() {
+			return spineReferences.size();
+		}
+
+		@Override
+		public SpineReference set(int index, SpineReference spineReference) {
+			SpineReference result = spineReferences.set(index, spineReference);
+			indexedSpineReferences = null;
+			return result;
+		}
+
+		@Override
+		public void add(int index, SpineReference spineReference) {
+			if (index == spineReferences.size()) {
+				addSpineReference(spineReference);
+			} else {
+				spineReferences.add(index, spineReference);
+				indexedSpineReferences = null;
+			}
+			modCount++;
+		}
+
+		@Override
+		public SpineReference remove(int index) {
+			SpineReference result = spineReferences.remove(index);
+			indexedSpineReferences = null;
+			modCount++;
+			return result;
+		}
+	}
+
 	public Spine() {
 		this(new ArrayList<SpineReference>());
 	}
@@ -53,11 +114,35 @@ public class Spine implements Serializable {
 		return result;
 	}
 	
+	/**
+	 * The spine references.
+	 * 
+	 * Changes made through the returned list, like adding, replacing or sorting spine references,
+	 * are written through to the list of spine references of this spine.
+	 * 
+	 * @return
+	 */
 	public List<SpineReference> getSpineReferences() {
-		return spineReferences;
+		if (spineReferences == null) {
+			return null;
+		}
+		if (spineReferencesView == null) {
+			spineReferencesView = new SpineReferenceList();
+		}
+		return spineReferencesView;
 	}
+
 	public void setSpineReferences(List<SpineReference> spineReferences) {
+		if (indexedSpineReferences != null) {
+			for (SpineReference spineReference: indexedSpineReferences) {
+				spineReference.removeSpine(this);
+				if (spineReference.getResource() != null) {
+					spineReference.getResource().removeOwner(getResourceOwner());
+				}
+			}
+		}
 		this.spineReferences = spineReferences;
+		this.indexedSpineReferences = null;
 	}
 
 	/**
@@ -86,14 +171,7 @@ public class Spine implements Serializable {
 		if (StringUtil.isBlank(resourceId)) {
 			return -1;
 		}
-		
-		for (int i = 0; i < spineReferences.size(); i++) {
-			SpineReference spineReference = spineReferences.get(i);
-			if (resourceId.equals(spineReference.getResourceId())) {
-				return i;
-			}
-		}
-		return -1;
+		return lookup(resourceId, false);
 	}
 	
 	/**
@@ -106,10 +184,87 @@ public class Spine implements Serializable {
 		if (spineReferences == null) {
 			this.spineReferences = new ArrayList<SpineReference>();
 		}
+		boolean indexesUpToDate = isIndexUpToDate();
 		spineReferences.add(spineReference);
+		if (indexesUpToDate) {
+			index(spineReference, spineReferences.size() - 1);
+			indexedSize = spineReferences.size();
+		}
 		return spineReference;
 	}
 
+	private ResourceOwner getResourceOwner() {
+		if (resourceOwner == null) {
+			resourceOwner = new ResourceOwner() {
+
+				@Override
+				public void resourceIdChanged(Resource resource, String oldId) {
+					indexedSpineReferences = null;
+				}
+
+				@Override
+				public void resourceHrefChanged(Resource resource, String oldHref) {
+					indexedSpineReferences = null;
+				}
+
+				@Override
+				public void resourceMediaTypeChanged(Resource resource, MediaTypeProperty oldMediaTypeProperty) {
+				}
+			};
+		}
+		return resourceOwner;
+	}
+
+	/**
+	 * Called by the spine references in this spine when their resource is replaced.
+	 */
+	void spineReferenceChanged() {
+		indexedSpineReferences = null;
+	}
+
+	private boolean isIndexUpToDate() {
+		return indexedSpineReferences != null
+				&& indexedSpineReferences == spineReferences
+				&& indexedSize == spineReferences.size();
+	}
+
+	/**
+	 * Rebuilds the href and id indexes if the spine references were changed.
+	 */
+	private void updateIndexes() {
+		if (isIndexUpToDate()) {
+			return;
+		}
+		indexByHref = new HashMap<String, Integer>();
+		indexById = new HashMap<String, Integer>();
+		for (int i = 0; i < spineReferences.size(); i++) {
+			index(spineReferences.get(i), i);
+		}
+		indexedSpineReferences = spineReferences;
+		indexedSize = spineReferences.size();
+	}
+
+	private void index(SpineReference spineReference, int position) {
+		spineReference.addSpine(this);
+		Resource resource = spineReference.getResource();
+		if (resource == null) {
+			return;
+		}
+		resource.addOwner(getResourceOwner());
+		if (resource.getHref() != null && ! indexByHref.containsKey(resource.getHref())) {
+			indexByHref.put(resource.getHref(), position);
+		}
+		if (resource.getId() != null && ! indexById.containsKey(resource.getId())) {
+			indexById.put(resource.getId(), position);
+		}
+	}
+
+	private int lookup(String key, boolean byHref) {
+		updateIndexes();
+		Integer result = (byHref ? indexByHref : indexById).get(key);
+		return result == null ? -1 : result;
+	}
+
 	/**
 	 * Adds the given resource to the spine references and returns it.
 	 * 
@@ -167,21 +322,20 @@ public class Spine implements Serializable {
 	/**
 	 * The first position within the spine of a resource with the given href.
 	 * 
+	 * The positions are kept in an index that is brought up to date when the spine references are changed
+	 * through this class or through the list returned by getSpineReferences, when the resource of one of the
+	 * spine references is replaced and when the id or href of one of the resources changes.
+	 * If a spine reference is replaced directly in the list given to the constructor or to setSpineReferences
+	 * the index will not see it, call setSpineReferences again in that case.
+	 * 
 	 * @return something &lt; 0 if not found.
 	 * 
 	 */
 	public int getResourceIndex(String resourceHref) {
-		int result = -1;
 		if (StringUtil.isBlank(resourceHref)) {
-			return result;
-		}
-		for (int i = 0; i < spineReferences.size(); i++) {
-			if (resourceHref.equals(spineReferences.get(i).getResource().getHref())) {
-				result = i;
-				break;
-			}
+			return -1;
 		}
-		return result;
+		return lookup(resourceHref, true);
 	}
 
 	public boolean isEmpty() {
@@ -1,6 +1,8 @@
 package nl.siegmann.epublib.domain;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -20,6 +22,8 @@ public class SpineReference extends ResourceReference implements Serializable {
     private String idref;
 	private boolean linear = true;
     private SpineItemRefProperties properties;
+	// the spines that have this spine reference in their index, to be told when the resource is replaced
+	private transient List<Spine> spines;
 	
 	public SpineReference(Resource resource) {
 		this(resource, true);
@@ -48,6 +52,31 @@ public class SpineReference extends ResourceReference implements Serializable {
 	 * 
 	 * @return
 	 */
+	@Override
+	public void setResource(Resource resource) {
+		super.setResource(resource);
+		if (spines != null) {
+			for (Spine spine: spines) {
+				spine.spineReferenceChanged();
+			}
+		}
+	}
+
+	void addSpine(Spine spine) {
+		if (spines == null) {
+			spines = new ArrayList<Spine>(1);
+		}
+		if (! spines.contains(spine)) {
+			spines.add(spine);
+		}
+	}
+
+	void removeSpine(Spine spine) {
+		if (spines != null) {
+			spines.remove(spine);
+		}
+	}
+
 	public boolean isLinear() {
 		return linear;
 	}
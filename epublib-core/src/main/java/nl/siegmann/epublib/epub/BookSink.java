@@ -0,0 +1,37 @@
+package nl.siegmann.epublib.epub;
+
+import java.io.File;
+
+import nl.siegmann.epublib.domain.Book;
+
+/**
+ * Receives the books read by the EpubBatchProcessor.
+ *
+ * The methods are called from the batch processor's worker threads, possibly for several books at the same time.
+ *
+ * @see EpubBatchProcessor
+ *
+ * @author paul
+ *
+ */
+public interface BookSink {
+
+	/**
+	 * Called for every book that was read successfully.
+	 *
+	 * The book's resources are read lazily from the epub file. The book and the epub file are closed once this method returns.
+	 *
+	 * @param file the epub file
+	 * @param book the book read from the file
+	 * @throws Exception counts the book as failed, the batch carries on with the next book.
+	 */
+	void bookRead(File file, Book book) throws Exception;
+
+	/**
+	 * Called for every book that could not be read or processed.
+	 *
+	 * @param file the epub file
+	 * @param error the reason the book failed
+	 */
+	void bookFailed(File file, Throwable error);
+}
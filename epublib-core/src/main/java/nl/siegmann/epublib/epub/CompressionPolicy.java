@@ -0,0 +1,36 @@
+package nl.siegmann.epublib.epub;
+
+import java.util.zip.Deflater;
+
+import nl.siegmann.epublib.domain.Resource;
+
+/**
+ * Decides how the EpubWriter compresses each resource.
+ * 
+ * @see MediaTypeCompressionPolicy
+ * 
+ * @author paul
+ *
+ */
+public interface CompressionPolicy {
+
+	/**
+	 * A CompressionPolicy that deflates every resource at the default compression level.
+	 */
+	public CompressionPolicy DEFLATE_ALL = new CompressionPolicy() {
+
+		@Override
+		public int getCompressionLevel(Resource resource) {
+			return Deflater.DEFAULT_COMPRESSION;
+		}
+	};
+
+	/**
+	 * The compression level for the given resource.
+	 * 
+	 * @param resource
+	 * @return a compression level as used by java.util.zip.Deflater.
+	 *   Deflater.NO_COMPRESSION means that the resource is stored uncompressed.
+	 */
+	int getCompressionLevel(Resource resource);
+}
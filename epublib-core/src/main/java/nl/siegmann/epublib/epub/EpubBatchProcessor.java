@@ -0,0 +1,377 @@
+package nl.siegmann.epublib.epub;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipFile;
+
+import nl.siegmann.epublib.Constants;
+import nl.siegmann.epublib.domain.Book;
+import nl.siegmann.epublib.util.StringUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a large number of epub files concurrently and hands every book to a BookSink.
+ *
+ * Every file is read lazily: only the package document and the table of contents are read up front,
+ * the other resources are loaded from the epub file when the sink accesses them.<br/>
+ * The number of books being read or processed at any one time is limited by maxBooksInFlight.
+ * The files are taken from the given iterator only as fast as the books are processed,
+ * so memory use does not depend on the number of files in the batch.<br/>
+ * A book that fails to read or process is reported to the sink and counted, the batch carries on with the next book.
+ *
+ * Example:
+ * <pre>
+ * EpubBatchProcessor batchProcessor = new EpubBatchProcessor(8);
+ * EpubBatchProcessor.Report report = batchProcessor.process(EpubBatchProcessor.findEpubFiles(new File("/data/books")), sink);
+ * </pre>
+ *
+ * @author paul
+ *
+ */
+public class EpubBatchProcessor {
+
+	private static final Logger log = LoggerFactory.getLogger(EpubBatchProcessor.class);
+
+	private int parallelism;
+	private int maxBooksInFlight;
+	private EpubReader epubReader = new EpubReader();
+	private BookProcessor bookProcessor = BookProcessor.IDENTITY_BOOKPROCESSOR;
+	private String encoding = Constants.CHARACTER_ENCODING;
+
+	/**
+	 * Creates a batch processor that uses as many threads as there are processors.
+	 */
+	public EpubBatchProcessor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism the number of books read at the same time
+	 */
+	public EpubBatchProcessor(int parallelism) {
+		this(parallelism, parallelism * 2);
+	}
+
+	/**
+	 * @param parallelism the number of books read at the same time
+	 * @param maxBooksInFlight the maximum number of books that are read, processed or waiting for a thread at the same time
+	 */
+	public EpubBatchProcessor(int parallelism, int maxBooksInFlight) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+		}
+		if (maxBooksInFlight < parallelism) {
+			throw new IllegalArgumentException("maxBooksInFlight (" + maxBooksInFlight + ") must be at least the parallelism (" + parallelism + ")");
+		}
+		this.parallelism = parallelism;
+		this.maxBooksInFlight = maxBooksInFlight;
+	}
+
+	/**
+	 * The throughput and outcome of a batch.
+	 *
+	 * @author paul
+	 *
+	 */
+	public static class Report {
+
+		private final AtomicInteger bookCount = new AtomicInteger();
+		private final AtomicInteger failedCount = new AtomicInteger();
+		private final AtomicLong byteCount = new AtomicLong();
+		private final long startTime = System.currentTimeMillis();
+		private volatile long endTime = -1;
+
+		/**
+		 * @return the number of books that were read and processed without errors
+		 */
+		public int getSucceededCount() {
+			return bookCount.get() - failedCount.get();
+		}
+
+		public int getFailedCount() {
+			return failedCount.get();
+		}
+
+		/**
+		 * @return the number of books that were handled, succeeded and failed
+		 */
+		public int getBookCount() {
+			return bookCount.get();
+		}
+
+		/**
+		 * @return the total size of the epub files
+		 */
+		public long getByteCount() {
+			return byteCount.get();
+		}
+
+		/**
+		 * @return the duration of the batch, or the time since it started if it is still running
+		 */
+		public long getElapsedMillis() {
+			return (endTime < 0 ? System.currentTimeMillis() : endTime) - startTime;
+		}
+
+		public double getBooksPerSecond() {
+			return perSecond(getBookCount());
+		}
+
+		public double getBytesPerSecond() {
+			return perSecond(getByteCount());
+		}
+
+		private double perSecond(double value) {
+			long elapsedMillis = Math.max(1, getElapsedMillis());
+			return value * 1000 / elapsedMillis;
+		}
+
+		public String toString() {
+			return StringUtil.toString("books", getBookCount(),
+					"succeeded", getSucceededCount(),
+					"failed", getFailedCount(),
+					"elapsedMillis", getElapsedMillis(),
+					"booksPerSecond", String.format("%.1f", getBooksPerSecond()),
+					"megabytesPerSecond", String.format("%.1f", getBytesPerSecond() / (1024 * 1024)));
+		}
+	}
+
+	/**
+	 * Reads all the given files and hands them to the sink.
+	 *
+	 * Blocks until all books have been handled.
+	 *
+	 * @param files the epub files to read
+	 * @param sink receives the books
+	 * @return the report of the batch
+	 * @throws InterruptedException when the calling thread is interrupted. Books in flight are completed, no new books are started.
+	 */
+	public Report process(Iterable<File> files, BookSink sink) throws InterruptedException {
+		return process(files.iterator(), sink);
+	}
+
+	/**
+	 * Reads all the files of the given iterator and hands them to the sink.
+	 *
+	 * The next file is taken from the iterator only once there is room for another book,
+	 * so the iterator may be a lazy view on a very large collection of files.
+	 *
+	 * Blocks until all books have been handled.
+	 *
+	 * @param files the epub files to read
+	 * @param sink receives the books
+	 * @return the report of the batch
+	 * @throws InterruptedException when the calling thread is interrupted. Books in flight are completed, no new books are started.
+	 */
+	public Report process(Iterator<File> files, final BookSink sink) throws InterruptedException {
+		final Report report = new Report();
+		final Semaphore booksInFlight = new Semaphore(maxBooksInFlight);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new BatchThreadFactory());
+		try {
+			while (files.hasNext()) {
+				booksInFlight.acquire();
+				final File file = files.next();
+				try {
+					executor.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								processFile(file, sink, report);
+							} finally {
+								booksInFlight.release();
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					booksInFlight.release();
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				log.debug("waiting for " + (maxBooksInFlight - booksInFlight.availablePermits()) + " books to complete: " + report);
+			}
+			report.endTime = System.currentTimeMillis();
+		}
+		return report;
+	}
+
+	private void processFile(File file, BookSink sink, Report report) {
+		report.bookCount.incrementAndGet();
+		report.byteCount.addAndGet(file.length());
+		try {
+			ZipFile zipFile = new ZipFile(file);
+			try {
+				Book book = epubReader.readEpubLazy(zipFile, encoding);
+				try {
+					book = bookProcessor.processBook(book);
+					sink.bookRead(file, book);
+				} finally {
+					// releases what the book holds in the ResourceCache and its ResourceStorage
+					book.close();
+				}
+			} finally {
+				zipFile.close();
+			}
+		} catch (Throwable e) {
+			// any failure to handle a single book, like a StackOverflowError on extremely deep nesting,
+			// should not end the batch
+			bookFailed(file, e, sink, report);
+			if (isFatal(e)) {
+				throw (Error) e;
+			}
+		}
+	}
+
+	/**
+	 * Whether the thread should not continue after the given error, it is still reported as a failed book first.
+	 */
+	private static boolean isFatal(Throwable error) {
+		return error instanceof ThreadDeath
+				|| (error instanceof VirtualMachineError && ! (error instanceof StackOverflowError));
+	}
+
+	private static void bookFailed(File file, Throwable error, BookSink sink, Report report) {
+		report.failedCount.incrementAndGet();
+		try {
+			sink.bookFailed(file, error);
+		} catch (Exception e) {
+			log.error("Error handling failure of " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Finds the epub files in the given directory and its subdirectories.
+	 *
+	 * The directories are listed one by one as the iterator advances.
+	 *
+	 * @param directory the directory to search
+	 * @return all files in the directory tree whose name ends with ".epub"
+	 */
+	public static Iterator<File> findEpubFiles(File directory) {
+		return new EpubFileIterator(directory);
+	}
+
+	/**
+	 * Walks a directory tree depth-first, listing a directory only when the iterator reaches it.
+	 */
+	private static class EpubFileIterator implements Iterator<File> {
+
+		private final LinkedList<File> todo = new LinkedList<File>();
+		private File next;
+
+		public EpubFileIterator(File directory) {
+			todo.add(directory);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && ! todo.isEmpty()) {
+				File file = todo.removeFirst();
+				if (file.isDirectory()) {
+					File[] children = file.listFiles();
+					if (children != null) {
+						Arrays.sort(children);
+						todo.addAll(0, Arrays.asList(children));
+					}
+				} else if (file.getName().toLowerCase().endsWith(".epub")) {
+					next = file;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public File next() {
+			if (! hasNext()) {
+				throw new NoSuchElementException();
+			}
+			File result = next;
+			next = null;
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class BatchThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger batchCount = new AtomicInteger();
+		private final int batchNumber = batchCount.incrementAndGet();
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "epub-batch-" + batchNumber + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getMaxBooksInFlight() {
+		return maxBooksInFlight;
+	}
+
+	public EpubReader getEpubReader() {
+		return epubReader;
+	}
+
+	/**
+	 * The EpubReader used to read the books.
+	 *
+	 * The same reader is used by all threads.
+	 *
+	 * @param epubReader the EpubReader used to read the books
+	 */
+	public void setEpubReader(EpubReader epubReader) {
+		this.epubReader = epubReader;
+	}
+
+	public BookProcessor getBookProcessor() {
+		return bookProcessor;
+	}
+
+	/**
+	 * Processes every book after it is read and before it is handed to the sink.
+	 *
+	 * A BookProcessorPipeline can be used to apply several processors.
+	 * The processor is called from several threads at the same time.
+	 *
+	 * @param bookProcessor processes every book before it is handed to the sink
+	 */
+	public void setBookProcessor(BookProcessor bookProcessor) {
+		this.bookProcessor = bookProcessor;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @param encoding the encoding for XHTML files
+	 */
+	public void setEncoding(String encoding) {
+		this.encoding = encoding;
+	}
+}
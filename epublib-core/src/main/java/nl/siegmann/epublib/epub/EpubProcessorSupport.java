@@ -1,24 +1,31 @@
 package nl.siegmann.epublib.epub;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import nl.siegmann.epublib.Constants;
+import nl.siegmann.epublib.util.IOUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
 
@@ -33,6 +40,29 @@ public class EpubProcessorSupport {
 	private static final Logger log = LoggerFactory.getLogger(EpubProcessorSupport.class);
 	
 	protected static DocumentBuilderFactory documentBuilderFactory;
+
+	private static final String INDENT_OUTPUT_FEATURE = "http://xmlpull.org/v1/doc/features.html#indent-output";
+
+	private static volatile XmlPullParserFactory xmlPullParserFactory;
+	
+	/**
+	 * The contents of the dtd, entity and module files from epublib's classpath, by resource path.
+	 * Shared by all threads, every file is read from the classpath at most once.
+	 * 
+	 * Only the files that are found are cached, so the documents that are read cannot make it grow
+	 * beyond the fixed set of files that come with epublib.
+	 */
+	// package
+	static final ConcurrentMap<String, byte[]> entityCache = new ConcurrentHashMap<String, byte[]>();
+	private static final String ENTITY_DIRECTORY = "dtd/";
+	private static final String[] ENTITY_EXTENSIONS = { ".dtd", ".ent", ".mod" };
+
+	private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			return createDocumentBuilder();
+		}
+	};
 	
 	static {
 		init();
@@ -53,13 +83,59 @@ public class EpubProcessorSupport {
 				resourcePath = previousLocation + systemId.substring(systemId.lastIndexOf('/'));
 			}
 			
-			if (this.getClass().getClassLoader().getResource(resourcePath) == null) {
+			byte[] entityData = getEntityData(resourcePath);
+			if (entityData == null) {
 				throw new RuntimeException("remote resource is not cached : [" + systemId + "] cannot continue");
 			}
+			// no systemId on purpose: relative references are resolved against the previousLocation
+			return new InputSource(new ByteArrayInputStream(entityData));
+		}
+	}
 
-			InputStream in = EpubProcessorSupport.class.getClassLoader().getResourceAsStream(resourcePath);
-			return new InputSource(in);
+	/**
+	 * Gets the contents of the given dtd or entity file from epublib's classpath.
+	 * 
+	 * @param resourcePath
+	 * @return null if the file is not on the classpath.
+	 * @throws IOException
+	 */
+	// package
+	static byte[] getEntityData(String resourcePath) throws IOException {
+		byte[] result = entityCache.get(resourcePath);
+		if (result != null) {
+			return result;
 		}
+		InputStream in = EpubProcessorSupport.class.getClassLoader().getResourceAsStream(resourcePath);
+		if (in == null) {
+			return null;
+		}
+		try {
+			result = IOUtil.toByteArray(in);
+		} finally {
+			in.close();
+		}
+		if (isEntityFile(resourcePath)) {
+			byte[] cached = entityCache.putIfAbsent(resourcePath, result);
+			if (cached != null) {
+				result = cached;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Whether the given resource path is that of a dtd, entity or module file in epublib's dtd directory.
+	 */
+	private static boolean isEntityFile(String resourcePath) {
+		if (! resourcePath.startsWith(ENTITY_DIRECTORY) || resourcePath.contains("..")) {
+			return false;
+		}
+		for (String extension: ENTITY_EXTENSIONS) {
+			if (resourcePath.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	
@@ -74,19 +150,80 @@ public class EpubProcessorSupport {
 	}
 	
 	public static XmlSerializer createXmlSerializer(Writer out) {
+		return createXmlSerializer(out, true);
+	}
+
+	/**
+	 * Creates an XmlSerializer writing to the given Writer.
+	 * 
+	 * @param out
+	 * @param indentOutput whether to indent the xml. Without indentation the documents are smaller and faster to write.
+	 * @return an XmlSerializer writing to the given Writer, null if none could be created.
+	 */
+	public static XmlSerializer createXmlSerializer(Writer out, boolean indentOutput) {
 		XmlSerializer result = null;
 		try {
-			XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-			factory.setValidating(true);
-			result = factory.newSerializer();
-			result.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+			result = getXmlPullParserFactory().newSerializer();
 			result.setOutput(out);
+			setIndentOutput(result, indentOutput);
 		} catch (Exception e) {
 			log.error("When creating XmlSerializer: " + e.getClass().getName() + ": " + e.getMessage());
 		}
 		return result;
 	}
 
+	/**
+	 * Makes an XmlSerializer write a new document to the given Writer.
+	 * 
+	 * Allows one serializer to write many documents, one after the other.
+	 * 
+	 * @param serializer the serializer, which must have finished its previous document
+	 * @param out
+	 * @param indentOutput whether to indent the xml.
+	 * @throws IOException
+	 */
+	public static void resetXmlSerializer(XmlSerializer serializer, Writer out, boolean indentOutput) throws IOException {
+		serializer.setOutput(out);
+		setIndentOutput(serializer, indentOutput);
+	}
+
+	private static void setIndentOutput(XmlSerializer serializer, boolean indentOutput) {
+		serializer.setFeature(INDENT_OUTPUT_FEATURE, indentOutput);
+	}
+
+	/**
+	 * Creates a namespace aware XmlPullParser reading from the given Reader.
+	 * 
+	 * @param in
+	 * @return a namespace aware XmlPullParser reading from the given Reader.
+	 * @throws XmlPullParserException
+	 */
+	public static XmlPullParser createXmlPullParser(Reader in) throws XmlPullParserException {
+		XmlPullParser result = getXmlPullParserFactory().newPullParser();
+		result.setInput(in);
+		return result;
+	}
+
+	/**
+	 * The factory for the XmlPullParsers and XmlSerializers.
+	 * 
+	 * XmlPullParserFactory.newInstance searches the classpath, so it is done once.
+	 * The factory is not changed after it is created, which makes it safe to use by several threads.
+	 * 
+	 * @return the factory for the XmlPullParsers and XmlSerializers.
+	 * @throws XmlPullParserException
+	 */
+	static XmlPullParserFactory getXmlPullParserFactory() throws XmlPullParserException {
+		XmlPullParserFactory result = xmlPullParserFactory;
+		if (result == null) {
+			// when two threads get here at the same time both create a factory, which does no harm
+			result = XmlPullParserFactory.newInstance();
+			result.setNamespaceAware(true);
+			xmlPullParserFactory = result;
+		}
+		return result;
+	}
+
 	/**
 	 * Gets an EntityResolver that loads dtd's and such from the epublib classpath.
 	 * In order to enable the loading of relative urls the given EntityResolver contains the previousLocation.
@@ -103,6 +240,25 @@ public class EpubProcessorSupport {
 		return documentBuilderFactory;
 	}
 
+	/**
+	 * Gets the DocumentBuilder of the current thread, creating it on first use.
+	 * 
+	 * The DocumentBuilder is reset before it is returned, it can be used until the next call to this method from the same thread.
+	 * 
+	 * @return a DocumentBuilder that looks up dtd's and schema's from epublib's classpath.
+	 */
+	public static DocumentBuilder getDocumentBuilder() {
+		DocumentBuilder result = documentBuilders.get();
+		if (result == null) {
+			// creating the DocumentBuilder failed, try again next time
+			documentBuilders.remove();
+			return null;
+		}
+		result.reset();
+		result.setEntityResolver(getEntityResolver());
+		return result;
+	}
+
 	/**
 	 * Creates a DocumentBuilder that looks up dtd's and schema's from epublib's classpath.
 	 * 
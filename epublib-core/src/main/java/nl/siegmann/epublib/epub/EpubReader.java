@@ -6,16 +6,27 @@ import nl.siegmann.epublib.service.MediatypeService;
 import nl.siegmann.epublib.util.IOUtil;
 import nl.siegmann.epublib.util.ResourceUtil;
 import nl.siegmann.epublib.util.StringUtil;
+import nl.siegmann.epublib.util.zip.ZipDirectory;
+import nl.siegmann.epublib.util.zip.ZipDirectoryEntry;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -29,12 +40,17 @@ import java.util.zip.ZipInputStream;
 public class EpubReader {
 
 	private static final Logger log = LoggerFactory.getLogger(EpubReader.class);
-    private static final String UNZIP_PATH = "tmp/";
-    private static final int LIMIT_SIZE = 100 * 1024 * 1024;
+    public static final long DEFAULT_LAZY_LOAD_THRESHOLD = 100 * 1024 * 1024;
     private BookProcessor bookProcessor = BookProcessor.IDENTITY_BOOKPROCESSOR;
+    private long lazyLoadThreshold = DEFAULT_LAZY_LOAD_THRESHOLD;
+    private boolean streamingPackageReader = false;
+    private long maxResourceHeapSize = ResourceStorage.DEFAULT_MAX_RESOURCE_SIZE;
+    private long maxBookHeapSize = ResourceStorage.DEFAULT_MAX_SIZE;
+    private File tempDirectory;
+    private boolean offHeapResources = false;
 
     /**
-	 * Reads this EPUB if file size bigger than LIMIT_SIZE, will read lazily, else will all read into memory
+	 * Reads this EPUB if file size bigger than the lazyLoadThreshold, will read lazily, else will all read into memory
 	 *
 	 * @param fileName the file to load
 	 * @param encoding the encoding for XHTML files
@@ -70,7 +86,12 @@ public class EpubReader {
     }
 
     /**
-     * Reads this EPUB if file size bigger than LIMIT_SIZE, will read lazily, else will all read into memory
+     * Reads this EPUB if file size bigger than the lazyLoadThreshold, will read lazily, else will all read into memory
+     *
+     * When read lazily the resources of the lazyLoadedTypes are decompressed from the epub file
+     * when their data is first accessed, nothing is extracted to disk.
+     * The resources share one opened epub file for this, which is kept open until the book is closed with Book.close().
+     * Such a book is saved to its own file with EpubWriter.update(Book, File), not by writing it to a stream on that file.
      *
      * @param fileName the file to load
      * @param encoding the encoding for XHTML files
@@ -79,19 +100,401 @@ public class EpubReader {
      * @throws IOException
      */
     public Book readEpub( String fileName, String encoding, List<MediaTypeProperty> lazyLoadedTypes ) throws IOException {
-        Book result = new Book();
         Resources resources;
-        if (FileUtils.sizeOf(new File(fileName)) >= LIMIT_SIZE) {
-            String outPath = UNZIP_PATH + Thread.currentThread().getId() + "_" + System.currentTimeMillis();
-            unZip(new File(fileName), outPath);
-            resources = readLazyResources(fileName, outPath, encoding, lazyLoadedTypes);
-            result.setZipPath(outPath);
+        if (FileUtils.sizeOf(new File(fileName)) >= lazyLoadThreshold) {
+            ZipFile zipFile = new ZipFile(fileName);
+            try {
+                resources = readLazyResources(zipFile, encoding, lazyLoadedTypes, false);
+            } finally {
+                zipFile.close();
+            }
         } else {
-            resources = readResources(new ZipInputStream(new FileInputStream(fileName)), Constants.CHARACTER_ENCODING);
+            ZipInputStream in = new ZipInputStream(new FileInputStream(fileName));
+            try {
+                resources = readResources(in, encoding);
+            } finally {
+                in.close();
+            }
+        }
+        return readEpub(resources);
+    }
+
+    /**
+     * Reads the epub into memory, decompressing the zip entries concurrently on the given executor.
+     *
+     * @param fileName the file to load
+     * @param encoding the encoding for XHTML files
+     * @param executor the executor on which the zip entries are decompressed
+     * @return book
+     * @throws IOException
+     */
+    public Book readEpub(String fileName, String encoding, Executor executor) throws IOException {
+        ZipFile zipFile = new ZipFile(fileName);
+        try {
+            return readEpub(zipFile, encoding, executor);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Reads the epub into memory, decompressing the zip entries concurrently on the given executor.
+     *
+     * The entries are found through the zip's central directory, after which every entry is read and decompressed by a separate task.
+     * Books with many mid-sized entries benefit most from this.
+     *
+     * @param zipFile the epub file
+     * @param encoding the encoding for XHTML files
+     * @param executor the executor on which the zip entries are decompressed
+     * @return book
+     * @throws IOException
+     */
+    public Book readEpub(ZipFile zipFile, String encoding, Executor executor) throws IOException {
+        Resources resources = readResources(zipFile, encoding, executor);
+        return readEpub(resources);
+    }
+
+    /**
+     * Reads the epub on the given executor, without blocking the calling thread.
+     *
+     * @see #readEpubAsync(String, String, Executor)
+     *
+     * @param fileName the file to load
+     * @param executor the executor on which the epub is read
+     * @return the book once it has been read
+     */
+    public Future<Book> readEpubAsync(String fileName, Executor executor) {
+        return readEpubAsync(fileName, Constants.CHARACTER_ENCODING, executor);
+    }
+
+    /**
+     * Reads the epub on the given executor, without blocking the calling thread.
+     *
+     * The resources are read lazily. While the package document and table of contents are being parsed, a second task
+     * on the same executor already loads the XHTML documents, in the order they are stored in the epub file.
+     * The returned Future completes as soon as the Book is available, the loading of the XHTML documents may still be going on by then.
+     * Resources that are accessed before they were loaded are loaded on demand.
+     *
+     * The executor needs to have at least two threads for the parsing and the loading to overlap.
+     *
+     * @param fileName the file to load
+     * @param encoding the encoding for XHTML files
+     * @param executor the executor on which the epub is read
+     * @return the book once it has been read
+     */
+    public Future<Book> readEpubAsync(final String fileName, final String encoding, final Executor executor) {
+        FutureTask<Book> result = new FutureTask<Book>(new Callable<Book>() {
+
+            @Override
+            public Book call() throws IOException {
+                return readEpubPrefetching(fileName, encoding, executor);
+            }
+        });
+        executor.execute(result);
+        return result;
+    }
+
+    /**
+     * Loads the data of the given resource on the given executor.
+     *
+     * @param resource the resource to load
+     * @param executor the executor on which the resource's data is loaded
+     * @return the resource's data once it has been loaded
+     */
+    public Future<byte[]> readResourceAsync(final Resource resource, Executor executor) {
+        FutureTask<byte[]> result = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws IOException {
+                return resource.getData();
+            }
+        });
+        executor.execute(result);
+        return result;
+    }
+
+    private Book readEpubPrefetching(final String fileName, String encoding, Executor executor) throws IOException {
+        Resources resources;
+        ZipFile zipFile = new ZipFile(fileName);
+        try {
+            List<MediaTypeProperty> lazyLoadedTypes = new ArrayList<MediaTypeProperty>(Arrays.asList(MediatypeService.mediatypes));
+            lazyLoadedTypes.remove(MediatypeService.NCX);
+            resources = readLazyResources(zipFile, encoding, lazyLoadedTypes, false);
+        } finally {
+            zipFile.close();
+        }
+        final List<LazyResource> prefetchResources = new ArrayList<LazyResource>();
+        for (Resource resource: resources.getAll()) {
+            if (resource instanceof LazyResource && resource.getMediaTypeProperty() == MediatypeService.XHTML) {
+                prefetchResources.add((LazyResource) resource);
+            }
+        }
+        FutureTask<Void> prefetchTask = new FutureTask<Void>(new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+                ZipFile zipFile = new ZipFile(fileName);
+                try {
+                    for (LazyResource resource: prefetchResources) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            break;
+                        }
+                        resource.preload(zipFile);
+                    }
+                } finally {
+                    zipFile.close();
+                }
+                return null;
+            }
+        });
+        executor.execute(prefetchTask);
+        boolean success = false;
+        try {
+            Book result = readEpub(resources);
+            success = true;
+            return result;
+        } finally {
+            if (! success) {
+                prefetchTask.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Reads the epub from the given ZipFile, loading the data of each resource only when it is first accessed.
+     *
+     * Only the zip's central directory, the container and the package document are read up front.
+     * The ZipFile is used to load the resources' data later on, closing it is up to the caller.
+     *
+     * @param zipFile the epub file
+     * @param encoding the encoding for XHTML files
+     * @return book
+     * @throws IOException
+     */
+    public Book readEpubLazy(ZipFile zipFile, String encoding) throws IOException {
+        return readEpubLazy(zipFile, encoding, Arrays.asList(MediatypeService.mediatypes));
+    }
+
+    /**
+     * Reads the epub from the given ZipFile, loading the resources of the given MediaTypes only when they are first accessed.
+     *
+     * @param zipFile the epub file
+     * @param encoding the encoding for XHTML files
+     * @param lazyLoadedTypes a list of the MediaType to load lazily
+     * @return book
+     * @throws IOException
+     */
+    public Book readEpubLazy(ZipFile zipFile, String encoding, List<MediaTypeProperty> lazyLoadedTypes) throws IOException {
+        Resources resources = readLazyResources(zipFile, encoding, lazyLoadedTypes, true);
+        return readEpub(resources);
+    }
+
+    /**
+     * Reads the epub by memory-mapping the epub file.
+     *
+     * No resource data is read up front. Resources that are stored uncompressed are accessed straight from the mapped file,
+     * which keeps large audio, video and image files off the java heap. The epub file is mapped once for all resources.
+     *
+     * @see nl.siegmann.epublib.domain.MappedResource
+     *
+     * @param fileName the file to load
+     * @param encoding the encoding for XHTML files
+     * @return book
+     * @throws IOException
+     */
+    public Book readEpubMapped(String fileName, String encoding) throws IOException {
+        File file = new File(fileName);
+        ZipDirectory zipDirectory = ZipDirectory.read(file);
+        MappedZipFile mappedZipFile = new MappedZipFile(file);
+        Resources resources = new Resources();
+        for (ZipDirectoryEntry zipEntry: zipDirectory.getEntries()) {
+            if (zipEntry.isDirectory()) {
+                continue;
+            }
+            Resource resource = new MappedResource(mappedZipFile, zipEntry);
+            if (resource.getMediaTypeProperty() == MediatypeService.XHTML) {
+                resource.setInputEncoding(encoding);
+            }
+            resources.add(resource);
         }
         return readEpub(resources);
     }
 
+    /**
+     * Epub files of this size or larger are read lazily by readEpub(String, String, List).
+     *
+     * @return the file size in bytes from which epubs are read lazily.
+     */
+    public long getLazyLoadThreshold() {
+        return lazyLoadThreshold;
+    }
+
+    public void setLazyLoadThreshold(long lazyLoadThreshold) {
+        this.lazyLoadThreshold = lazyLoadThreshold;
+    }
+
+    /**
+     * Creates the storage for the resources of one book that are read into memory.
+     */
+    private ResourceStorage createResourceStorage() {
+        return new ResourceStorage(maxResourceHeapSize, maxBookHeapSize, tempDirectory, offHeapResources);
+    }
+
+    /**
+     * The maximum size of a resource that is read onto the heap, larger resources are kept in a temporary file.
+     *
+     * @return the maximum size in bytes of a resource that is read onto the heap.
+     */
+    public long getMaxResourceHeapSize() {
+        return maxResourceHeapSize;
+    }
+
+    public void setMaxResourceHeapSize(long maxResourceHeapSize) {
+        this.maxResourceHeapSize = maxResourceHeapSize;
+    }
+
+    /**
+     * The maximum size of all resources of a book that are read onto the heap together.
+     *
+     * Once a book has this much on the heap its other resources are kept in temporary files.
+     * Does not apply to resources that are read lazily, these are loaded from the epub file when accessed.
+     *
+     * @return the maximum size in bytes of all resources of a book that are read onto the heap together.
+     */
+    public long getMaxBookHeapSize() {
+        return maxBookHeapSize;
+    }
+
+    public void setMaxBookHeapSize(long maxBookHeapSize) {
+        this.maxBookHeapSize = maxBookHeapSize;
+    }
+
+    /**
+     * The directory for the temporary files of resources that do not fit on the heap, null for the system's temporary directory.
+     *
+     * @return the directory for the temporary files.
+     */
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Whether the resources that are read into memory are kept in direct ByteBuffers instead of on the heap.
+     *
+     * The maxResourceHeapSize and maxBookHeapSize then limit the memory off the heap.
+     * Off-heap memory is given back by closing the resources, see Resource.close().
+     *
+     * @return whether the resources that are read into memory are kept off the heap.
+     */
+    public boolean isOffHeapResources() {
+        return offHeapResources;
+    }
+
+    public void setOffHeapResources(boolean offHeapResources) {
+        this.offHeapResources = offHeapResources;
+    }
+
+    /**
+     * Whether the package document is read with the streaming PackageDocumentPullReader instead of the DOM based PackageDocumentReader.
+     *
+     * @return whether the package document is read with the streaming PackageDocumentPullReader.
+     */
+    public boolean isStreamingPackageReader() {
+        return streamingPackageReader;
+    }
+
+    /**
+     * Reads the package document in a single pass with a pull parser instead of building a DOM first.
+     * Both produce the same Book, the streaming reader is faster and uses less memory for package documents with many manifest items.
+     *
+     * @param streamingPackageReader
+     */
+    public void setStreamingPackageReader(boolean streamingPackageReader) {
+        this.streamingPackageReader = streamingPackageReader;
+    }
+
+    /**
+     * Reads only the metadata and the cover image href of the epub.
+     *
+     * @see #readMetadata(ZipFile, boolean)
+     *
+     * @param fileName the file to load
+     * @return the epub's metadata
+     * @throws IOException
+     */
+    public PackageMetadata readMetadata(String fileName) throws IOException {
+        return readMetadata(fileName, true);
+    }
+
+    /**
+     * Reads only the metadata of the epub.
+     *
+     * @see #readMetadata(ZipFile, boolean)
+     *
+     * @param fileName the file to load
+     * @param findCoverImage whether to look up the href of the cover image
+     * @return the epub's metadata
+     * @throws IOException
+     */
+    public PackageMetadata readMetadata(String fileName, boolean findCoverImage) throws IOException {
+        ZipFile zipFile = new ZipFile(fileName);
+        try {
+            return readMetadata(zipFile, findCoverImage);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Reads only the metadata of the epub.
+     *
+     * Only the container and the package document are read from the zip file, no Book or Resources are created.
+     * Useful for quickly cataloging large numbers of epubs.
+     *
+     * @param zipFile the epub file
+     * @param findCoverImage whether to look up the href of the cover image
+     * @return the epub's metadata
+     * @throws IOException if the package document could not be found or parsed
+     */
+    public PackageMetadata readMetadata(ZipFile zipFile, boolean findCoverImage) throws IOException {
+        String packageHref = getPackageResourceHref(readZipEntry(zipFile, "META-INF/container.xml"));
+        Resource packageResource = readZipEntry(zipFile, packageHref);
+        if (packageResource == null) {
+            throw new IOException("Package document " + packageHref + " not found in " + zipFile.getName());
+        }
+        Document packageDocument;
+        try {
+            packageDocument = ResourceUtil.getAsDocument(packageResource);
+        } catch (SAXException e) {
+            throw new IOException("Unable to parse package document " + packageHref + ": " + e.getMessage(), e);
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        Metadata metadata = PackageDocumentMetadataReader.readMetadata(packageDocument, null);
+        String coverImageHref = null;
+        if (findCoverImage) {
+            coverImageHref = PackageDocumentReader.findCoverImageHref(packageDocument);
+        }
+        return new PackageMetadata(packageHref, PackageDocumentReader.readVersion(packageDocument), metadata, coverImageHref);
+    }
+
+    private static Resource readZipEntry(ZipFile zipFile, String name) throws IOException {
+        ZipEntry zipEntry = zipFile.getEntry(name);
+        if (zipEntry == null) {
+            return null;
+        }
+        InputStream in = zipFile.getInputStream(zipEntry);
+        try {
+            return ResourceUtil.createResource(zipEntry, in);
+        } finally {
+            in.close();
+        }
+    }
+
     public Book readEpub(Resources resources) {
         Book result = new Book();
         handleMimeType(result, resources);
@@ -127,7 +530,11 @@ public class EpubReader {
 	private Resource processPackageResource(String packageResourceHref, Book book, Resources resources) {
 		Resource packageResource = resources.remove(packageResourceHref);
 		try {
-			PackageDocumentReader.read(packageResource, this, book, resources);
+			if (streamingPackageReader) {
+				PackageDocumentPullReader.read(packageResource, this, book, resources);
+			} else {
+				PackageDocumentReader.read(packageResource, this, book, resources);
+			}
 		} catch (Exception e) {
 			log.error(e.getMessage(), e);
 		}
@@ -135,10 +542,13 @@ public class EpubReader {
 	}
 
 	private String getPackageResourceHref(Resources resources) {
+		return getPackageResourceHref(resources.remove("META-INF/container.xml"));
+	}
+
+	private String getPackageResourceHref(Resource containerResource) {
 		String defaultResult = "OEBPS/content.opf";
 		String result = defaultResult;
 
-		Resource containerResource = resources.remove("META-INF/container.xml");
 		if(containerResource == null) {
 			return result;
 		}
@@ -159,44 +569,173 @@ public class EpubReader {
 		resources.remove("mimetype");
 	}
 	
-	private Resources readLazyResources( String fileName, String outPath, String defaultHtmlEncoding,
-			List<MediaTypeProperty> lazyLoadedTypes) throws IOException {
-				
-		ZipInputStream in = new ZipInputStream(new FileInputStream(fileName));
-		
+	/**
+	 * Creates the resources for the entries of the given zipFile.
+	 * 
+	 * Resources of the lazyLoadedTypes get their data from the zip file on first access.
+	 * If shareZipFile is true they will use the given zipFile for this, otherwise they share one SharedZipFile
+	 * that opens the file again when they are first read.
+	 */
+	private Resources readLazyResources(ZipFile zipFile, String defaultHtmlEncoding,
+			List<MediaTypeProperty> lazyLoadedTypes, boolean shareZipFile) throws IOException {
 		Resources result = new Resources();
-		for(ZipEntry zipEntry = in.getNextEntry(); zipEntry != null; zipEntry = in.getNextEntry()) {
+		ResourceStorage storage = null;
+		SharedZipFile sharedZipFile = null;
+		Enumeration<? extends ZipEntry> entries = zipFile.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry zipEntry = entries.nextElement();
 			if(zipEntry.isDirectory()) {
 				continue;
 			}
-			
 			String href = zipEntry.getName();
-			MediaTypeProperty mediaTypeProperty = MediatypeService.determineMediaType(href);
-			
 			Resource resource;
-			
-			if ( lazyLoadedTypes.contains(mediaTypeProperty) ) {
-				resource = new Resource(outPath + "/" + href, zipEntry.getSize(), href);
-			} else {			
-				resource = new Resource( in, outPath + "/" + href, (int) zipEntry.getSize(), href );
+			if (! lazyLoadedTypes.contains(MediatypeService.determineMediaType(href))) {
+				if (storage == null) {
+					storage = createResourceStorage();
+				}
+				InputStream in = zipFile.getInputStream(zipEntry);
+				try {
+					resource = ResourceUtil.createResource(zipEntry, in, storage);
+				} finally {
+					in.close();
+				}
+			} else if (shareZipFile) {
+				resource = new LazyResource(zipFile, zipEntry);
+			} else {
+				if (sharedZipFile == null) {
+					sharedZipFile = new SharedZipFile(zipFile.getName());
+				}
+				resource = new LazyResource(sharedZipFile, zipEntry.getSize(), href);
 			}
-			
 			if(resource.getMediaTypeProperty() == MediatypeService.XHTML) {
 				resource.setInputEncoding(defaultHtmlEncoding);
 			}
 			result.add(resource);
 		}
-		
 		return result;
-	}	
+	}
+
+	private Resources readResources(final ZipFile zipFile, String defaultHtmlEncoding, Executor executor) throws IOException {
+		final ResourceStorage storage = createResourceStorage();
+		final RunningTasks runningTasks = new RunningTasks();
+		List<FutureTask<Resource>> tasks = new ArrayList<FutureTask<Resource>>(zipFile.size());
+		Resources result = new Resources();
+		boolean read = false;
+		try {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry zipEntry = entries.nextElement();
+				if(zipEntry.isDirectory()) {
+					continue;
+				}
+				FutureTask<Resource> task = new FutureTask<Resource>(new Callable<Resource>() {
+
+					@Override
+					public Resource call() throws IOException {
+						if (! runningTasks.start()) {
+							return null;
+						}
+						try {
+							InputStream in = zipFile.getInputStream(zipEntry);
+							try {
+								return ResourceUtil.createResource(zipEntry, in, storage);
+							} finally {
+								in.close();
+							}
+						} finally {
+							runningTasks.finish();
+						}
+					}
+				});
+				tasks.add(task);
+				executor.execute(task);
+			}
+			for (FutureTask<Resource> task: tasks) {
+				Resource resource = getResult(task);
+				if(resource.getMediaTypeProperty() == MediatypeService.XHTML) {
+					resource.setInputEncoding(defaultHtmlEncoding);
+				}
+				result.add(resource);
+			}
+			read = true;
+		} finally {
+			if (! read) {
+				// the zip file may be closed once this returns, so the tasks that are reading it are waited for
+				for (FutureTask<Resource> task: tasks) {
+					task.cancel(false);
+				}
+				runningTasks.stop();
+				storage.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Keeps track of the tasks that are reading resources, so that a read that failed can wait for them.
+	 */
+	private static class RunningTasks {
+
+		private int running = 0;
+		private boolean stopped = false;
+
+		/**
+		 * @return whether the task may run, false once stop() was called.
+		 */
+		synchronized boolean start() {
+			if (stopped) {
+				return false;
+			}
+			running++;
+			return true;
+		}
+
+		synchronized void finish() {
+			running--;
+			notifyAll();
+		}
+
+		/**
+		 * Keeps new tasks from running and waits for the running ones to finish.
+		 */
+		synchronized void stop() {
+			stopped = true;
+			boolean interrupted = false;
+			while (running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static Resource getResult(FutureTask<Resource> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading resources");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
 
 	private Resources readResources(ZipInputStream in, String defaultHtmlEncoding) throws IOException {
 		Resources result = new Resources();
+		ResourceStorage storage = createResourceStorage();
 		for(ZipEntry zipEntry = in.getNextEntry(); zipEntry != null; zipEntry = in.getNextEntry()) {
 			if(zipEntry.isDirectory()) {
 				continue;
 			}
-			Resource resource = ResourceUtil.createResource(zipEntry, in);
+			Resource resource = ResourceUtil.createResource(zipEntry, in, storage);
 			if(resource.getMediaTypeProperty() == MediatypeService.XHTML) {
 				resource.setInputEncoding(defaultHtmlEncoding);
 			}
@@ -205,6 +744,12 @@ public class EpubReader {
 		return result;
 	}
 
+    /**
+     * Extracts all entries of the given zip file to the given directory.
+     *
+     * @deprecated epubs are no longer extracted when read lazily, the resources are read from the epub file itself.
+     */
+    @Deprecated
     public static void unZip(File file, String destDir) throws IOException {
         ZipFile zipFile;
         zipFile = new ZipFile(file);
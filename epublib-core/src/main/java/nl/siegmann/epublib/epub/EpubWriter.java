@@ -1,20 +1,37 @@
 package nl.siegmann.epublib.epub;
 
+import nl.siegmann.epublib.Constants;
 import nl.siegmann.epublib.domain.*;
 import nl.siegmann.epublib.epub.impl.Epub2PackageDocumentWriter;
 import nl.siegmann.epublib.epub.impl.Epub3PackageDocumentWriter;
 import nl.siegmann.epublib.service.MediatypeService;
 import nl.siegmann.epublib.util.IOUtil;
 import nl.siegmann.epublib.util.StringUtil;
+import nl.siegmann.epublib.util.zip.DeflatedData;
+import nl.siegmann.epublib.util.zip.RawZipOutputStream;
+import nl.siegmann.epublib.util.zip.ZipDirectory;
+import nl.siegmann.epublib.util.zip.ZipDirectoryEntry;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Generates an epub file. Not thread-safe, single use object.
@@ -30,6 +47,12 @@ public class EpubWriter {
 	static final String EMPTY_NAMESPACE_PREFIX = "";
 	
 	private BookProcessor bookProcessor = BookProcessor.IDENTITY_BOOKPROCESSOR;
+	private Executor executor;
+	private CompressionPolicy compressionPolicy = new MediaTypeCompressionPolicy();
+	private int maxPendingEntries = Runtime.getRuntime().availableProcessors() * 2;
+	private int maxParallelDeflateSize = 16 * 1024 * 1024;
+	private boolean indentOutput = true;
+	private XmlSerializer xmlSerializer;
 
 	public EpubWriter() {
 		this(BookProcessor.IDENTITY_BOOKPROCESSOR);
@@ -41,6 +64,17 @@ public class EpubWriter {
 	}
 
 
+	/**
+	 * Writes the book to the given stream.
+	 * 
+	 * Resources that were read lazily get their data from their epub file while they are written, so a book must
+	 * not be written to a stream on the file it was read from: opening the stream empties that file.
+	 * Use update(Book, File) to save a book to the file it was read from.
+	 * 
+	 * @param book
+	 * @param out
+	 * @throws IOException if the data of one of the resources could not be read
+	 */
 	public void write(Book book, OutputStream out) throws IOException {
 		write(book, out, Version.V2);
     }
@@ -51,24 +85,227 @@ public class EpubWriter {
 
     public void write(Book book, OutputStream out, Version version) throws IOException {
         book = processBook(book);
-        ZipOutputStream resultStream = new ZipOutputStream(out);
-        writeMimeType(resultStream);
-        writeContainer(resultStream);
-        if (book.getResources().containsByHref("META-INF/encryption.xml")) {
-            writeEncryptFile(resultStream, book);
-        }
-        initTOCResource(book);
-        if (version == Version.V3) {
-            initNavResource(book);
-        }
-        writeResources(book, resultStream);
-        writePackageDocument(book, resultStream, version);
-        resultStream.close();
+        writeBook(book, out, version);
         if (StringUtil.isNotBlank(book.getZipPath())) {
             FileUtils.deleteQuietly(new File(book.getZipPath()));
         }
     }
 
+	public void update(Book book, File epubFile) throws IOException {
+		update(book, epubFile, Version.V2);
+	}
+
+	/**
+	 * Saves the book to the given epub file, rewriting only the parts that changed.
+	 * 
+	 * The zip entries of the resources that were read lazily from this file and that have not been changed since
+	 * are kept where they are. The other resources, the package document, the table of contents and a new central
+	 * directory are written over the old central directory.
+	 * The entries that were replaced remain in the file as unused space until compact is called.
+	 * 
+	 * The file is changed in place, if writing fails halfway the file is left damaged.
+	 * It should not be opened as a java.util.zip.ZipFile while it is being updated.
+	 * 
+	 * Files that do not start with an uncompressed mimetype entry, or that are not zip files at all,
+	 * are written completely, as by write.
+	 * 
+	 * @param book the book to save
+	 * @param epubFile the epub file to update
+	 * @param version
+	 * @throws IOException
+	 */
+	public void update(Book book, File epubFile, Version version) throws IOException {
+		book = processBook(book);
+		ZipDirectory zipDirectory = null;
+		if (epubFile.exists()) {
+			try {
+				zipDirectory = ZipDirectory.read(epubFile);
+			} catch (IOException e) {
+				log.warn("Unable to update " + epubFile + " in place, writing it completely: " + e.getMessage());
+			}
+		}
+		if (zipDirectory == null || ! isUpdatable(zipDirectory)) {
+			replaceBook(book, epubFile, version);
+		} else {
+			updateBook(book, zipDirectory, version);
+		}
+		if (StringUtil.isNotBlank(book.getZipPath())
+				&& ! isSameFile(book.getZipPath(), epubFile)) {
+			FileUtils.deleteQuietly(new File(book.getZipPath()));
+		}
+	}
+
+	/**
+	 * Rewrites the epub file without the unused space left behind by update.
+	 * 
+	 * The entries are copied as they are, without decompressing them.
+	 * 
+	 * @param epubFile
+	 * @throws IOException
+	 */
+	public void compact(File epubFile) throws IOException {
+		ZipDirectory zipDirectory = ZipDirectory.read(epubFile);
+		File tempFile = createTempFile(epubFile);
+		try {
+			RandomAccessFile in = new RandomAccessFile(epubFile, "r");
+			try {
+				OutputStream out = new FileOutputStream(tempFile);
+				try {
+					RawZipOutputStream resultStream = new RawZipOutputStream(out);
+					for (ZipDirectoryEntry zipEntry: zipDirectory.getEntries()) {
+						resultStream.writeRawEntry(zipEntry.getName(), zipEntry, in);
+					}
+					resultStream.finish();
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			replaceFile(tempFile, epubFile);
+		} finally {
+			FileUtils.deleteQuietly(tempFile);
+		}
+	}
+
+	private void writeBook(Book book, OutputStream out, Version version) throws IOException {
+		initGeneratedResources(book, version);
+		RawZipOutputStream resultStream = new RawZipOutputStream(out);
+		writeMimeType(resultStream);
+		RawEntrySources rawEntrySources = new RawEntrySources();
+		try {
+			writeEntries(book, resultStream, version, Collections.<String>emptySet(), rawEntrySources);
+		} finally {
+			rawEntrySources.close();
+		}
+		resultStream.close();
+	}
+
+	/**
+	 * Writes the changed parts of the book over the central directory of the epub file.
+	 * 
+	 * @param book
+	 * @param zipDirectory the central directory of the epub file, as it was before the update
+	 * @param version
+	 * @throws IOException
+	 */
+	private void updateBook(Book book, ZipDirectory zipDirectory, Version version) throws IOException {
+		File epubFile = zipDirectory.getFile();
+		initGeneratedResources(book, version);
+		List<ZipDirectoryEntry> keptEntries = new ArrayList<ZipDirectoryEntry>();
+		keptEntries.add(zipDirectory.getEntries().get(0));
+		Set<String> keptEntryNames = new HashSet<String>();
+		for (Resource resource: book.getResources().getAll()) {
+			if (! isRawCopy(resource) || ! isSameFile(((LazyResource) resource).getZipFileName(), epubFile)) {
+				continue;
+			}
+			String name = "OEBPS/" + resource.getHref();
+			ZipDirectoryEntry zipEntry = zipDirectory.getEntry(((LazyResource) resource).getOriginalHref());
+			if (zipEntry != null && zipEntry.getName().equals(name)) {
+				keptEntries.add(zipEntry);
+				keptEntryNames.add(name);
+			} else if (zipEntry == null || ! RawZipOutputStream.canCopy(zipEntry)) {
+				// its data cannot be read from the file anymore once the central directory is overwritten,
+				// so it is pinned in memory instead of left in the ResourceCache, which may evict it
+				resource.setData(resource.getData());
+			}
+		}
+		RawEntrySources rawEntrySources = new RawEntrySources();
+		RandomAccessFile file = new RandomAccessFile(epubFile, "rw");
+		try {
+			// the renamed resources are copied from the part of the file that is not overwritten
+			rawEntrySources.put(zipDirectory);
+			file.seek(zipDirectory.getCentralDirectoryOffset());
+			RawZipOutputStream resultStream = new RawZipOutputStream(new FileOutputStream(file.getFD()),
+					zipDirectory.getCentralDirectoryOffset(), keptEntries);
+			writeEntries(book, resultStream, version, keptEntryNames, rawEntrySources);
+			resultStream.finish();
+			file.setLength(resultStream.getPosition());
+		} finally {
+			try {
+				file.close();
+			} finally {
+				rawEntrySources.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the book completely to a temporary file, which then replaces the epub file.
+	 */
+	private void replaceBook(Book book, File epubFile, Version version) throws IOException {
+		File tempFile = createTempFile(epubFile);
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				writeBook(book, out, version);
+			} finally {
+				out.close();
+			}
+			replaceFile(tempFile, epubFile);
+		} finally {
+			FileUtils.deleteQuietly(tempFile);
+		}
+	}
+
+	/**
+	 * Whether the zip file starts with an uncompressed mimetype entry that can be kept as is.
+	 */
+	private static boolean isUpdatable(ZipDirectory zipDirectory) {
+		if (zipDirectory.size() == 0) {
+			return false;
+		}
+		ZipDirectoryEntry firstEntry = zipDirectory.getEntries().get(0);
+		return "mimetype".equals(firstEntry.getName())
+				&& firstEntry.isStored()
+				&& firstEntry.getLocalHeaderOffset() == 0;
+	}
+
+	private static boolean isSameFile(String fileName, File file) throws IOException {
+		return fileName != null && new File(fileName).getCanonicalFile().equals(file.getCanonicalFile());
+	}
+
+	private static File createTempFile(File epubFile) throws IOException {
+		return File.createTempFile(epubFile.getName(), ".tmp", epubFile.getAbsoluteFile().getParentFile());
+	}
+
+	private static void replaceFile(File source, File target) throws IOException {
+		if (source.renameTo(target)) {
+			return;
+		}
+		// renaming onto an existing file fails on some platforms
+		FileUtils.copyFile(source, target);
+	}
+
+	/**
+	 * Creates the table of contents, and for epub 3 the navigation document, and adds them to the book.
+	 */
+	private void initGeneratedResources(Book book, Version version) {
+		initTOCResource(book);
+		if (version == Version.V3) {
+			initNavResource(book);
+		}
+	}
+
+	/**
+	 * Writes all entries that follow the mimetype.
+	 * 
+	 * @param book
+	 * @param resultStream
+	 * @param version
+	 * @param keptEntryNames the names of the entries of resources that are already in the zip file
+	 * @param rawEntrySources
+	 * @throws IOException
+	 */
+	private void writeEntries(Book book, RawZipOutputStream resultStream, Version version, Set<String> keptEntryNames, RawEntrySources rawEntrySources) throws IOException {
+		writeContainer(resultStream);
+		if (book.getResources().containsByHref("META-INF/encryption.xml")) {
+			writeEncryptFile(resultStream, book);
+		}
+		writeResources(book, resultStream, keptEntryNames, rawEntrySources);
+		writePackageDocument(book, resultStream, version);
+	}
+
 	private Book processBook(Book book) {
 		if (bookProcessor != null) {
 			book = bookProcessor.processBook(book);
@@ -79,7 +316,7 @@ public class EpubWriter {
 	private void initTOCResource(Book book) {
 		Resource tocResource;
 		try {
-			tocResource = NCXDocument.createNCXResource(book);
+			tocResource = NCXDocument.createGeneratedNCXResource(book);
 			Resource currentTocResource = book.getSpine().getTocResource();
 			if (currentTocResource != null) {
 				book.getResources().remove(currentTocResource.getHref());
@@ -96,20 +333,232 @@ public class EpubWriter {
     private void initNavResource(Book book) {
         if (book.getNavResource() != null)
             return;
-        Resource navResource;
-        try {
-            navResource = NavDocument.createNavResource(book);
-            book.getResources().add(navResource);
-            book.getManifest().addReference(new ManifestItemReference(navResource, ManifestItemProperties.NAV));
-        } catch (IOException e) {
-            log.error("Error writeing nav document: " + e.getClass().getName() + ": " + e.getMessage());
-        }
+        Resource navResource = NavDocument.createGeneratedNavResource(book);
+        book.getResources().add(navResource);
+        book.getManifest().addReference(new ManifestItemReference(navResource, ManifestItemProperties.NAV));
     }
 
 
-    private void writeResources(Book book, ZipOutputStream resultStream) throws IOException {
+    private void writeResources(Book book, RawZipOutputStream resultStream, Set<String> keptEntryNames, RawEntrySources rawEntrySources) throws IOException {
+		if (executor != null) {
+			writeResourcesParallel(book, resultStream, keptEntryNames, rawEntrySources);
+			return;
+		}
 		for(Resource resource: book.getResources().getAll()) {
-			writeResource(resource, resultStream);
+			if (resource == null || keptEntryNames.contains("OEBPS/" + resource.getHref())) {
+				continue;
+			}
+			if (! writeRawResource(resource, resultStream, rawEntrySources)) {
+				writeResource(resource, resultStream);
+			}
+		}
+	}
+
+	/**
+	 * Writes the resources in the same order as writeResources, deflating them on the executor.
+	 * 
+	 * At most maxPendingEntries resources are deflated ahead of the one that is being written,
+	 * which limits the memory used by the deflated data that is waiting to be written.
+	 * 
+	 * @param book
+	 * @param resultStream
+	 * @param keptEntryNames
+	 * @param rawEntrySources
+	 * @throws IOException
+	 */
+	private void writeResourcesParallel(Book book, RawZipOutputStream resultStream, Set<String> keptEntryNames, RawEntrySources rawEntrySources) throws IOException {
+		LinkedList<PendingEntry> pendingEntries = new LinkedList<PendingEntry>();
+		try {
+			for(Resource resource: book.getResources().getAll()) {
+				if (resource == null || keptEntryNames.contains("OEBPS/" + resource.getHref())) {
+					continue;
+				}
+				if (pendingEntries.size() >= maxPendingEntries) {
+					writePendingEntry(pendingEntries.removeFirst(), resultStream, rawEntrySources);
+				}
+				PendingEntry pendingEntry = new PendingEntry(resource);
+				// generated documents are serialized straight into the zip file by the calling thread
+				// large resources and those of unknown size are deflated while streaming them by the calling thread
+				if (! isRawCopy(resource) && ! (resource instanceof GeneratedResource)
+						&& resource.getSize() >= 0 && resource.getSize() <= maxParallelDeflateSize) {
+					int compressionLevel = compressionPolicy.getCompressionLevel(resource);
+					// stored resources need no compressing, they are written by the calling thread
+					if (compressionLevel != Deflater.NO_COMPRESSION) {
+						pendingEntry.deflateTask = createDeflateTask(resource, compressionLevel);
+						executor.execute(pendingEntry.deflateTask);
+					}
+				}
+				pendingEntries.add(pendingEntry);
+			}
+			while (! pendingEntries.isEmpty()) {
+				writePendingEntry(pendingEntries.removeFirst(), resultStream, rawEntrySources);
+			}
+		} finally {
+			for (PendingEntry pendingEntry: pendingEntries) {
+				if (pendingEntry.deflateTask != null) {
+					pendingEntry.deflateTask.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A resource that is waiting to be written, with the task that is deflating its data.
+	 */
+	private static class PendingEntry {
+		private final Resource resource;
+		// null if the resource is not deflated by the executor
+		private FutureTask<DeflatedData> deflateTask;
+
+		public PendingEntry(Resource resource) {
+			this.resource = resource;
+		}
+	}
+
+	private FutureTask<DeflatedData> createDeflateTask(final Resource resource, final int compressionLevel) {
+		// room for incompressible data, which grows a little when deflated
+		final int maxLength = (int) Math.min((long) maxParallelDeflateSize * 2 + IOUtil.IO_COPY_BUFFER_SIZE, IOUtil.MAX_ARRAY_SIZE);
+		return new FutureTask<DeflatedData>(new Callable<DeflatedData>() {
+
+			@Override
+			public DeflatedData call() throws IOException {
+				InputStream inputStream = resource.getInputStream();
+				try {
+					return DeflatedData.deflate(inputStream, compressionLevel, maxLength);
+				} finally {
+					inputStream.close();
+				}
+			}
+		});
+	}
+
+	private void writePendingEntry(PendingEntry pendingEntry, RawZipOutputStream resultStream, RawEntrySources rawEntrySources) throws IOException {
+		if (pendingEntry.deflateTask == null) {
+			if (! writeRawResource(pendingEntry.resource, resultStream, rawEntrySources)) {
+				writeResource(pendingEntry.resource, resultStream);
+			}
+			return;
+		}
+		DeflatedData deflatedData;
+		try {
+			deflatedData = pendingEntry.deflateTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while deflating " + pendingEntry.resource.getHref());
+		} catch (ExecutionException e) {
+			// for instance a resource that turned out larger than its size said
+			log.warn("Unable to deflate " + pendingEntry.resource.getHref() + " ahead, writing it directly: " + e.getCause().getMessage());
+			writeResource(pendingEntry.resource, resultStream);
+			return;
+		}
+		resultStream.writeDeflatedEntry(new ZipEntry("OEBPS/" + pendingEntry.resource.getHref()), deflatedData);
+	}
+
+	/**
+	 * Whether the resource is a lazily read resource that has not been changed.
+	 * 
+	 * The zip entries of these are copied as is by writeRawResource.
+	 */
+	private static boolean isRawCopy(Resource resource) {
+		return resource instanceof LazyResource && ! ((LazyResource) resource).isModified();
+	}
+
+	/**
+	 * Copies the compressed data of a resource that was read lazily and has not been changed since
+	 * straight from the epub it was read from.
+	 * 
+	 * Everything that can make the copy impossible is checked before anything is written, in which case
+	 * false is returned and the resource is to be written the normal way. Once the copying has started a failure
+	 * leaves a partial entry in the resultStream, so that is thrown instead.
+	 * 
+	 * @param resource
+	 * @param resultStream
+	 * @param rawEntrySources
+	 * @return whether the resource was written.
+	 * @throws IOException if the copying failed halfway.
+	 */
+	private boolean writeRawResource(Resource resource, RawZipOutputStream resultStream, RawEntrySources rawEntrySources) throws IOException {
+		if (! isRawCopy(resource)) {
+			return false;
+		}
+		LazyResource lazyResource = (LazyResource) resource;
+		RawEntrySource rawEntrySource;
+		ZipDirectoryEntry zipEntry;
+		try {
+			rawEntrySource = rawEntrySources.get(lazyResource.getZipFileName());
+		} catch (IOException e) {
+			log.warn("Unable to copy " + resource.getHref() + " from " + lazyResource.getZipFileName() + ": " + e.getMessage());
+			return false;
+		}
+		if (lazyResource instanceof MappedResource) {
+			zipEntry = ((MappedResource) lazyResource).getZipEntry();
+		} else {
+			zipEntry = rawEntrySource.zipDirectory.getEntry(lazyResource.getOriginalHref());
+		}
+		if (zipEntry == null || ! RawZipOutputStream.canCopy(zipEntry)) {
+			return false;
+		}
+		try {
+			// checks that the local header can be read and fits the central directory entry
+			long dataOffset = ZipDirectory.getDataOffset(zipEntry, rawEntrySource.file);
+			if (dataOffset + zipEntry.getCompressedSize() > rawEntrySource.file.length()) {
+				throw new IOException("Zip entry " + zipEntry.getName() + " extends beyond the end of the file");
+			}
+		} catch (IOException e) {
+			log.warn("Unable to copy " + resource.getHref() + " from " + lazyResource.getZipFileName() + ": " + e.getMessage());
+			return false;
+		}
+		resultStream.writeRawEntry("OEBPS/" + resource.getHref(), zipEntry, rawEntrySource.file);
+		return true;
+	}
+
+	/**
+	 * An opened epub file that resources are copied from.
+	 */
+	private static class RawEntrySource {
+		private final ZipDirectory zipDirectory;
+		private final RandomAccessFile file;
+
+		public RawEntrySource(ZipDirectory zipDirectory, RandomAccessFile file) {
+			this.zipDirectory = zipDirectory;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * The epub files resources are copied from, each one is opened only once.
+	 */
+	private static class RawEntrySources {
+		private final Map<String, RawEntrySource> sources = new HashMap<String, RawEntrySource>();
+
+		public RawEntrySource get(String zipFileName) throws IOException {
+			File file = new File(zipFileName).getCanonicalFile();
+			RawEntrySource result = sources.get(file.getPath());
+			if (result == null) {
+				result = put(ZipDirectory.read(file));
+			}
+			return result;
+		}
+
+		/**
+		 * Copies the resources of the given zip file using the given central directory,
+		 * instead of reading it from the file.
+		 */
+		public RawEntrySource put(ZipDirectory zipDirectory) throws IOException {
+			File file = zipDirectory.getFile().getCanonicalFile();
+			RawEntrySource result = new RawEntrySource(zipDirectory, new RandomAccessFile(file, "r"));
+			sources.put(file.getPath(), result);
+			return result;
+		}
+
+		public void close() {
+			for (RawEntrySource source: sources.values()) {
+				try {
+					source.file.close();
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
+				}
+			}
 		}
 	}
 
@@ -118,27 +567,100 @@ public class EpubWriter {
 	 * 
 	 * @param resource
 	 * @param resultStream
-	 * @throws IOException
+	 * @throws IOException if the resource's data could not be read or written
 	 */
-	private void writeResource(Resource resource, ZipOutputStream resultStream)
+	private void writeResource(Resource resource, RawZipOutputStream resultStream)
 			throws IOException {
 		if(resource == null) {
 			return;
 		}
 		try {
-			resultStream.putNextEntry(new ZipEntry("OEBPS/" + resource.getHref()));
-			InputStream inputStream = resource.getInputStream();
-			IOUtil.copy(inputStream, resultStream);
-			inputStream.close();
+			int compressionLevel = compressionPolicy.getCompressionLevel(resource);
+			if (compressionLevel == Deflater.NO_COMPRESSION) {
+				writeStoredResource(resource, resultStream);
+				return;
+			}
+			ZipEntry zipEntry = new ZipEntry("OEBPS/" + resource.getHref());
+			resultStream.setLevel(compressionLevel);
+			resultStream.putNextEntry(zipEntry);
+			if (resource instanceof GeneratedResource && ((GeneratedResource) resource).isGenerated()) {
+				XmlSerializer xmlSerializer = getXmlSerializer(resultStream);
+				((GeneratedResource) resource).write(xmlSerializer);
+				xmlSerializer.flush();
+			} else {
+				InputStream inputStream = resource.getInputStream();
+				try {
+					IOUtil.copyLarge(inputStream, resultStream);
+				} finally {
+					inputStream.close();
+				}
+			}
+			resultStream.closeEntry();
+		} catch (IOException e) {
+			// skipping the entry would silently drop the resource from the book, for instance when a lazy
+			// resource is read from the epub file that is being overwritten
+			throw new IOException("Unable to write " + resource.getHref() + ": " + e.getMessage(), e);
 		} catch(Exception e) {
 			log.error(e.getMessage(), e);
+		} finally {
+			resultStream.setLevel(Deflater.DEFAULT_COMPRESSION);
+		}
+	}
+
+	/**
+	 * Writes the resource as an uncompressed zip entry.
+	 * 
+	 * A stored entry needs its size and crc up front. For data that is not in memory these are calculated
+	 * in a first pass over the resource's stream, after which the data is streamed into the entry in a second pass.
+	 * 
+	 * @param resource
+	 * @param resultStream
+	 * @throws IOException
+	 */
+	private void writeStoredResource(Resource resource, RawZipOutputStream resultStream) throws IOException {
+		ZipEntry zipEntry = new ZipEntry("OEBPS/" + resource.getHref());
+		zipEntry.setMethod(ZipEntry.STORED);
+		if (resource instanceof GeneratedResource
+				|| (resource.isInitialized() && ! resource.isStoredInFile())) {
+			byte[] data;
+			if (resource instanceof GeneratedResource && ((GeneratedResource) resource).isGenerated()) {
+				data = ((GeneratedResource) resource).generate(indentOutput);
+			} else {
+				data = resource.getData();
+			}
+			zipEntry.setSize(data.length);
+			zipEntry.setCrc(calculateCrc(data));
+			resultStream.putNextEntry(zipEntry);
+			resultStream.write(data);
+			return;
+		}
+		CRC32 crc = new CRC32();
+		long size = 0;
+		byte[] buffer = new byte[IOUtil.IO_COPY_BUFFER_SIZE];
+		InputStream inputStream = resource.getInputStream();
+		try {
+			for (int readLength = inputStream.read(buffer); readLength >= 0; readLength = inputStream.read(buffer)) {
+				crc.update(buffer, 0, readLength);
+				size += readLength;
+			}
+		} finally {
+			inputStream.close();
+		}
+		zipEntry.setSize(size);
+		zipEntry.setCrc(crc.getValue());
+		resultStream.putNextEntry(zipEntry);
+		inputStream = resource.getInputStream();
+		try {
+			IOUtil.copyLarge(inputStream, resultStream);
+		} finally {
+			inputStream.close();
 		}
 	}
 	
 
-	private void writePackageDocument(Book book, ZipOutputStream resultStream, Version version) throws IOException {
+	private void writePackageDocument(Book book, RawZipOutputStream resultStream, Version version) throws IOException {
 		resultStream.putNextEntry(new ZipEntry("OEBPS/content.opf"));
-		XmlSerializer xmlSerializer = EpubProcessorSupport.createXmlSerializer(resultStream);
+		XmlSerializer xmlSerializer = getXmlSerializer(resultStream);
         PackageDocumentWriter writer;
         if (version == Version.V2) {
             writer = new Epub2PackageDocumentWriter(book, xmlSerializer);
@@ -150,13 +672,28 @@ public class EpubWriter {
 		xmlSerializer.flush();
 	}
 
+	/**
+	 * Gets the serializer for the next xml document, which is written to the given stream.
+	 * 
+	 * The same serializer is used for all documents this writer writes.
+	 */
+	private XmlSerializer getXmlSerializer(OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, Constants.CHARACTER_ENCODING);
+		if (xmlSerializer == null) {
+			xmlSerializer = EpubProcessorSupport.createXmlSerializer(writer, indentOutput);
+		} else {
+			EpubProcessorSupport.resetXmlSerializer(xmlSerializer, writer, indentOutput);
+		}
+		return xmlSerializer;
+	}
+
 	/**
 	 * Writes the META-INF/container.xml file.
 	 * 
 	 * @param resultStream
 	 * @throws IOException
 	 */
-	private void writeContainer(ZipOutputStream resultStream) throws IOException {
+	private void writeContainer(RawZipOutputStream resultStream) throws IOException {
 		resultStream.putNextEntry(new ZipEntry("META-INF/container.xml"));
 		Writer out = new OutputStreamWriter(resultStream);
 		out.write("<?xml version=\"1.0\"?>\n");
@@ -174,7 +711,7 @@ public class EpubWriter {
      * @param resultStream
      * @throws IOException
      */
-    private void writeEncryptFile(ZipOutputStream resultStream, Book book) throws IOException {
+    private void writeEncryptFile(RawZipOutputStream resultStream, Book book) throws IOException {
         resultStream.putNextEntry(new ZipEntry("META-INF/encryption.xml"));
 
         InputStream inputStream = book.getResources().getByHref("META-INF/encryption.xml").getInputStream();
@@ -189,7 +726,7 @@ public class EpubWriter {
 	 * @param resultStream
 	 * @throws IOException
 	 */
-	private void writeMimeType(ZipOutputStream resultStream) throws IOException {
+	private void writeMimeType(RawZipOutputStream resultStream) throws IOException {
 		ZipEntry mimetypeZipEntry = new ZipEntry("mimetype");
 		mimetypeZipEntry.setMethod(ZipEntry.STORED);
 		byte[] mimetypeBytes = MediatypeService.EPUB.getName().getBytes();
@@ -225,5 +762,91 @@ public class EpubWriter {
 	public void setBookProcessor(BookProcessor bookProcessor) {
 		this.bookProcessor = bookProcessor;
 	}
+
+	public CompressionPolicy getCompressionPolicy() {
+		return compressionPolicy;
+	}
+
+	/**
+	 * Decides per resource whether it is stored or deflated, and at which level.
+	 * 
+	 * Defaults to a MediaTypeCompressionPolicy.
+	 * Resources that are copied unchanged from the epub they were read from keep their original compression.
+	 * 
+	 * @param compressionPolicy
+	 */
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	public boolean isIndentOutput() {
+		return indentOutput;
+	}
+
+	/**
+	 * Whether the package document, the ncx and the nav document are indented.
+	 * 
+	 * Defaults to true. Without indentation these documents are written in compact form,
+	 * which makes them smaller and faster to write.
+	 * 
+	 * @param indentOutput
+	 */
+	public void setIndentOutput(boolean indentOutput) {
+		this.indentOutput = indentOutput;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Deflates the resources concurrently on the given executor.
+	 * 
+	 * The zip file is still written by the calling thread, with the entries in the same order
+	 * as without an executor. The mimetype remains the first, uncompressed, entry.
+	 * 
+	 * @param executor the executor to deflate the resources on, null to deflate them on the calling thread.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public int getMaxPendingEntries() {
+		return maxPendingEntries;
+	}
+
+	/**
+	 * The maximum number of resources that are deflated ahead of the resource that is being written.
+	 * 
+	 * Only used when an executor is set. Defaults to twice the number of processors.
+	 * 
+	 * @param maxPendingEntries
+	 */
+	public void setMaxPendingEntries(int maxPendingEntries) {
+		if (maxPendingEntries < 1) {
+			throw new IllegalArgumentException("maxPendingEntries must be at least 1, not " + maxPendingEntries);
+		}
+		this.maxPendingEntries = maxPendingEntries;
+	}
+
+	public int getMaxParallelDeflateSize() {
+		return maxParallelDeflateSize;
+	}
+
+	/**
+	 * The maximum size of a resource that is deflated on the executor.
+	 * 
+	 * These resources are deflated into memory before they are written. Larger resources, and those
+	 * whose size is unknown, are deflated while they are streamed into the zip file by the calling thread.
+	 * Only used when an executor is set. Defaults to 16MB.
+	 * 
+	 * @param maxParallelDeflateSize
+	 */
+	public void setMaxParallelDeflateSize(int maxParallelDeflateSize) {
+		if (maxParallelDeflateSize < 0) {
+			throw new IllegalArgumentException("maxParallelDeflateSize must not be negative, not " + maxParallelDeflateSize);
+		}
+		this.maxParallelDeflateSize = maxParallelDeflateSize;
+	}
 	
 }
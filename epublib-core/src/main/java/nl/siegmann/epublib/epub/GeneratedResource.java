@@ -0,0 +1,106 @@
+package nl.siegmann.epublib.epub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStreamWriter;
+
+import nl.siegmann.epublib.Constants;
+import nl.siegmann.epublib.domain.MediaTypeProperty;
+import nl.siegmann.epublib.domain.Resource;
+
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * A resource containing an xml document that the EpubWriter generates from the book, like the ncx and the nav document.
+ *
+ * The document is serialized straight into its zip entry when the book is written.
+ * Only when its data is asked for is the document kept in memory. The EpubWriter generates the document again
+ * with its own indentation setting unless the data was set through setData.
+ *
+ * @author paul
+ *
+ */
+abstract class GeneratedResource extends Resource {
+
+	private static final long serialVersionUID = -1512416620357592462L;
+
+	// whether the data was generated by getData, rather than set through setData
+	private boolean generated = false;
+
+	public GeneratedResource(String id, String href, MediaTypeProperty mediaTypeProperty) {
+		super(id, null, href, mediaTypeProperty);
+	}
+
+	/**
+	 * Writes the document to the given serializer.
+	 *
+	 * @param serializer
+	 * @throws IOException
+	 */
+	protected abstract void write(XmlSerializer serializer) throws IOException;
+
+	/**
+	 * Generates the document if it was not yet generated or set.
+	 */
+	@Override
+	public synchronized byte[] getData() throws IOException {
+		if (! isInitialized()) {
+			setData(generate(true));
+			generated = true;
+		}
+		return super.getData();
+	}
+
+	@Override
+	public synchronized void setData(byte[] data) {
+		super.setData(data);
+		generated = false;
+	}
+
+	/**
+	 * Whether the document is generated from the book, false if its data was set through setData.
+	 *
+	 * @return whether the document is generated from the book.
+	 */
+	synchronized boolean isGenerated() {
+		return generated || ! isInitialized();
+	}
+
+	/**
+	 * The size of the document, -1 if it was not generated yet.
+	 */
+	@Override
+	public synchronized long getSize() {
+		if (! isInitialized()) {
+			return -1;
+		}
+		return super.getSize();
+	}
+
+	/**
+	 * Generates the document, without keeping it.
+	 *
+	 * @param indentOutput whether to indent the xml
+	 * @return the generated document.
+	 * @throws IOException
+	 */
+	byte[] generate(boolean indentOutput) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		XmlSerializer serializer = EpubProcessorSupport.createXmlSerializer(new OutputStreamWriter(data, Constants.CHARACTER_ENCODING), indentOutput);
+		write(serializer);
+		serializer.flush();
+		return data.toByteArray();
+	}
+
+	/**
+	 * Serializes the generated document as a plain resource.
+	 */
+	protected Object writeReplace() throws ObjectStreamException {
+		try {
+			return new Resource(getId(), getData(), getHref(), getMediaTypeProperty());
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to generate " + getHref(), e);
+		}
+	}
+}
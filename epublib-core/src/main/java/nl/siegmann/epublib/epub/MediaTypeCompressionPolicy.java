@@ -0,0 +1,90 @@
+package nl.siegmann.epublib.epub;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import nl.siegmann.epublib.domain.MediaTypeProperty;
+import nl.siegmann.epublib.domain.Resource;
+import nl.siegmann.epublib.service.MediatypeService;
+
+/**
+ * A CompressionPolicy with a compression level per mediatype.
+ * 
+ * By default the mediatypes that MediatypeService considers already compressed (images, audio, fonts)
+ * are stored, as deflating them costs time without making them smaller.
+ * Small resources are stored as well, the deflate overhead makes them hardly any smaller.
+ * Everything else is deflated at the default level.
+ * 
+ * @author paul
+ *
+ */
+public class MediaTypeCompressionPolicy implements CompressionPolicy {
+
+	/**
+	 * Resources smaller than this are stored by default.
+	 */
+	public static final long DEFAULT_STORED_SIZE_THRESHOLD = 128;
+
+	private Map<MediaTypeProperty, Integer> compressionLevels = new HashMap<MediaTypeProperty, Integer>();
+	private int defaultCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private long storedSizeThreshold = DEFAULT_STORED_SIZE_THRESHOLD;
+
+	public MediaTypeCompressionPolicy() {
+		for (MediaTypeProperty mediaTypeProperty: MediatypeService.mediatypes) {
+			if (MediatypeService.isCompressed(mediaTypeProperty)) {
+				compressionLevels.put(mediaTypeProperty, Deflater.NO_COMPRESSION);
+			}
+		}
+	}
+
+	@Override
+	public int getCompressionLevel(Resource resource) {
+		// a negative size means the size is not known up front
+		long size = resource.getSize();
+		if (size >= 0 && size < storedSizeThreshold) {
+			return Deflater.NO_COMPRESSION;
+		}
+		Integer result = compressionLevels.get(resource.getMediaTypeProperty());
+		if (result == null) {
+			return defaultCompressionLevel;
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the compression level for resources of the given mediatype.
+	 * 
+	 * @param mediaTypeProperty
+	 * @param compressionLevel a compression level as used by java.util.zip.Deflater, Deflater.NO_COMPRESSION stores the resources.
+	 */
+	public void setCompressionLevel(MediaTypeProperty mediaTypeProperty, int compressionLevel) {
+		compressionLevels.put(mediaTypeProperty, compressionLevel);
+	}
+
+	public int getDefaultCompressionLevel() {
+		return defaultCompressionLevel;
+	}
+
+	/**
+	 * The compression level for the mediatypes that have no level of their own.
+	 * 
+	 * @param defaultCompressionLevel a compression level as used by java.util.zip.Deflater
+	 */
+	public void setDefaultCompressionLevel(int defaultCompressionLevel) {
+		this.defaultCompressionLevel = defaultCompressionLevel;
+	}
+
+	public long getStoredSizeThreshold() {
+		return storedSizeThreshold;
+	}
+
+	/**
+	 * Resources smaller than this number of bytes are stored, whatever their mediatype.
+	 * 
+	 * @param storedSizeThreshold
+	 */
+	public void setStoredSizeThreshold(long storedSizeThreshold) {
+		this.storedSizeThreshold = storedSizeThreshold;
+	}
+}
@@ -3,24 +3,25 @@ package nl.siegmann.epublib.epub;
 import nl.siegmann.epublib.Constants;
 import nl.siegmann.epublib.domain.*;
 import nl.siegmann.epublib.service.MediatypeService;
-import nl.siegmann.epublib.util.ResourceUtil;
 import nl.siegmann.epublib.util.StringUtil;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
 import javax.xml.stream.FactoryConfigurationError;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -81,65 +82,171 @@ public class NCXDocument {
 			if(ncxResource == null) {
 				return ncxResource;
 			}
-			Document ncxDocument = ResourceUtil.getAsDocument(ncxResource);
-			Element navMapElement = DOMUtil.getFirstElementByTagNameNS(ncxDocument.getDocumentElement(), NAMESPACE_NCX, NCXTags.navMap);
-			TableOfContents tableOfContents = new TableOfContents(readTOCReferences(navMapElement.getChildNodes(), book));
-			book.setTableOfContents(tableOfContents);
+			Reader in = ncxResource.getReader();
+			try {
+				List<TOCReference> tocReferences = readTOCReferences(EpubProcessorSupport.createXmlPullParser(in), book);
+				if (tocReferences == null) {
+					log.error("NCX document " + ncxResource.getHref() + " does not contain element " + NCXTags.navMap);
+				} else {
+					book.setTableOfContents(new TableOfContents(tocReferences));
+				}
+			} finally {
+				in.close();
+			}
 		} catch (Exception e) {
 			log.error(e.getMessage(), e);
 		}
 		return ncxResource;
 	}
 
-    private static List<TOCReference> readTOCReferences(NodeList navpoints, Book book) {
-		if(navpoints == null) {
-			return new ArrayList<TOCReference>();
-		}
-		List<TOCReference> result = new ArrayList<TOCReference>(navpoints.getLength());
-		for(int i = 0; i < navpoints.getLength(); i++) {
-			Node node = navpoints.item(i);
-			if (node.getNodeType() != Document.ELEMENT_NODE) {
-				continue;
-			}
-			if (! (node.getLocalName().equals(NCXTags.navPoint))) {
-				continue;
+	/**
+	 * Reads the navPoints of the first navMap in a single pass over the NCX document.
+	 * 
+	 * Every navPoint is visited exactly once, so the time taken is linear in the size of the document no matter how deeply the navPoints are nested.
+	 * 
+	 * @param parser
+	 * @param book
+	 * @return the top level TOCReferences, null if the document contains no navMap.
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	private static List<TOCReference> readTOCReferences(XmlPullParser parser, Book book) throws XmlPullParserException, IOException {
+		HrefResolver hrefResolver = new HrefResolver(book);
+		List<TOCReference> result = null;
+		int navMapDepth = -1;
+		// the navPoints we are in, innermost last
+		LinkedList<NavPoint> navPoints = new LinkedList<NavPoint>();
+		NavPoint navPoint = null;
+		// the depth of the navLabel's text element of the current navPoint while we are reading it
+		int textDepth = -1;
+		for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = parser.next()) {
+			if (eventType == XmlPullParser.START_TAG) {
+				int depth = parser.getDepth();
+				String name = parser.getName();
+				if (navMapDepth < 0) {
+					if (result == null && NCXTags.navMap.equals(name) && NAMESPACE_NCX.equals(parser.getNamespace())) {
+						navMapDepth = depth;
+						result = new ArrayList<TOCReference>();
+					}
+				} else if (NCXTags.navPoint.equals(name)) {
+					int parentDepth = navPoint == null ? navMapDepth : navPoint.depth;
+					if (depth == parentDepth + 1) {
+						if (navPoint != null) {
+							navPoints.add(navPoint);
+						}
+						navPoint = new NavPoint(depth);
+					}
+				} else if (navPoint != null && NAMESPACE_NCX.equals(parser.getNamespace())) {
+					if (NCXTags.navLabel.equals(name)) {
+						navPoint.inNavLabel = navPoint.label == null;
+					} else if (NCXTags.text.equals(name) && navPoint.inNavLabel && navPoint.label == null) {
+						navPoint.label = new StringBuilder();
+						textDepth = depth;
+					} else if (NCXTags.content.equals(name) && navPoint.src == null) {
+						navPoint.src = getAttribute(parser, NAMESPACE_NCX, NCXAttributes.src);
+					}
+				}
+			} else if (eventType == XmlPullParser.TEXT) {
+				if (textDepth > 0 && parser.getDepth() == textDepth) {
+					navPoint.label.append(parser.getText());
+				}
+			} else if (eventType == XmlPullParser.END_TAG) {
+				int depth = parser.getDepth();
+				if (depth == textDepth) {
+					textDepth = -1;
+				} else if (navPoint != null && depth == navPoint.depth) {
+					TOCReference tocReference = navPoint.createTOCReference(hrefResolver);
+					navPoint = navPoints.isEmpty() ? null : navPoints.removeLast();
+					if (navPoint == null) {
+						result.add(tocReference);
+					} else {
+						navPoint.children.add(tocReference);
+					}
+				} else if (navPoint != null && NCXTags.navLabel.equals(parser.getName())) {
+					navPoint.inNavLabel = false;
+				} else if (depth == navMapDepth) {
+					navMapDepth = -1;
+				}
 			}
-			TOCReference tocReference = readTOCReference((Element) node, book);
-			result.add(tocReference);
 		}
 		return result;
 	}
 
-	private static TOCReference readTOCReference(Element navpointElement, Book book) {
-		String label = readNavLabel(navpointElement);
-		String reference = FilenameUtils.getPath(book.getSpine().getTocResource().getHref())+readNavReference(navpointElement);
-		String href = StringUtil.substringBefore(reference, Constants.FRAGMENT_SEPARATOR_CHAR);
-		String fragmentId = StringUtil.substringAfter(reference, Constants.FRAGMENT_SEPARATOR_CHAR);
-		Resource resource = book.getResources().getByHref(href);
-		if (resource == null) {
-			log.error("Resource with href " + href + " in NCX document not found");
+	/**
+	 * Like DOMUtil.getAttribute: first tries the attribute with the given namespace, then the one without.
+	 */
+	private static String getAttribute(XmlPullParser parser, String namespace, String attribute) {
+		String result = parser.getAttributeValue(namespace, attribute);
+		if (StringUtil.isEmpty(result)) {
+			result = parser.getAttributeValue("", attribute);
 		}
-		TOCReference result = new TOCReference(label, resource, fragmentId);
-		readTOCReferences(navpointElement.getChildNodes(), book);
-		result.setChildren(readTOCReferences(navpointElement.getChildNodes(), book));
-		return result;
+		return result == null ? "" : result;
 	}
 
-	
-	private static String readNavReference(Element navpointElement) {
-		Element contentElement = DOMUtil.getFirstElementByTagNameNS(navpointElement, NAMESPACE_NCX, NCXTags.content);
-		String result = DOMUtil.getAttribute(contentElement, NAMESPACE_NCX, NCXAttributes.src);
-		try {
-			result = URLDecoder.decode(result, Constants.CHARACTER_ENCODING);
-		} catch (UnsupportedEncodingException e) {
-			log.error(e.getMessage());
+	/**
+	 * A navPoint that is being read.
+	 */
+	private static class NavPoint {
+		private final int depth;
+		private boolean inNavLabel = false;
+		private StringBuilder label;
+		private String src;
+		private List<TOCReference> children = new ArrayList<TOCReference>();
+
+		public NavPoint(int depth) {
+			this.depth = depth;
+		}
+
+		public TOCReference createTOCReference(HrefResolver hrefResolver) {
+			String reference = hrefResolver.resolve(src);
+			String href = StringUtil.substringBefore(reference, Constants.FRAGMENT_SEPARATOR_CHAR);
+			String fragmentId = StringUtil.substringAfter(reference, Constants.FRAGMENT_SEPARATOR_CHAR);
+			Resource resource = hrefResolver.getResource(href);
+			if (resource == null) {
+				log.error("Resource with href " + href + " in NCX document not found");
+			}
+			TOCReference result = new TOCReference(label == null ? null : label.toString().trim(), resource, fragmentId);
+			result.setChildren(children);
+			return result;
 		}
-		return result;
 	}
 
-	private static String readNavLabel(Element navpointElement) {
-		Element navLabel = DOMUtil.getFirstElementByTagNameNS(navpointElement, NAMESPACE_NCX, NCXTags.navLabel);
-		return DOMUtil.getTextChildrenContent(DOMUtil.getFirstElementByTagNameNS(navLabel, NAMESPACE_NCX, NCXTags.text));
+	/**
+	 * Resolves the hrefs in the NCX document, which are relative to the NCX document, to the book's resources.
+	 * 
+	 * The path of the NCX document is determined once and the resources are looked up once per href,
+	 * no matter how many navPoints refer to it.
+	 */
+	private static class HrefResolver {
+		private final String basePath;
+		private final Resources resources;
+		private final Map<String, Resource> resourcesByHref = new HashMap<String, Resource>();
+
+		public HrefResolver(Book book) {
+			this.basePath = FilenameUtils.getPath(book.getSpine().getTocResource().getHref());
+			this.resources = book.getResources();
+		}
+
+		public String resolve(String src) {
+			if (src == null) {
+				src = "";
+			}
+			try {
+				src = URLDecoder.decode(src, Constants.CHARACTER_ENCODING);
+			} catch (UnsupportedEncodingException e) {
+				log.error(e.getMessage());
+			}
+			return basePath + src;
+		}
+
+		public Resource getResource(String href) {
+			if (resourcesByHref.containsKey(href)) {
+				return resourcesByHref.get(href);
+			}
+			Resource result = resources.getByHref(href);
+			resourcesByHref.put(href, result);
+			return result;
+		}
 	}
 
 	
@@ -178,6 +285,24 @@ public class NCXDocument {
 		return resource;
 	}	
 	
+	/**
+	 * Creates a resource for the ncx document of the book that is generated as the book is written.
+	 * 
+	 * @param book
+	 * @return a resource for the ncx document of the book.
+	 */
+	static Resource createGeneratedNCXResource(final Book book) {
+		return new GeneratedResource(NCX_ITEM_ID, DEFAULT_NCX_HREF, MediatypeService.NCX) {
+
+			private static final long serialVersionUID = 4336734409125402946L;
+
+			@Override
+			protected void write(XmlSerializer serializer) throws IOException {
+				NCXDocument.write(serializer, book);
+			}
+		};
+	}
+
 	public static void write(XmlSerializer serializer, List<Identifier> identifiers, DcmesElement title, List<Author> authors, TableOfContents tableOfContents) throws IllegalArgumentException, IllegalStateException, IOException {
 		serializer.startDocument(Constants.CHARACTER_ENCODING, false);
 		serializer.setPrefix(EpubWriter.EMPTY_NAMESPACE_PREFIX, NAMESPACE_NCX);
@@ -166,6 +166,24 @@ public class NavDocument {
         return new Resource(NAV_ITEM_ID, data.toByteArray(), DEFAULT_NAV_HREF, MediatypeService.XHTML);
     }
 
+    /**
+     * Creates a resource for the nav document of the book that is generated as the book is written.
+     *
+     * @param book
+     * @return a resource for the nav document of the book.
+     */
+    static Resource createGeneratedNavResource(final Book book) {
+        return new GeneratedResource(NAV_ITEM_ID, DEFAULT_NAV_HREF, MediatypeService.XHTML) {
+
+            private static final long serialVersionUID = -5765012640516427519L;
+
+            @Override
+            protected void write(XmlSerializer serializer) throws IOException {
+                NavDocument.write(serializer, book);
+            }
+        };
+    }
+
     public static void write(XmlSerializer serializer, Book book) throws IOException {
         serializer.startDocument(Constants.CHARACTER_ENCODING, false);
         serializer.setPrefix("", NAMESPACE_HTML);
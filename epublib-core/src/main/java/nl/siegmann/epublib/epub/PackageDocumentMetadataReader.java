@@ -68,7 +68,8 @@ class PackageDocumentMetadataReader extends PackageDocumentBase {
         return result;
     }
 
-    private static void resolveRefines(List<Meta> metas, Metadata result) {
+    // package
+    static void resolveRefines(List<Meta> metas, Metadata result) {
         Iterator<Meta> iterator = metas.iterator();
         while (iterator.hasNext()) {
             Meta meta = iterator.next();
@@ -206,18 +207,24 @@ class PackageDocumentMetadataReader extends PackageDocumentBase {
 		if (StringUtil.isBlank(authorString)) {
 			return null;
 		}
-		int spacePos = authorString.lastIndexOf(' ');
-		Author result;
-		if(spacePos < 0) {
-			result = new Author(authorString);
-		} else {
-			result = new Author(authorString.substring(0, spacePos), authorString.substring(spacePos + 1));
-		}
+		Author result = createAuthor(authorString);
 		result.setRole(authorElement.getAttributeNS(NAMESPACE_OPF, OPFAttributes.role));
         readDcmesCommonProperties(authorElement, result);
 		return result;
 	}
 
+	/**
+	 * Splits the author's name at the last space into a first and last name.
+	 */
+	// package
+	static Author createAuthor(String authorString) {
+		int spacePos = authorString.lastIndexOf(' ');
+		if(spacePos < 0) {
+			return new Author(authorString);
+		}
+		return new Author(authorString.substring(0, spacePos), authorString.substring(spacePos + 1));
+	}
+
     public static void readDcmesCommonProperties(Element element, DcmesElement result) {
         if (element == null)
             return;
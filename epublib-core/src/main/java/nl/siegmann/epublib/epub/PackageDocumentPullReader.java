@@ -0,0 +1,547 @@
+package nl.siegmann.epublib.epub;
+
+import nl.siegmann.epublib.Constants;
+import nl.siegmann.epublib.domain.*;
+import nl.siegmann.epublib.util.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the opf package document in a single pass using a streaming pull parser.
+ *
+ * Produces the same Book as the PackageDocumentReader, but does not build a DOM of the package document first.
+ * For package documents with tens of thousands of manifest items this saves a lot of time and memory.
+ *
+ * @see EpubReader#setStreamingPackageReader(boolean)
+ *
+ * @author paul
+ *
+ */
+public class PackageDocumentPullReader extends PackageDocumentBase {
+
+	private static final Logger log = LoggerFactory.getLogger(PackageDocumentPullReader.class);
+
+	public static void read(Resource packageResource, EpubReader epubReader, Book book, Resources resources) throws IOException, XmlPullParserException {
+		PackageDocument packageDocument = parse(packageResource);
+		String packageHref = packageResource.getHref();
+		resources = PackageDocumentReader.fixHrefs(packageHref, resources);
+		readPackageProperties(packageDocument, book);
+		readGuide(packageDocument, book, resources);
+
+		// Books sometimes use non-identifier ids. We map these here to legal ones
+		Map<String, String> idMapping = new HashMap<String, String>();
+
+		readManifest(packageDocument, resources, book, idMapping);
+		readCover(packageDocument, book);
+		book.setMetadata(packageDocument.getMetadata());
+		book.setSpine(readSpine(packageDocument, book.getResources(), idMapping));
+		book.setNavResource(PackageDocumentReader.readNav(book.getManifest()));
+		book.setBindings(packageDocument.bindings);
+		book.setPackageId(PackageDocumentReader.readPackageId(book.getMetadata()));
+
+		// if we did not find a cover page then we make the first page of the book the cover page
+		if (book.getCoverPage() == null && book.getSpine().size() > 0) {
+			book.setCoverPage(book.getSpine().getResource(0));
+		}
+	}
+
+	private static PackageDocument parse(Resource packageResource) throws IOException, XmlPullParserException {
+		Reader in = packageResource.getReader();
+		try {
+			PackageDocument result = new PackageDocument();
+			result.parse(EpubProcessorSupport.createXmlPullParser(in));
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void readPackageProperties(PackageDocument packageDocument, Book book) {
+		book.setVersion(Version.findVersion(packageDocument.version));
+		String uniqueId = packageDocument.uniqueId;
+		if (StringUtil.isBlank(uniqueId)) {
+			uniqueId = BOOK_ID_ID;
+		}
+		book.setUniqueId(uniqueId);
+		if (! packageDocument.prefix.isEmpty()) {
+			book.setPrefix(packageDocument.prefix);
+		}
+	}
+
+	private static void readGuide(PackageDocument packageDocument, Book book, Resources resources) {
+		for (ElementAttributes reference : packageDocument.guideReferences) {
+			PackageDocumentReader.readGuideReference(reference.getAttribute(NAMESPACE_OPF, OPFAttributes.href),
+					reference.getAttribute(NAMESPACE_OPF, OPFAttributes.type),
+					reference.getAttribute(NAMESPACE_OPF, OPFAttributes.title),
+					resources, book.getGuide());
+		}
+	}
+
+	private static void readManifest(PackageDocument packageDocument, Resources resources, Book book, Map<String, String> idMapping) {
+		if (! packageDocument.manifestFound) {
+			log.error("Package document does not contain element " + OPFTags.manifest);
+			return;
+		}
+		Manifest manifest = book.getManifest();
+		book.setResources(manifest.getResources());
+		for (ElementAttributes item : packageDocument.manifestItems) {
+			String href = item.getAttribute(NAMESPACE_OPF, OPFAttributes.href);
+			try {
+				href = URLDecoder.decode(href, Constants.CHARACTER_ENCODING);
+			} catch (UnsupportedEncodingException e) {
+				log.error(e.getMessage());
+			}
+			PackageDocumentReader.readManifestItem(item.getAttribute(NAMESPACE_OPF, OPFAttributes.id),
+					href,
+					item.getAttribute(NAMESPACE_OPF, OPFAttributes.media_type),
+					item.getAttribute(NAMESPACE_OPF, OPFAttributes.properties),
+					item.getAttribute(NAMESPACE_OPF, OPFAttributes.fallback),
+					item.getAttribute(NAMESPACE_OPF, OPFAttributes.mediaOverlay),
+					resources, manifest, idMapping);
+		}
+	}
+
+	private static void readCover(PackageDocument packageDocument, Book book) {
+		String coverResourceId = packageDocument.coverResourceId;
+		String coverItemHref = null;
+		if (StringUtil.isNotBlank(coverResourceId)) {
+			for (ElementAttributes item : packageDocument.manifestItems) {
+				if (coverResourceId.equalsIgnoreCase(item.getAttribute(OPFAttributes.id))
+						&& StringUtil.isNotBlank(item.getAttribute(OPFAttributes.href))) {
+					coverItemHref = item.getAttribute(OPFAttributes.href);
+					break;
+				}
+			}
+		}
+		PackageDocumentReader.readCover(PackageDocumentReader.findCoverHrefs(coverResourceId, coverItemHref,
+				packageDocument.coverReferenceHref, book.getManifest()), book);
+	}
+
+	private static Spine readSpine(PackageDocument packageDocument, Resources resources, Map<String, String> idMapping) {
+		ElementAttributes spineElement = packageDocument.spine;
+		if (spineElement == null) {
+			log.error("Element " + OPFTags.spine + " not found in package document, generating one automatically");
+			return PackageDocumentReader.generateSpineFromResources(resources);
+		}
+		Spine result = new Spine();
+		result.setId(spineElement.getAttribute(OPFAttributes.id));
+		result.setDirection(PageProgressionDirection.findDirection(spineElement.getAttribute(OPFAttributes.pageProgressionDirection)));
+		String tocResourceId = spineElement.getAttribute(NAMESPACE_OPF, OPFAttributes.toc);
+		if (StringUtil.isNotBlank(tocResourceId)) {
+			result.setTocResource(resources.getByIdOrHref(tocResourceId));
+		}
+		List<SpineReference> spineReferences = new ArrayList<SpineReference>(packageDocument.itemrefs.size());
+		for (ElementAttributes itemref : packageDocument.itemrefs) {
+			SpineReference spineReference = PackageDocumentReader.readSpineReference(
+					itemref.getAttribute(NAMESPACE_OPF, OPFAttributes.idref),
+					itemref.getAttribute(NAMESPACE_OPF, OPFAttributes.properties),
+					itemref.getAttribute(NAMESPACE_OPF, OPFAttributes.linear),
+					resources, idMapping);
+			if (spineReference != null) {
+				spineReferences.add(spineReference);
+			}
+		}
+		result.setSpineReferences(spineReferences);
+		return result;
+	}
+
+
+	/**
+	 * Everything the reader needs from the package document, collected in a single pass.
+	 *
+	 * Only the first metadata, manifest, spine, guide and bindings elements are read, like the PackageDocumentReader does.
+	 */
+	private static class PackageDocument {
+
+		private String version = "";
+		private String uniqueId = "";
+		private String prefix = "";
+
+		private boolean manifestFound = false;
+		private List<ElementAttributes> manifestItems = new ArrayList<ElementAttributes>();
+		private ElementAttributes spine;
+		private List<ElementAttributes> itemrefs = new ArrayList<ElementAttributes>();
+		private List<ElementAttributes> guideReferences = new ArrayList<ElementAttributes>();
+		private Bindings bindings = new Bindings();
+		private String coverResourceId;
+		private String coverReferenceHref;
+
+		private boolean metadataFound = false;
+		private List<Identifier> identifiers = new ArrayList<Identifier>();
+		private List<DcmesElement> titles = new ArrayList<DcmesElement>();
+		private List<DcmesElement> languages = new ArrayList<DcmesElement>();
+		private List<Author> contributors = new ArrayList<Author>();
+		private List<Author> authors = new ArrayList<Author>();
+		private List<Date> dates = new ArrayList<Date>();
+		private DcmesElement source;
+		private List<DcmesElement> types = new ArrayList<DcmesElement>();
+		private List<DcmesElement> publishers = new ArrayList<DcmesElement>();
+		private List<DcmesElement> descriptions = new ArrayList<DcmesElement>();
+		private List<DcmesElement> rights = new ArrayList<DcmesElement>();
+		private List<DcmesElement> subjects = new ArrayList<DcmesElement>();
+		private List<Meta> metas = new ArrayList<Meta>();
+		private List<Link> links = new ArrayList<Link>();
+
+		// the depth of the first metadata, manifest, guide and bindings elements while we are inside them,
+		// -1 before the guide and bindings elements and 0 after them
+		private int metadataDepth = -1;
+		private int manifestDepth = -1;
+		private int guideDepth = -1;
+		private int bindingsDepth = -1;
+
+		// the metadata element whose text content is being collected
+		private int textElementDepth = -1;
+		private String textElementNamespace;
+		private String textElementName;
+		private ElementAttributes textElementAttributes;
+		private StringBuilder textContent = new StringBuilder();
+		private StringBuilder textChildrenContent = new StringBuilder();
+
+		public void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+			for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = parser.next()) {
+				switch (eventType) {
+					case XmlPullParser.START_TAG:
+						startElement(parser);
+						break;
+					case XmlPullParser.END_TAG:
+						endElement(parser.getDepth());
+						break;
+					case XmlPullParser.TEXT:
+						if (textElementDepth > 0) {
+							textContent.append(parser.getText());
+							if (parser.getDepth() == textElementDepth) {
+								textChildrenContent.append(parser.getText());
+							}
+						}
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		private void startElement(XmlPullParser parser) {
+			int depth = parser.getDepth();
+			if (depth == 1) {
+				ElementAttributes packageElement = new ElementAttributes(parser);
+				version = packageElement.getAttribute(OPFAttributes.version);
+				uniqueId = packageElement.getAttribute(OPFAttributes.uniqueIdentifier);
+				prefix = packageElement.getAttribute(OPFAttributes.prefix);
+				return;
+			}
+			String namespace = parser.getNamespace();
+			String name = parser.getName();
+			if (metadataDepth > 0) {
+				if (textElementDepth < 0 && isMetadataElement(namespace, name)) {
+					textElementDepth = depth;
+					textElementNamespace = namespace;
+					textElementName = name;
+					textElementAttributes = new ElementAttributes(parser);
+					textContent.setLength(0);
+					textChildrenContent.setLength(0);
+				}
+			}
+			if (! NAMESPACE_OPF.equals(namespace)) {
+				return;
+			}
+			if (OPFTags.meta.equals(name)) {
+				if (coverResourceId == null) {
+					ElementAttributes meta = textElementDepth == depth ? textElementAttributes : new ElementAttributes(parser);
+					if (OPFValues.meta_cover.equalsIgnoreCase(meta.getAttribute(OPFAttributes.name))
+							&& StringUtil.isNotBlank(meta.getAttribute(OPFAttributes.content))) {
+						coverResourceId = meta.getAttribute(OPFAttributes.content);
+					}
+				}
+			} else if (OPFTags.metadata.equals(name)) {
+				if (! metadataFound) {
+					metadataFound = true;
+					metadataDepth = depth;
+				}
+			} else if (OPFTags.manifest.equals(name)) {
+				if (! manifestFound) {
+					manifestFound = true;
+					manifestDepth = depth;
+				}
+			} else if (OPFTags.item.equals(name)) {
+				if (manifestDepth > 0) {
+					manifestItems.add(new ElementAttributes(parser));
+				}
+			} else if (OPFTags.spine.equals(name)) {
+				if (spine == null) {
+					spine = new ElementAttributes(parser);
+				}
+			} else if (OPFTags.itemref.equals(name)) {
+				itemrefs.add(new ElementAttributes(parser));
+			} else if (OPFTags.guide.equals(name)) {
+				if (guideDepth < 0) {
+					guideDepth = depth;
+				}
+			} else if (OPFTags.reference.equals(name)) {
+				ElementAttributes reference = new ElementAttributes(parser);
+				if (guideDepth > 0) {
+					guideReferences.add(reference);
+				}
+				if (coverReferenceHref == null
+						&& OPFValues.reference_cover.equalsIgnoreCase(reference.getAttribute(OPFAttributes.type))
+						&& StringUtil.isNotBlank(reference.getAttribute(OPFAttributes.href))) {
+					coverReferenceHref = reference.getAttribute(OPFAttributes.href);
+				}
+			} else if (OPFTags.bindings.equals(name)) {
+				if (bindingsDepth < 0) {
+					bindingsDepth = depth;
+				}
+			} else if (OPFTags.mediaType.equals(name)) {
+				if (bindingsDepth > 0) {
+					ElementAttributes mediaType = new ElementAttributes(parser);
+					bindings.addMediaType(PackageDocumentReader.createMediaType(
+							mediaType.getAttribute(NAMESPACE_OPF, OPFAttributes.media_type),
+							mediaType.getAttribute(NAMESPACE_OPF, OPFAttributes.handler)));
+				}
+			}
+		}
+
+		private void endElement(int depth) {
+			if (depth == textElementDepth) {
+				readMetadataElement(textElementNamespace, textElementName, textElementAttributes,
+						textContent.toString(), textChildrenContent.toString().trim());
+				textElementDepth = -1;
+				textElementAttributes = null;
+			}
+			if (depth == metadataDepth) {
+				metadataDepth = -1;
+			} else if (depth == manifestDepth) {
+				manifestDepth = -1;
+			} else if (depth == guideDepth) {
+				guideDepth = 0; // only the first guide is read
+			} else if (depth == bindingsDepth) {
+				bindingsDepth = 0; // only the first bindings element is read
+			}
+		}
+
+		private static boolean isMetadataElement(String namespace, String name) {
+			if (NAMESPACE_DUBLIN_CORE.equals(namespace)) {
+				return true;
+			}
+			return NAMESPACE_OPF.equals(namespace)
+					&& (OPFTags.meta.equals(name) || OPFTags.link.equals(name));
+		}
+
+		/**
+		 * Creates the metadata domain object for the element the same way the PackageDocumentMetadataReader does.
+		 *
+		 * @param textContent all text within the element
+		 * @param textChildrenContent the trimmed text directly within the element
+		 */
+		private void readMetadataElement(String namespace, String name, ElementAttributes attributes, String textContent, String textChildrenContent) {
+			if (NAMESPACE_OPF.equals(namespace)) {
+				if (OPFTags.meta.equals(name)) {
+					Meta meta = new Meta();
+					meta.setId(attributes.getAttribute(DCAttributes.id));
+					meta.setProperty(attributes.getAttribute(DCAttributes.property));
+					meta.setLang(attributes.getAttribute(DCAttributes.lang));
+					meta.setScheme(attributes.getAttribute(DCAttributes.scheme));
+					meta.setRefines(attributes.getAttribute(DCAttributes.refines));
+					meta.setValue(textContent);
+					attributes.addCustomProperties(meta);
+					metas.add(meta);
+				} else {
+					Link link = new Link();
+					link.setHref(attributes.getAttribute(DCAttributes.href));
+					link.setRel(attributes.getAttribute(DCAttributes.rel));
+					link.setId(attributes.getAttribute(DCAttributes.id));
+					link.setRefines(attributes.getAttribute(DCAttributes.refines));
+					link.setMediaType(attributes.getAttribute(DCAttributes.mediaType));
+					links.add(link);
+				}
+			} else if (DCTags.identifier.equals(name)) {
+				if (StringUtil.isBlank(textChildrenContent)) {
+					return;
+				}
+				Identifier identifier = new Identifier(attributes.getAttributeNS(NAMESPACE_OPF, DCAttributes.scheme), textChildrenContent);
+				String identifierId = attributes.getAttribute(DCAttributes.id);
+				if (identifierId.equals(uniqueId)) {
+					identifier.setId(identifierId);
+					identifier.setBookId(true);
+				}
+				identifiers.add(identifier);
+			} else if (DCTags.creator.equals(name) || DCTags.contributor.equals(name)) {
+				if (StringUtil.isBlank(textChildrenContent)) {
+					return;
+				}
+				Author author = PackageDocumentMetadataReader.createAuthor(textChildrenContent);
+				author.setRole(attributes.getAttributeNS(NAMESPACE_OPF, OPFAttributes.role));
+				readDcmesCommonProperties(attributes, author);
+				if (DCTags.creator.equals(name)) {
+					authors.add(author);
+				} else {
+					contributors.add(author);
+				}
+			} else if (DCTags.date.equals(name)) {
+				try {
+					Date date = new Date(textChildrenContent, attributes.getAttributeNS(NAMESPACE_OPF, OPFAttributes.event));
+					readDcmesCommonProperties(attributes, date);
+					dates.add(date);
+				} catch(IllegalArgumentException e) {
+					log.error(e.getMessage());
+				}
+			} else {
+				List<DcmesElement> elements = getDcmesElements(name);
+				if (elements == null && ! (DCTags.source.equals(name) && source == null)) {
+					return;
+				}
+				DcmesElement dcmes = new DcmesElement();
+				readDcmesCommonProperties(attributes, dcmes);
+				dcmes.setValue(textContent);
+				if (elements == null) {
+					source = dcmes;
+				} else {
+					elements.add(dcmes);
+				}
+			}
+		}
+
+		private List<DcmesElement> getDcmesElements(String name) {
+			if (DCTags.title.equals(name)) {
+				return titles;
+			} else if (DCTags.language.equals(name)) {
+				return languages;
+			} else if (DCTags.type.equals(name)) {
+				return types;
+			} else if (DCTags.publisher.equals(name)) {
+				return publishers;
+			} else if (DCTags.description.equals(name)) {
+				return descriptions;
+			} else if (DCTags.rights.equals(name)) {
+				return rights;
+			} else if (DCTags.subject.equals(name)) {
+				return subjects;
+			}
+			return null;
+		}
+
+		private static void readDcmesCommonProperties(ElementAttributes attributes, DcmesElement result) {
+			result.setId(attributes.getAttributeNS(NAMESPACE_OPF, DCAttributes.id));
+			result.setLang(attributes.getAttributeNS(NAMESPACE_OPF, DCAttributes.lang));
+			result.setDirection(attributes.getAttributeNS(NAMESPACE_OPF, DCAttributes.dir));
+		}
+
+		public Metadata getMetadata() {
+			Metadata result = new Metadata();
+			if (! metadataFound) {
+				log.error("Package does not contain element " + OPFTags.metadata);
+				return result;
+			}
+			if (identifiers.isEmpty()) {
+				log.error("Package does not contain element " + DCTags.identifier);
+			}
+			result.setIdentifiers(identifiers);
+			result.setTitles(addDcmesMap(titles, result));
+			result.setLanguages(addDcmesMap(languages, result));
+			result.setContributors(addDcmesMap(contributors, result));
+			result.setAuthors(addDcmesMap(authors, result));
+			result.setDates(dates);
+			if (source != null) {
+				result.addDcmesMap(source.getId(), source);
+			}
+			result.setSource(source);
+			result.setTypes(addDcmesMap(types, result));
+			result.setPublishers(addDcmesMap(publishers, result));
+			result.setDescriptions(addDcmesMap(descriptions, result));
+			result.setRights(addDcmesMap(rights, result));
+			result.setSubjects(addDcmesMap(subjects, result));
+			result.setMetas(metas);
+			PackageDocumentMetadataReader.resolveRefines(result.getMetas(), result);
+			result.setLinks(links);
+			return result;
+		}
+
+		private static <T extends DcmesElement> List<T> addDcmesMap(List<T> elements, Metadata metadata) {
+			for (T element : elements) {
+				metadata.addDcmesMap(element.getId(), element);
+			}
+			return elements;
+		}
+	}
+
+
+	/**
+	 * A copy of the attributes of an element, with the same lookup rules as the DOM.
+	 */
+	private static class ElementAttributes {
+
+		// namespace, qualified name, local name and value of each attribute
+		private final String[] attributes;
+
+		public ElementAttributes(XmlPullParser parser) {
+			int count = parser.getAttributeCount();
+			attributes = new String[count * 4];
+			for (int i = 0; i < count; i++) {
+				String prefix = parser.getAttributePrefix(i);
+				String name = parser.getAttributeName(i);
+				attributes[i * 4] = parser.getAttributeNamespace(i);
+				attributes[i * 4 + 1] = StringUtil.isEmpty(prefix) ? name : prefix + ":" + name;
+				attributes[i * 4 + 2] = name;
+				attributes[i * 4 + 3] = parser.getAttributeValue(i);
+			}
+		}
+
+		/**
+		 * Like Element.getAttribute(String)
+		 *
+		 * @param qualifiedName
+		 * @return the value of the attribute with the given qualified name, the empty string if not found.
+		 */
+		public String getAttribute(String qualifiedName) {
+			for (int i = 0; i < attributes.length; i += 4) {
+				if (qualifiedName.equals(attributes[i + 1])) {
+					return attributes[i + 3];
+				}
+			}
+			return "";
+		}
+
+		/**
+		 * Like Element.getAttributeNS(String, String)
+		 *
+		 * @param namespace
+		 * @param localName
+		 * @return the value of the attribute with the given namespace and local name, the empty string if not found.
+		 */
+		public String getAttributeNS(String namespace, String localName) {
+			for (int i = 0; i < attributes.length; i += 4) {
+				if (namespace.equals(attributes[i]) && localName.equals(attributes[i + 2])) {
+					return attributes[i + 3];
+				}
+			}
+			return "";
+		}
+
+		/**
+		 * Like DOMUtil.getAttribute(Element, String, String)
+		 */
+		public String getAttribute(String namespace, String attribute) {
+			String result = getAttributeNS(namespace, attribute);
+			if (StringUtil.isEmpty(result)) {
+				result = getAttribute(attribute);
+			}
+			return result;
+		}
+
+		public void addCustomProperties(Meta meta) {
+			for (int i = 0; i < attributes.length; i += 4) {
+				meta.addCustomProperties(attributes[i + 1], attributes[i + 3]);
+			}
+		}
+	}
+}
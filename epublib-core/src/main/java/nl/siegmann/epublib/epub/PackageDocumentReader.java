@@ -54,7 +54,8 @@ public class PackageDocumentReader extends PackageDocumentBase {
 		}
 	}
 
-    private static String readPackageId(Metadata metadata) {
+    // package
+    static String readPackageId(Metadata metadata) {
         String result = Identifier.getBookIdIdentifier(metadata.getIdentifiers()).getValue();
         for (Meta meta : metadata.getMetas()) {
             if (meta.getProperty().equals(DCAttributes.modified)) {
@@ -67,13 +68,15 @@ public class PackageDocumentReader extends PackageDocumentBase {
         return result;
     }
 
+    // package
+    static Version readVersion(Document packageDocument) {
+        return Version.findVersion(packageDocument.getDocumentElement().getAttribute(OPFAttributes.version));
+    }
+
     private static void readPackageProperties(Document packageDocument, Book book) {
-        String version = packageDocument.getDocumentElement().getAttribute(OPFAttributes.version);
         String uniqueId = packageDocument.getDocumentElement().getAttribute(OPFAttributes.uniqueIdentifier);
         String prefix = packageDocument.getDocumentElement().getAttribute(OPFAttributes.prefix);
-        if (StringUtil.isNotBlank(version)) {
-            book.setVersion(Version.findVersion(version));
-        }
+        book.setVersion(readVersion(packageDocument));
         if (StringUtil.isBlank(uniqueId)) {
             uniqueId = BOOK_ID_ID;
         }
@@ -117,22 +120,32 @@ public class PackageDocumentReader extends PackageDocumentBase {
                 log.error(e.getMessage());
             }
             String mediaTypeName = DOMUtil.getAttribute(itemElement, NAMESPACE_OPF, OPFAttributes.media_type);
-            Resource resource = resources.remove(href);
-            if(resource == null) {
-                log.error("resource with href '" + href + "' not found");
-                continue;
-            }
-            resource.setId(id);
-            MediaTypeProperty mediaTypeProperty = MediatypeService.getMediaType(href, mediaTypeName);
-            if(mediaTypeProperty != null) {
-                resource.setMediaTypeProperty(mediaTypeProperty);
-            }
-            ManifestItemReference manifestItem = new ManifestItemReference(resource, ManifestItemProperties.findProperties(properties));
-            manifestItem.setFallback(fallback);
-            manifestItem.setMediaOverlay(mediaOverlay);
-            manifest.addReference(manifestItem);
-            idMapping.put(id, resource.getId());
+            readManifestItem(id, href, mediaTypeName, properties, fallback, mediaOverlay, resources, manifest, idMapping);
+        }
+    }
+
+    /**
+     * Adds the resource with the given (already url-decoded) href to the manifest.
+     * Shared with the PackageDocumentPullReader.
+     */
+    // package
+    static void readManifestItem(String id, String href, String mediaTypeName, String properties, String fallback, String mediaOverlay,
+            Resources resources, Manifest manifest, Map<String, String> idMapping) {
+        Resource resource = resources.remove(href);
+        if(resource == null) {
+            log.error("resource with href '" + href + "' not found");
+            return;
+        }
+        resource.setId(id);
+        MediaTypeProperty mediaTypeProperty = MediatypeService.getMediaType(href, mediaTypeName);
+        if(mediaTypeProperty != null) {
+            resource.setMediaTypeProperty(mediaTypeProperty);
         }
+        ManifestItemReference manifestItem = new ManifestItemReference(resource, ManifestItemProperties.findProperties(properties));
+        manifestItem.setFallback(fallback);
+        manifestItem.setMediaOverlay(mediaOverlay);
+        manifest.addReference(manifestItem);
+        idMapping.put(id, resource.getId());
     }
 
 
@@ -205,28 +218,37 @@ public class PackageDocumentReader extends PackageDocumentBase {
 		for (int i = 0; i < guideReferences.getLength(); i++) {
 			Element referenceElement = (Element) guideReferences.item(i);
 			String resourceHref = DOMUtil.getAttribute(referenceElement, NAMESPACE_OPF, OPFAttributes.href);
-			if (StringUtil.isBlank(resourceHref)) {
-				continue;
-			}
-			Resource resource = resources.getByHref(StringUtil.substringBefore(resourceHref, Constants.FRAGMENT_SEPARATOR_CHAR));
-			if (resource == null) {
-				log.error("Guide is referencing resource with href " + resourceHref + " which could not be found");
-				continue;
-			}
 			String type = DOMUtil.getAttribute(referenceElement, NAMESPACE_OPF, OPFAttributes.type);
-			if (StringUtil.isBlank(type)) {
-				log.error("Guide is referencing resource with href " + resourceHref + " which is missing the 'type' attribute");
-				continue;
-			}
 			String title = DOMUtil.getAttribute(referenceElement, NAMESPACE_OPF, OPFAttributes.title);
-			if (GuideReference.COVER.equalsIgnoreCase(type)) {
-				continue; // cover is handled elsewhere
-			}
-			GuideReference reference = new GuideReference(resource, type, title, StringUtil.substringAfter(resourceHref, Constants.FRAGMENT_SEPARATOR_CHAR));
-			guide.addReference(reference);
+			readGuideReference(resourceHref, type, title, resources, guide);
 		}
 	}
 
+	/**
+	 * Adds a reference to the guide if it refers to an existing resource.
+	 * Shared with the PackageDocumentPullReader.
+	 */
+	// package
+	static void readGuideReference(String resourceHref, String type, String title, Resources resources, Guide guide) {
+		if (StringUtil.isBlank(resourceHref)) {
+			return;
+		}
+		Resource resource = resources.getByHref(StringUtil.substringBefore(resourceHref, Constants.FRAGMENT_SEPARATOR_CHAR));
+		if (resource == null) {
+			log.error("Guide is referencing resource with href " + resourceHref + " which could not be found");
+			return;
+		}
+		if (StringUtil.isBlank(type)) {
+			log.error("Guide is referencing resource with href " + resourceHref + " which is missing the 'type' attribute");
+			return;
+		}
+		if (GuideReference.COVER.equalsIgnoreCase(type)) {
+			return; // cover is handled elsewhere
+		}
+		GuideReference reference = new GuideReference(resource, type, title, StringUtil.substringAfter(resourceHref, Constants.FRAGMENT_SEPARATOR_CHAR));
+		guide.addReference(reference);
+	}
+
 
 	/**
 	 * Strips off the package prefixes up to the href of the packageHref.
@@ -238,7 +260,8 @@ public class PackageDocumentReader extends PackageDocumentBase {
 	 * @param resourcesByHref
 	 * @return
 	 */
-	private static Resources fixHrefs(String packageHref,
+	// package
+	static Resources fixHrefs(String packageHref,
 			Resources resourcesByHref) {
 		int lastSlashPos = packageHref.lastIndexOf('/');
 		if(lastSlashPos < 0) {
@@ -282,34 +305,50 @@ public class PackageDocumentReader extends PackageDocumentBase {
 		for(int i = 0; i < spineNodes.getLength(); i++) {
 			Element spineItem = (Element) spineNodes.item(i);
 			String itemref = DOMUtil.getAttribute(spineItem, NAMESPACE_OPF, OPFAttributes.idref);
-			if(StringUtil.isBlank(itemref)) {
-				log.error("itemref with missing or empty idref"); // XXX
-				continue;
+			String properties = DOMUtil.getAttribute(spineItem, NAMESPACE_OPF, OPFAttributes.properties);
+			String linear = DOMUtil.getAttribute(spineItem, NAMESPACE_OPF, OPFAttributes.linear);
+			SpineReference spineReference = readSpineReference(itemref, properties, linear, resources, idMapping);
+			if (spineReference != null) {
+				spineReferences.add(spineReference);
 			}
-			String id = idMapping.get(itemref);
-			if (id == null) {
-				id = itemref;
-			}
-			Resource resource = resources.getByIdOrHref(id);
-			if(resource == null) {
-				log.error("resource with id \'" + id + "\' not found");
-				continue;
-			}
-			
-			SpineReference spineReference = new SpineReference(resource);
-            spineReference.setIdref(itemref);
-            String properties = DOMUtil.getAttribute(spineItem, NAMESPACE_OPF, OPFAttributes.properties);
-            spineReference.setProperties(SpineItemRefProperties.findProperties(properties));
-			if (OPFValues.no.equalsIgnoreCase(DOMUtil.getAttribute(spineItem, NAMESPACE_OPF, OPFAttributes.linear))) {
-				spineReference.setLinear(false);
-			}
-			spineReferences.add(spineReference);
 		}
 		result.setSpineReferences(spineReferences);
 		return result;
 	}
 
-    private static Resource readNav(Manifest manifest) {
+	/**
+	 * Creates the spine reference for the given itemref.
+	 * Shared with the PackageDocumentPullReader.
+	 * 
+	 * @return null if the itemref does not refer to an existing resource.
+	 */
+	// package
+	static SpineReference readSpineReference(String itemref, String properties, String linear, Resources resources, Map<String, String> idMapping) {
+		if(StringUtil.isBlank(itemref)) {
+			log.error("itemref with missing or empty idref"); // XXX
+			return null;
+		}
+		String id = idMapping.get(itemref);
+		if (id == null) {
+			id = itemref;
+		}
+		Resource resource = resources.getByIdOrHref(id);
+		if(resource == null) {
+			log.error("resource with id \'" + id + "\' not found");
+			return null;
+		}
+		
+		SpineReference spineReference = new SpineReference(resource);
+		spineReference.setIdref(itemref);
+		spineReference.setProperties(SpineItemRefProperties.findProperties(properties));
+		if (OPFValues.no.equalsIgnoreCase(linear)) {
+			spineReference.setLinear(false);
+		}
+		return spineReference;
+	}
+
+    // package
+    static Resource readNav(Manifest manifest) {
         for (ManifestItemReference reference : manifest.getReferences()) {
             if (reference.getProperties() == ManifestItemProperties.NAV) {
                 return reference.getResource();
@@ -324,19 +363,24 @@ public class PackageDocumentReader extends PackageDocumentBase {
         if (bindingsElement != null) {
             NodeList nodeList = bindingsElement.getElementsByTagNameNS(NAMESPACE_OPF, OPFTags.mediaType);
             for (int i = 0; i < nodeList.getLength(); i++) {
-                MediaType mediaType = new MediaType();
-                result.addMediaType(mediaType);
                 Element element = (Element) nodeList.item(i);
                 String mediaTypeName = DOMUtil.getAttribute(element, NAMESPACE_OPF, OPFAttributes.media_type);
                 String handler = DOMUtil.getAttribute(element, NAMESPACE_OPF, OPFAttributes.handler);
-                mediaType.setMediaTypeProperty(MediatypeService.getMediaTypeByName(mediaTypeName));
-                mediaType.setHandler(handler);
+                result.addMediaType(createMediaType(mediaTypeName, handler));
             }
         }
 
         return result;
     }
 
+    // package
+    static MediaType createMediaType(String mediaTypeName, String handler) {
+        MediaType mediaType = new MediaType();
+        mediaType.setMediaTypeProperty(MediatypeService.getMediaTypeByName(mediaTypeName));
+        mediaType.setHandler(handler);
+        return mediaType;
+    }
+
 	/**
 	 * Creates a spine out of all resources in the resources.
 	 * The generated spine consists of all XHTML pages in order of their href.
@@ -344,7 +388,8 @@ public class PackageDocumentReader extends PackageDocumentBase {
 	 * @param resources
 	 * @return
 	 */
-	private static Spine generateSpineFromResources(Resources resources) {
+	// package
+	static Spine generateSpineFromResources(Resources resources) {
 		Spine result = new Spine();
 		List<String> resourceHrefs = new ArrayList<String>();
 		resourceHrefs.addAll(resources.getAllHrefs());
@@ -413,29 +458,44 @@ public class PackageDocumentReader extends PackageDocumentBase {
 	// package
 	static Set<String> findCoverHrefs(Document packageDocument, Manifest manifest) {
 		
-		Set<String> result = new HashSet<String>();
-		
 		// try and find a meta tag with name = 'cover' and a non-blank id
 		String coverResourceId = DOMUtil.getFindAttributeValue(packageDocument, NAMESPACE_OPF,
 											OPFTags.meta, OPFAttributes.name, OPFValues.meta_cover,
 											OPFAttributes.content);
-
+		String coverItemHref = null;
 		if (StringUtil.isNotBlank(coverResourceId)) {
-			String coverHref = DOMUtil.getFindAttributeValue(packageDocument, NAMESPACE_OPF,
+			coverItemHref = DOMUtil.getFindAttributeValue(packageDocument, NAMESPACE_OPF,
 					OPFTags.item, OPFAttributes.id, coverResourceId,
 					OPFAttributes.href);
-			if (StringUtil.isNotBlank(coverHref)) {
-				result.add(coverHref);
-			} else {
-				result.add(coverResourceId); // maybe there was a cover href put in the cover id attribute
-			}
 		}
 		// try and find a reference tag with type is 'cover' and reference is not blank
-		String coverHref = DOMUtil.getFindAttributeValue(packageDocument, NAMESPACE_OPF,
+		String coverReferenceHref = DOMUtil.getFindAttributeValue(packageDocument, NAMESPACE_OPF,
 											OPFTags.reference, OPFAttributes.type, OPFValues.reference_cover,
 											OPFAttributes.href);
-        if (StringUtil.isNotBlank(coverHref)) {
-			result.add(coverHref);
+		return findCoverHrefs(coverResourceId, coverItemHref, coverReferenceHref, manifest);
+	}
+
+	/**
+	 * Collects the hrefs of the cover resources from what was found in the package document.
+	 * 
+	 * @param coverResourceId the content of the meta tag with name 'cover'
+	 * @param coverItemHref the href of the manifest item with the coverResourceId as id
+	 * @param coverReferenceHref the href of the guide reference with type 'cover'
+	 * @param manifest
+	 * @return
+	 */
+	// package
+	static Set<String> findCoverHrefs(String coverResourceId, String coverItemHref, String coverReferenceHref, Manifest manifest) {
+		Set<String> result = new HashSet<String>();
+		if (StringUtil.isNotBlank(coverResourceId)) {
+			if (StringUtil.isNotBlank(coverItemHref)) {
+				result.add(coverItemHref);
+			} else {
+				result.add(coverResourceId); // maybe there was a cover href put in the cover id attribute
+			}
+		}
+        if (StringUtil.isNotBlank(coverReferenceHref)) {
+			result.add(coverReferenceHref);
 		}
 
         for (ManifestItemReference reference : manifest.getReferences()) {
@@ -446,6 +506,50 @@ public class PackageDocumentReader extends PackageDocumentBase {
         return result;
 	}
 
+	/**
+	 * Finds the href of the cover image using only the package document.
+	 * 
+	 * Looks for a manifest item with the 'cover-image' property or one that is referred to by the 'cover' meta tag,
+	 * and that has a bitmap image media type.
+	 * 
+	 * @param packageDocument
+	 * @return the cover image's href relative to the package document, null if not found.
+	 */
+	// package
+	static String findCoverImageHref(Document packageDocument) {
+		String coverResourceId = DOMUtil.getFindAttributeValue(packageDocument, NAMESPACE_OPF,
+				OPFTags.meta, OPFAttributes.name, OPFValues.meta_cover,
+				OPFAttributes.content);
+		String result = null;
+		NodeList itemElements = packageDocument.getElementsByTagNameNS(NAMESPACE_OPF, OPFTags.item);
+		for (int i = 0; i < itemElements.getLength(); i++) {
+			Element itemElement = (Element) itemElements.item(i);
+			String href = DOMUtil.getAttribute(itemElement, NAMESPACE_OPF, OPFAttributes.href);
+			MediaTypeProperty mediaTypeProperty = MediatypeService.getMediaType(href, DOMUtil.getAttribute(itemElement, NAMESPACE_OPF, OPFAttributes.media_type));
+			if (! MediatypeService.isBitmapImage(mediaTypeProperty)) {
+				continue;
+			}
+			String properties = DOMUtil.getAttribute(itemElement, NAMESPACE_OPF, OPFAttributes.properties);
+			if (ManifestItemProperties.findProperties(properties) == ManifestItemProperties.COVER_IMAGE) {
+				result = href;
+				break;
+			}
+			if (result == null && coverResourceId != null
+					&& coverResourceId.equals(DOMUtil.getAttribute(itemElement, NAMESPACE_OPF, OPFAttributes.id))) {
+				result = href;
+			}
+		}
+		if (result == null) {
+			return null;
+		}
+		try {
+			return URLDecoder.decode(result, Constants.CHARACTER_ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			log.error(e.getMessage());
+			return result;
+		}
+	}
+
 	/**
 	 * Finds the cover resource in the packageDocument and adds it to the book if found.
 	 * Keeps the cover resource in the resources map
@@ -454,8 +558,11 @@ public class PackageDocumentReader extends PackageDocumentBase {
 	 * @return
 	 */
 	private static void readCover(Document packageDocument, Book book) {
-		
-		Collection<String> coverHrefs = findCoverHrefs(packageDocument, book.getManifest());
+		readCover(findCoverHrefs(packageDocument, book.getManifest()), book);
+	}
+
+	// package
+	static void readCover(Collection<String> coverHrefs, Book book) {
 		for (String coverHref: coverHrefs) {
 			Resource resource = book.getResources().getByHref(coverHref);
 			if (resource == null) {
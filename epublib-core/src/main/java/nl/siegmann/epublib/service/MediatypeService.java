@@ -3,8 +3,11 @@ package nl.siegmann.epublib.service;
 import nl.siegmann.epublib.domain.MediaTypeProperty;
 import nl.siegmann.epublib.util.StringUtil;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -43,21 +46,81 @@ public class MediatypeService {
 	public static final MediaTypeProperty XPGT = new MediaTypeProperty("application/adobe-page-template+xml", ".xpgt");
 	public static final MediaTypeProperty PLS = new MediaTypeProperty("application/pls+xml", ".pls");
 	
-	public static MediaTypeProperty[] mediatypes = new MediaTypeProperty[] {
+	public static volatile MediaTypeProperty[] mediatypes = new MediaTypeProperty[] {
 		XHTML, EPUB, JPG, PNG, GIF, CSS, SVG, TTF, NCX, XPGT, OPENTYPE, WOFF, SMIL, PLS, JAVASCRIPT, MP3, MP4, OGG
 	};
 	
-	public static Map<String, MediaTypeProperty> mediaTypesByName = new HashMap<String, MediaTypeProperty>();
+	public static Map<String, MediaTypeProperty> mediaTypesByName = new ConcurrentHashMap<String, MediaTypeProperty>();
+	
+	// the mediatypes by their lowercase extensions, including the leading '.'
+	private static final ConcurrentMap<String, MediaTypeProperty> mediaTypesByExtension = new ConcurrentHashMap<String, MediaTypeProperty>();
+	
+	// prevents books with lots of made up mediatypes from filling up unknownMediaTypes
+	private static final int MAX_UNKNOWN_MEDIATYPES = 1000;
+	
+	// the canonical instances of the mediatypes found in epubs that are not in mediaTypesByName, by name.
+	// The least recently used ones are dropped beyond MAX_UNKNOWN_MEDIATYPES, a later lookup creates a new instance.
+	private static final Map<String, MediaTypeProperty> unknownMediaTypes = new LinkedHashMap<String, MediaTypeProperty>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MediaTypeProperty> eldest) {
+			return size() > MAX_UNKNOWN_MEDIATYPES;
+		}
+	};
+	
 	static {
 		for(int i = 0; i < mediatypes.length; i++) {
-			mediaTypesByName.put(mediatypes[i].getName(), mediatypes[i]);
+			index(mediatypes[i]);
+		}
+	}
+	
+	private static void index(MediaTypeProperty mediaTypeProperty) {
+		mediaTypesByName.put(mediaTypeProperty.getName(), mediaTypeProperty);
+		for (String extension: mediaTypeProperty.getExtensions()) {
+			mediaTypesByExtension.putIfAbsent(extension.toLowerCase(Locale.ENGLISH), mediaTypeProperty);
 		}
 	}
 	
+	/**
+	 * Adds a mediatype to the known mediatypes.
+	 * 
+	 * Afterwards determineMediaType will recognize the mediatype's extensions and getMediaTypeByName its name.
+	 * If an extension already belongs to another mediatype then determineMediaType keeps returning that one.
+	 * 
+	 * @param mediaTypeProperty the mediatype to add. Its extensions must start with a '.'
+	 */
+	public static synchronized void register(MediaTypeProperty mediaTypeProperty) {
+		if (mediaTypesByName.containsKey(mediaTypeProperty.getName())) {
+			throw new IllegalArgumentException("Mediatype " + mediaTypeProperty.getName() + " is already registered");
+		}
+		MediaTypeProperty[] newMediatypes = new MediaTypeProperty[mediatypes.length + 1];
+		System.arraycopy(mediatypes, 0, newMediatypes, 0, mediatypes.length);
+		newMediatypes[mediatypes.length] = mediaTypeProperty;
+		index(mediaTypeProperty);
+		synchronized (unknownMediaTypes) {
+			unknownMediaTypes.remove(mediaTypeProperty.getName());
+		}
+		mediatypes = newMediatypes;
+	}
+	
 	public static boolean isBitmapImage(MediaTypeProperty mediaTypeProperty) {
 		return mediaTypeProperty == JPG || mediaTypeProperty == PNG || mediaTypeProperty == GIF;
 	}
 	
+	/**
+	 * Whether the data of the given mediatype is compressed already, so that deflating it gains next to nothing.
+	 * 
+	 * @param mediaTypeProperty
+	 * @return whether the data of the given mediatype is compressed already.
+	 */
+	public static boolean isCompressed(MediaTypeProperty mediaTypeProperty) {
+		return isBitmapImage(mediaTypeProperty)
+				|| mediaTypeProperty == MP3 || mediaTypeProperty == MP4 || mediaTypeProperty == OGG
+				|| mediaTypeProperty == WOFF;
+	}
+	
 	/**
 	 * Gets the MediaType based on the file extension.
 	 * Null of no matching extension found.
@@ -66,27 +129,50 @@ public class MediatypeService {
 	 * @return
 	 */
 	public static MediaTypeProperty determineMediaType(String filename) {
-		for(int i = 0; i < mediatypes.length; i++) {
-			MediaTypeProperty mediatype = mediatypes[i];
-			for(String extension: mediatype.getExtensions()) {
-				if(StringUtil.endsWithIgnoreCase(filename, extension)) {
-					return mediatype;
-				}
-			}
+		if (filename == null) {
+			return null;
+		}
+		int extensionPos = filename.lastIndexOf('.');
+		if (extensionPos < 0) {
+			return null;
 		}
-		return null;
+		return mediaTypesByExtension.get(filename.substring(extensionPos).toLowerCase(Locale.ENGLISH));
 	}
 
 	public static MediaTypeProperty getMediaTypeByName(String mediaTypeName) {
+		if (mediaTypeName == null) {
+			return null;
+		}
 		return mediaTypesByName.get(mediaTypeName);
 	}
 
+    /**
+     * Gets the mediatype with the given name.
+     * 
+     * If the name is not one of the known mediatypes then a mediatype with the given name and without extensions
+     * is created, the extension of a resource of that mediatype is the one of its href.
+     * Later calls with the same name return that same instance, as long as it is one of the
+     * most recently used unknown mediatypes.
+     * 
+     * @param href only used for the extension of a mediatype without a name
+     * @param mediaTypeName
+     * @return
+     */
     public static MediaTypeProperty getMediaType(String href, String mediaTypeName) {
         MediaTypeProperty mediaTypeProperty = getMediaTypeByName(mediaTypeName);
         if (mediaTypeProperty != null)
             return mediaTypeProperty;
-        String extention = StringUtil.substringAfterLast(href, '.');
-        mediaTypeProperty = new MediaTypeProperty(mediaTypeName, extention);
+        if (mediaTypeName == null) {
+            String extention = StringUtil.substringAfterLast(href, '.');
+            return new MediaTypeProperty(mediaTypeName, extention);
+        }
+        synchronized (unknownMediaTypes) {
+            mediaTypeProperty = unknownMediaTypes.get(mediaTypeName);
+            if (mediaTypeProperty == null) {
+                mediaTypeProperty = new MediaTypeProperty(mediaTypeName, "", new String[0]);
+                unknownMediaTypes.put(mediaTypeName, mediaTypeProperty);
+            }
+        }
         return mediaTypeProperty;
     }
 
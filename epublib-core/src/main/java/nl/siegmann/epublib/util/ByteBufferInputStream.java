@@ -0,0 +1,57 @@
+package nl.siegmann.epublib.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads the remaining bytes of a ByteBuffer.
+ * 
+ * The stream works on a duplicate of the given buffer, the position of the original buffer is left untouched.
+ * 
+ * @author paul
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer buffer;
+	
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+	}
+
+	@Override
+	public int read() {
+		if (! buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		if (! buffer.hasRemaining()) {
+			return -1;
+		}
+		int readSize = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, readSize);
+		return readSize;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int skipSize = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + skipSize);
+		return skipSize;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
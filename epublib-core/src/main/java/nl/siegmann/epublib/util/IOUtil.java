@@ -10,6 +10,11 @@ public class IOUtil {
 
 	public static final int IO_COPY_BUFFER_SIZE = 1024 * 4;
 
+	/**
+	 * The size of the largest byte[] that can be allocated.
+	 */
+	public static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
 	/**
 	 * Gets the contents of the Reader as a byte[], with the given character encoding.
 	 * 
@@ -42,35 +47,43 @@ public class IOUtil {
     /**
      * Reads data from the InputStream, using the specified buffer size.
      *
-     * This is meant for situations where memory is tight, since
+     * This is meant for situations where the size is known ahead, since
      * it prevents buffer expansion.
      *
      * @param stream the stream to read data from
      * @param size the size of the array to create
-     * @return the array, or null
+     * @return the array
      * @throws IOException
      */
     public static byte[] toByteArray( InputStream in, int size ) throws IOException {
+        ByteArrayOutputStream result;
 
-        try {
-            ByteArrayOutputStream result;
-
-            if ( size > 0 ) {
-                result = new ByteArrayOutputStream(size);
-            } else {
-                result = new ByteArrayOutputStream();
-            }
-
-            copy(in, result);
-            result.flush();
-            return result.toByteArray();
-        } catch ( OutOfMemoryError error ) {
-            //Return null so it gets loaded lazily.
-            return null;
+        if ( size > 0 ) {
+            result = new ByteArrayOutputStream(size);
+        } else {
+            result = new ByteArrayOutputStream();
         }
 
+        copy(in, result);
+        result.flush();
+        return result.toByteArray();
     }
 
+	/**
+	 * Reads data from the InputStream, like toByteArray(InputStream, int), for a size that may be larger than a byte[] can be.
+	 * 
+	 * @param in the stream to read data from
+	 * @param size the size of the data, -1 if unknown
+	 * @return the array
+	 * @throws IOException if the data is too large to fit in a byte[]
+	 */
+	public static byte[] toByteArray(InputStream in, long size) throws IOException {
+		if (size > MAX_ARRAY_SIZE) {
+			throw new IOException("Unable to read " + size + " bytes into a byte[], stream the data instead");
+		}
+		return toByteArray(in, (int) size);
+	}
+
 
     /**
 	 * if totalNrRead < 0 then totalNrRead is returned, if (nrRead + totalNrRead) < Integer.MAX_VALUE then nrRead + totalNrRead is returned, -1 otherwise.
@@ -96,6 +109,7 @@ public class IOUtil {
 	 * @param out
 	 * @return the nr of bytes read, or -1 if the amount > Integer.MAX_VALUE
 	 * @throws IOException
+	 * @see #copyLarge(InputStream, OutputStream)
 	 */
 	public static int copy(InputStream in, OutputStream out)
 			throws IOException {
@@ -110,6 +124,25 @@ public class IOUtil {
 		return result;
 	}
 
+	/**
+	 * Copies the contents of the InputStream to the OutputStream, counting the bytes in a long.
+	 * 
+	 * @param in
+	 * @param out
+	 * @return the nr of bytes read.
+	 * @throws IOException
+	 */
+	public static long copyLarge(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[IO_COPY_BUFFER_SIZE];
+		long result = 0;
+		for (int readSize = in.read(buffer); readSize >= 0; readSize = in.read(buffer)) {
+			out.write(buffer, 0, readSize);
+			result += readSize;
+		}
+		out.flush();
+		return result;
+	}
+
 	/**
 	 * Copies the contents of the Reader to the Writer.
 	 * 
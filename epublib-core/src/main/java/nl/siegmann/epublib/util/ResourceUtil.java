@@ -3,6 +3,7 @@ package nl.siegmann.epublib.util;
 import nl.siegmann.epublib.Constants;
 import nl.siegmann.epublib.domain.MediaTypeProperty;
 import nl.siegmann.epublib.domain.Resource;
+import nl.siegmann.epublib.domain.ResourceStorage;
 import nl.siegmann.epublib.domain.Resources;
 import nl.siegmann.epublib.epub.EpubProcessorSupport;
 import nl.siegmann.epublib.service.MediatypeService;
@@ -60,6 +61,31 @@ public class ResourceUtil {
 		return new Resource(zipInputStream, zipEntry.getName());
 
 	}
+
+	/**
+	 * Creates a resource out of the given zipEntry and the inputStream containing its data.
+	 * 
+	 * @param zipEntry
+	 * @param inputStream
+	 * @return
+	 * @throws IOException
+	 */
+	public static Resource createResource(ZipEntry zipEntry, InputStream inputStream) throws IOException {
+		return new Resource(inputStream, zipEntry.getName());
+	}
+
+	/**
+	 * Creates a resource out of the given zipEntry and the inputStream containing its data, stored by the given storage.
+	 * 
+	 * @param zipEntry
+	 * @param zipInputStream
+	 * @param storage
+	 * @return
+	 * @throws IOException
+	 */
+	public static Resource createResource(ZipEntry zipEntry, InputStream zipInputStream, ResourceStorage storage) throws IOException {
+		return new Resource(zipInputStream, zipEntry.getName(), storage, zipEntry.getSize());
+	}
 		
 
 	/**
@@ -96,7 +122,7 @@ public class ResourceUtil {
 	 * Reads parses the xml therein and returns the result as a Document
 	 */
 	public static Document getAsDocument(Resource resource) throws UnsupportedEncodingException, SAXException, IOException, ParserConfigurationException {
-		return getAsDocument(resource, EpubProcessorSupport.createDocumentBuilder());
+		return getAsDocument(resource, EpubProcessorSupport.getDocumentBuilder());
 	}
 	
 	
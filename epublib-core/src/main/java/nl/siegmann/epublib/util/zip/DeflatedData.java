@@ -0,0 +1,134 @@
+package nl.siegmann.epublib.util.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import nl.siegmann.epublib.util.IOUtil;
+
+/**
+ * The deflated data of a zip entry, compressed ahead of writing it with RawZipOutputStream.writeDeflatedEntry.
+ *
+ * Allows entries to be compressed on several threads, while the zip file itself is written by one.
+ * The deflated data is kept in a single byte[], so this is meant for entries of limited size.
+ * Larger entries are better written with RawZipOutputStream.putNextEntry, which deflates them while streaming.
+ *
+ * @author paul
+ *
+ */
+public class DeflatedData {
+
+	private byte[] data;
+	private int length;
+	private long crc;
+	private long size;
+
+	private DeflatedData(byte[] data, int length, long crc, long size) {
+		this.data = data;
+		this.length = length;
+		this.crc = crc;
+		this.size = size;
+	}
+
+	/**
+	 * Reads the given stream to its end and deflates it.
+	 *
+	 * The stream is not closed.
+	 *
+	 * @param in the data to compress
+	 * @param level the compression level, see java.util.zip.Deflater
+	 * @return the deflated data
+	 * @throws IOException also if the deflated data does not fit in a byte[]
+	 */
+	public static DeflatedData deflate(InputStream in, int level) throws IOException {
+		return deflate(in, level, IOUtil.MAX_ARRAY_SIZE);
+	}
+
+	/**
+	 * Reads the given stream to its end and deflates it, keeping at most maxLength bytes of deflated data in memory.
+	 *
+	 * The stream is not closed.
+	 *
+	 * @param in the data to compress
+	 * @param level the compression level, see java.util.zip.Deflater
+	 * @param maxLength the maximum size of the deflated data
+	 * @return the deflated data
+	 * @throws IOException also if the deflated data is larger than maxLength
+	 */
+	public static DeflatedData deflate(InputStream in, int level, int maxLength) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[IOUtil.IO_COPY_BUFFER_SIZE];
+			byte[] result = new byte[Math.min(IOUtil.IO_COPY_BUFFER_SIZE, Math.max(maxLength, 1))];
+			int length = 0;
+			long size = 0;
+			for (int readLength = in.read(buffer); readLength >= 0; readLength = in.read(buffer)) {
+				crc.update(buffer, 0, readLength);
+				size += readLength;
+				deflater.setInput(buffer, 0, readLength);
+				while (! deflater.needsInput()) {
+					result = ensureCapacity(result, length, maxLength);
+					length += deflater.deflate(result, length, result.length - length);
+				}
+			}
+			deflater.finish();
+			while (! deflater.finished()) {
+				result = ensureCapacity(result, length, maxLength);
+				length += deflater.deflate(result, length, result.length - length);
+			}
+			return new DeflatedData(result, length, crc.getValue(), size);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] ensureCapacity(byte[] data, int length, int maxLength) throws IOException {
+		if (length < data.length) {
+			return data;
+		}
+		if (length >= maxLength) {
+			throw new IOException("Deflated data is larger than " + maxLength + " bytes");
+		}
+		byte[] result = new byte[(int) Math.min((long) data.length * 2, maxLength)];
+		System.arraycopy(data, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * The buffer holding the deflated data, only the first getLength() bytes are used.
+	 *
+	 * @return the buffer holding the deflated data.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * The size of the deflated data.
+	 *
+	 * @return the size of the deflated data.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * The crc of the uncompressed data.
+	 *
+	 * @return the crc of the uncompressed data.
+	 */
+	public long getCrc() {
+		return crc;
+	}
+
+	/**
+	 * The size of the uncompressed data.
+	 *
+	 * @return the size of the uncompressed data.
+	 */
+	public long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,505 @@
+package nl.siegmann.epublib.util.zip;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import nl.siegmann.epublib.util.IOUtil;
+
+/**
+ * Writes a zip file, like java.util.zip.ZipOutputStream, with the addition that entries can be copied
+ * from another zip file as is, without inflating and deflating their data.
+ *
+ * Entries are written one after the other like with ZipOutputStream: putNextEntry, write the data, closeEntry.
+ * writeRawEntry copies an entry's compressed data, crc and sizes straight from another zip file.
+ *
+ * The ZIP64 extensions are used for the entries and the central directory where the sizes, offsets or
+ * the number of entries do not fit the original zip format, so there is no limit to the size of the zip file.
+ *
+ * @author paul
+ *
+ */
+public class RawZipOutputStream extends OutputStream {
+
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int FLAG_ENCRYPTED = 0x01;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	private static final int FLAG_UTF8 = 0x800;
+	private static final int VERSION_NEEDED = 20;
+	private static final int VERSION_NEEDED_ZIP64 = 45;
+	private static final long MAX_INT = 0xFFFFFFFFL;
+
+	private OutputStream out;
+	private long written = 0;
+	private List<ZipDirectoryEntry> entries = new ArrayList<ZipDirectoryEntry>();
+	private Set<String> names = new HashSet<String>();
+	private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private byte[] deflateBuffer = new byte[IOUtil.IO_COPY_BUFFER_SIZE];
+	private CRC32 crc = new CRC32();
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private byte[] header = new byte[ZipDirectory.CENTRAL_HEADER_SIZE];
+
+	// the entry that is currently being written, null if none
+	private ZipEntry currentEntry;
+	private long currentLocalHeaderOffset;
+	private long currentDosTime;
+	private int currentFlags;
+	private long currentSize;
+	private long currentDataOffset;
+	private boolean finished = false;
+
+	public RawZipOutputStream(OutputStream out) {
+		this.out = new BufferedOutputStream(out, IOUtil.IO_COPY_BUFFER_SIZE);
+	}
+
+	/**
+	 * Continues a zip file after entries that are already in it.
+	 *
+	 * The existing entries are kept as they are and are listed in the central directory written by finish,
+	 * before the entries written hereafter.
+	 *
+	 * @param out the stream writing to the zip file, positioned at the given offset
+	 * @param offset the position within the zip file where out starts writing
+	 * @param existingEntries the entries that are already stored in the zip file before the given offset
+	 * @throws ZipException if the existing entries contain the same name twice
+	 */
+	public RawZipOutputStream(OutputStream out, long offset, List<ZipDirectoryEntry> existingEntries) throws ZipException {
+		this(out);
+		this.written = offset;
+		for (ZipDirectoryEntry entry: existingEntries) {
+			if (entry.getLocalHeaderOffset() >= offset) {
+				throw new ZipException("Existing entry " + entry.getName() + " is not stored before offset " + offset);
+			}
+			addName(entry.getName());
+			entries.add(entry);
+		}
+	}
+
+	/**
+	 * Sets the compression level of the entries started hereafter.
+	 *
+	 * @param level the compression level, see java.util.zip.Deflater
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Starts a new entry, closing the current one if there is one.
+	 *
+	 * Entries are deflated unless their method is ZipEntry.STORED, in which case both their size and crc must be set.
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void putNextEntry(ZipEntry entry) throws IOException {
+		closeEntry();
+		int method = entry.getMethod() == -1 ? ZipEntry.DEFLATED : entry.getMethod();
+		int flags = getNameFlags(entry.getName());
+		if (method == ZipEntry.STORED) {
+			if (entry.getSize() < 0 || entry.getCrc() < 0) {
+				throw new ZipException("STORED entry " + entry.getName() + " is missing its size and crc");
+			}
+		} else if (method == ZipEntry.DEFLATED) {
+			// the crc and sizes follow the data
+			flags |= FLAG_DATA_DESCRIPTOR;
+		} else {
+			throw new ZipException("Unsupported compression method " + method + " for entry " + entry.getName());
+		}
+		entry.setMethod(method);
+		addName(entry.getName());
+		deflater.setLevel(level);
+		currentEntry = entry;
+		currentFlags = flags;
+		currentDosTime = javaToDosTime(entry.getTime() == -1 ? System.currentTimeMillis() : entry.getTime());
+		currentLocalHeaderOffset = written;
+		currentSize = 0;
+		crc.reset();
+		if (method == ZipEntry.STORED) {
+			writeLocalHeader(entry.getName(), flags, method, currentDosTime, entry.getCrc(), entry.getSize(), entry.getSize());
+		} else {
+			writeLocalHeader(entry.getName(), flags, method, currentDosTime, 0, 0, 0);
+		}
+		currentDataOffset = written;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (currentEntry == null) {
+			throw new ZipException("No current zip entry");
+		}
+		if (length == 0) {
+			return;
+		}
+		crc.update(data, offset, length);
+		currentSize += length;
+		if (currentEntry.getMethod() == ZipEntry.STORED) {
+			writeBytes(data, offset, length);
+			return;
+		}
+		deflater.setInput(data, offset, length);
+		while (! deflater.needsInput()) {
+			deflate();
+		}
+	}
+
+	private void deflate() throws IOException {
+		int deflatedLength = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+		if (deflatedLength > 0) {
+			writeBytes(deflateBuffer, 0, deflatedLength);
+		}
+	}
+
+	/**
+	 * Finishes the current entry, if there is one.
+	 *
+	 * @throws IOException
+	 */
+	public void closeEntry() throws IOException {
+		if (currentEntry == null) {
+			return;
+		}
+		ZipEntry entry = currentEntry;
+		currentEntry = null;
+		long compressedSize;
+		if (entry.getMethod() == ZipEntry.STORED) {
+			if (currentSize != entry.getSize()) {
+				throw new ZipException("Invalid size for STORED entry " + entry.getName() + ": expected " + entry.getSize() + " but got " + currentSize + " bytes");
+			}
+			if (crc.getValue() != entry.getCrc()) {
+				throw new ZipException("Invalid crc for STORED entry " + entry.getName());
+			}
+			compressedSize = currentSize;
+		} else {
+			deflater.finish();
+			while (! deflater.finished()) {
+				deflate();
+			}
+			deflater.reset();
+			compressedSize = written - currentDataOffset;
+			writeInt(DATA_DESCRIPTOR_SIGNATURE);
+			writeInt(crc.getValue());
+			if (isZip64(compressedSize) || isZip64(currentSize)) {
+				// like java.util.zip.ZipOutputStream, and understood by ZipInputStream
+				writeLong(compressedSize);
+				writeLong(currentSize);
+			} else {
+				writeInt(compressedSize);
+				writeInt(currentSize);
+			}
+		}
+		entries.add(new ZipDirectoryEntry(entry.getName(), currentFlags, entry.getMethod(), currentDosTime,
+				crc.getValue(), compressedSize, currentSize, currentLocalHeaderOffset));
+	}
+
+	/**
+	 * Copies an entry from another zip file without decompressing it.
+	 *
+	 * @param name the name of the entry in this zip file
+	 * @param sourceEntry the entry in the source zip file
+	 * @param sourceFile the opened source zip file
+	 * @throws IOException
+	 */
+	public void writeRawEntry(String name, ZipDirectoryEntry sourceEntry, RandomAccessFile sourceFile) throws IOException {
+		closeEntry();
+		if (! canCopy(sourceEntry)) {
+			throw new ZipException("Unable to copy entry " + sourceEntry.getName() + " with compression method " + sourceEntry.getMethod() + " and flags " + sourceEntry.getFlags());
+		}
+		long dataOffset = ZipDirectory.getDataOffset(sourceEntry, sourceFile);
+		addName(name);
+		// the sizes and crc are known, so no data descriptor is needed
+		int flags = (sourceEntry.getFlags() & ~(FLAG_DATA_DESCRIPTOR | FLAG_UTF8)) | getNameFlags(name);
+		long localHeaderOffset = written;
+		writeLocalHeader(name, flags, sourceEntry.getMethod(), sourceEntry.getDosTime(),
+				sourceEntry.getCrc(), sourceEntry.getCompressedSize(), sourceEntry.getSize());
+		sourceFile.seek(dataOffset);
+		long remaining = sourceEntry.getCompressedSize();
+		while (remaining > 0) {
+			int readLength = sourceFile.read(deflateBuffer, 0, (int) Math.min(deflateBuffer.length, remaining));
+			if (readLength < 0) {
+				throw new ZipException("Unexpected end of zip entry " + sourceEntry.getName());
+			}
+			writeBytes(deflateBuffer, 0, readLength);
+			remaining -= readLength;
+		}
+		entries.add(new ZipDirectoryEntry(name, flags, sourceEntry.getMethod(), sourceEntry.getDosTime(),
+				sourceEntry.getCrc(), sourceEntry.getCompressedSize(), sourceEntry.getSize(), localHeaderOffset));
+	}
+
+	/**
+	 * Writes an entry whose data was deflated in advance.
+	 *
+	 * @param entry the name and time of the entry
+	 * @param deflatedData the entry's deflated data
+	 * @throws IOException
+	 */
+	public void writeDeflatedEntry(ZipEntry entry, DeflatedData deflatedData) throws IOException {
+		closeEntry();
+		addName(entry.getName());
+		int flags = getNameFlags(entry.getName());
+		long dosTime = javaToDosTime(entry.getTime() == -1 ? System.currentTimeMillis() : entry.getTime());
+		long localHeaderOffset = written;
+		writeLocalHeader(entry.getName(), flags, ZipEntry.DEFLATED, dosTime,
+				deflatedData.getCrc(), deflatedData.getLength(), deflatedData.getSize());
+		writeBytes(deflatedData.getData(), 0, deflatedData.getLength());
+		entries.add(new ZipDirectoryEntry(entry.getName(), flags, ZipEntry.DEFLATED, dosTime,
+				deflatedData.getCrc(), deflatedData.getLength(), deflatedData.getSize(), localHeaderOffset));
+	}
+
+	/**
+	 * Whether writeRawEntry can copy the given entry.
+	 *
+	 * Entries must be either stored or deflated, and not encrypted.
+	 *
+	 * @param entry
+	 * @return whether writeRawEntry can copy the given entry.
+	 */
+	public static boolean canCopy(ZipDirectoryEntry entry) {
+		return (entry.getMethod() == ZipEntry.STORED || entry.getMethod() == ZipEntry.DEFLATED)
+				&& (entry.getFlags() & FLAG_ENCRYPTED) == 0;
+	}
+
+	/**
+	 * Writes the central directory, after which no more entries can be added.
+	 *
+	 * Does not close the underlying stream.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		closeEntry();
+		finished = true;
+		long centralDirectoryOffset = written;
+		for (ZipDirectoryEntry entry: entries) {
+			writeCentralHeader(entry);
+		}
+		long centralDirectorySize = written - centralDirectoryOffset;
+		int entryCount = entries.size();
+		if (entryCount >= ZipDirectory.ZIP64_MAGIC_COUNT || isZip64(centralDirectorySize) || isZip64(centralDirectoryOffset)) {
+			writeZip64EndOfCentralDirectory(entryCount, centralDirectorySize, centralDirectoryOffset);
+			entryCount = Math.min(entryCount, ZipDirectory.ZIP64_MAGIC_COUNT);
+			centralDirectorySize = Math.min(centralDirectorySize, ZipDirectory.ZIP64_MAGIC);
+			centralDirectoryOffset = Math.min(centralDirectoryOffset, ZipDirectory.ZIP64_MAGIC);
+		}
+		writeInt(ZipDirectory.END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+		writeShort(0);
+		writeShort(0);
+		writeShort(entryCount);
+		writeShort(entryCount);
+		writeInt(centralDirectorySize);
+		writeInt(centralDirectoryOffset);
+		writeShort(0);
+		out.flush();
+		deflater.end();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The position within the zip file that the next byte is written to.
+	 *
+	 * After finish this is the length of the zip file.
+	 *
+	 * @return the position within the zip file that the next byte is written to.
+	 */
+	public long getPosition() {
+		return written;
+	}
+
+	/**
+	 * The entries written so far.
+	 *
+	 * @return the entries written so far.
+	 */
+	public List<ZipDirectoryEntry> getEntries() {
+		return entries;
+	}
+
+	private void addName(String name) throws ZipException {
+		if (finished) {
+			throw new ZipException("Zip file is already finished");
+		}
+		if (! names.add(name)) {
+			throw new ZipException("duplicate entry: " + name);
+		}
+	}
+
+	private void writeLocalHeader(String name, int flags, int method, long dosTime, long crc, long compressedSize, long size) throws IOException {
+		byte[] nameBytes = name.getBytes("UTF-8");
+		// the local header's zip64 extra field must contain both sizes
+		boolean zip64 = isZip64(compressedSize) || isZip64(size);
+		writeInt(ZipDirectory.LOCAL_HEADER_SIGNATURE);
+		writeShort(zip64 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED);
+		writeShort(flags);
+		writeShort(method);
+		writeInt(dosTime);
+		writeInt(crc);
+		writeInt(zip64 ? ZipDirectory.ZIP64_MAGIC : compressedSize);
+		writeInt(zip64 ? ZipDirectory.ZIP64_MAGIC : size);
+		writeShort(nameBytes.length);
+		writeShort(zip64 ? 20 : 0);
+		writeBytes(nameBytes, 0, nameBytes.length);
+		if (zip64) {
+			writeShort(ZipDirectory.ZIP64_EXTRA_FIELD_ID);
+			writeShort(16);
+			writeLong(size);
+			writeLong(compressedSize);
+		}
+	}
+
+	private void writeCentralHeader(ZipDirectoryEntry entry) throws IOException {
+		byte[] nameBytes = entry.getName().getBytes("UTF-8");
+		// the central header's zip64 extra field contains only the values that do not fit
+		int zip64Length = 0;
+		if (isZip64(entry.getSize())) {
+			zip64Length += 8;
+		}
+		if (isZip64(entry.getCompressedSize())) {
+			zip64Length += 8;
+		}
+		if (isZip64(entry.getLocalHeaderOffset())) {
+			zip64Length += 8;
+		}
+		int versionNeeded = zip64Length > 0 ? VERSION_NEEDED_ZIP64 : VERSION_NEEDED;
+		writeInt(ZipDirectory.CENTRAL_HEADER_SIGNATURE);
+		writeShort(versionNeeded);
+		writeShort(versionNeeded);
+		writeShort(entry.getFlags());
+		writeShort(entry.getMethod());
+		writeInt(entry.getDosTime());
+		writeInt(entry.getCrc());
+		writeInt(Math.min(entry.getCompressedSize(), ZipDirectory.ZIP64_MAGIC));
+		writeInt(Math.min(entry.getSize(), ZipDirectory.ZIP64_MAGIC));
+		writeShort(nameBytes.length);
+		writeShort(zip64Length > 0 ? zip64Length + 4 : 0); // extra field length
+		writeShort(0); // comment length
+		writeShort(0); // disk number
+		writeShort(0); // internal attributes
+		writeInt(0); // external attributes
+		writeInt(Math.min(entry.getLocalHeaderOffset(), ZipDirectory.ZIP64_MAGIC));
+		writeBytes(nameBytes, 0, nameBytes.length);
+		if (zip64Length > 0) {
+			writeShort(ZipDirectory.ZIP64_EXTRA_FIELD_ID);
+			writeShort(zip64Length);
+			if (isZip64(entry.getSize())) {
+				writeLong(entry.getSize());
+			}
+			if (isZip64(entry.getCompressedSize())) {
+				writeLong(entry.getCompressedSize());
+			}
+			if (isZip64(entry.getLocalHeaderOffset())) {
+				writeLong(entry.getLocalHeaderOffset());
+			}
+		}
+	}
+
+	/**
+	 * Writes the zip64 end of central directory record and its locator, which precede the end of central directory record.
+	 */
+	private void writeZip64EndOfCentralDirectory(int entryCount, long centralDirectorySize, long centralDirectoryOffset) throws IOException {
+		long zip64EndRecordOffset = written;
+		writeInt(ZipDirectory.ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+		// the size of the rest of the record
+		writeLong(ZipDirectory.ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE - 12);
+		writeShort(VERSION_NEEDED_ZIP64);
+		writeShort(VERSION_NEEDED_ZIP64);
+		writeInt(0); // disk number
+		writeInt(0); // disk number of the central directory
+		writeLong(entryCount);
+		writeLong(entryCount);
+		writeLong(centralDirectorySize);
+		writeLong(centralDirectoryOffset);
+		writeInt(ZipDirectory.ZIP64_LOCATOR_SIGNATURE);
+		writeInt(0); // disk number of the zip64 end of central directory record
+		writeLong(zip64EndRecordOffset);
+		writeInt(1); // total number of disks
+	}
+
+	private static int getNameFlags(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) > 0x7f) {
+				return FLAG_UTF8;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Whether the value needs the ZIP64 extensions, the maximum value of the original field is a marker for those.
+	 */
+	private static boolean isZip64(long value) {
+		return value >= ZipDirectory.ZIP64_MAGIC;
+	}
+
+	private void writeShort(int value) throws IOException {
+		header[0] = (byte) value;
+		header[1] = (byte) (value >> 8);
+		writeBytes(header, 0, 2);
+	}
+
+	private void writeInt(long value) throws IOException {
+		header[0] = (byte) value;
+		header[1] = (byte) (value >> 8);
+		header[2] = (byte) (value >> 16);
+		header[3] = (byte) (value >> 24);
+		writeBytes(header, 0, 4);
+	}
+
+	private void writeLong(long value) throws IOException {
+		writeInt(value & MAX_INT);
+		writeInt(value >>> 32);
+	}
+
+	private void writeBytes(byte[] data, int offset, int length) throws IOException {
+		out.write(data, offset, length);
+		written += length;
+	}
+
+	/**
+	 * Converts a java time to the MS-DOS date and time format used in zip files.
+	 */
+	private static long javaToDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((long) (year - 1980) << 25
+				| (calendar.get(Calendar.MONTH) + 1) << 21
+				| calendar.get(Calendar.DAY_OF_MONTH) << 16
+				| calendar.get(Calendar.HOUR_OF_DAY) << 11
+				| calendar.get(Calendar.MINUTE) << 5
+				| calendar.get(Calendar.SECOND) >> 1) & MAX_INT;
+	}
+}
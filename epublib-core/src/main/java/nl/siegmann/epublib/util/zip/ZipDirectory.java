@@ -0,0 +1,321 @@
+package nl.siegmann.epublib.util.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The central directory of a zip file.
+ *
+ * Reads only the central directory at the end of the zip file, the entries' data is not touched.
+ * In contrast to java.util.zip.ZipFile it gives access to where each entry's data is stored,
+ * so that it can be read directly from the file.
+ *
+ * Supports the ZIP64 extensions, for zip files larger than 4GB or with more than 65535 entries.
+ *
+ * @author paul
+ *
+ */
+public class ZipDirectory {
+
+	static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+	static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+	static final int LOCAL_HEADER_SIZE = 30;
+	static final int CENTRAL_HEADER_SIZE = 46;
+	static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+	static final int ZIP64_LOCATOR_SIZE = 20;
+	static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+	static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	private File file;
+	private long centralDirectoryOffset;
+	private Map<String, ZipDirectoryEntry> entries;
+
+	private ZipDirectory(File file, long centralDirectoryOffset, Map<String, ZipDirectoryEntry> entries) {
+		this.file = file;
+		this.centralDirectoryOffset = centralDirectoryOffset;
+		this.entries = entries;
+	}
+
+	/**
+	 * Reads the central directory of the given zip file.
+	 *
+	 * @param file
+	 * @return the central directory of the given zip file.
+	 * @throws IOException if the file is not a valid zip file.
+	 */
+	public static ZipDirectory read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return read(file, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ZipDirectory read(File file, RandomAccessFile in) throws IOException {
+		long endRecordOffset = findEndOfCentralDirectory(file, in);
+		byte[] endRecord = new byte[END_OF_CENTRAL_DIRECTORY_SIZE];
+		in.seek(endRecordOffset);
+		in.readFully(endRecord);
+		long entryCount = getShort(endRecord, 10);
+		long centralDirectorySize = getInt(endRecord, 12);
+		long centralDirectoryOffset = getInt(endRecord, 16);
+		if (entryCount == ZIP64_MAGIC_COUNT || centralDirectorySize == ZIP64_MAGIC || centralDirectoryOffset == ZIP64_MAGIC) {
+			byte[] zip64EndRecord = findZip64EndOfCentralDirectory(file, in, endRecordOffset);
+			if (zip64EndRecord != null) {
+				entryCount = getLong(zip64EndRecord, 32);
+				centralDirectorySize = getLong(zip64EndRecord, 40);
+				centralDirectoryOffset = getLong(zip64EndRecord, 48);
+			}
+		}
+		if (centralDirectorySize > Integer.MAX_VALUE) {
+			throw new IOException("Central directory of " + file + " is too large");
+		}
+		byte[] centralDirectory = new byte[(int) centralDirectorySize];
+		in.seek(centralDirectoryOffset);
+		in.readFully(centralDirectory);
+
+		Map<String, ZipDirectoryEntry> entries = new LinkedHashMap<String, ZipDirectoryEntry>((int) Math.min(entryCount * 2, centralDirectorySize / CENTRAL_HEADER_SIZE * 2));
+		int pos = 0;
+		for (long i = 0; i < entryCount; i++) {
+			if (pos + CENTRAL_HEADER_SIZE > centralDirectory.length
+					|| getInt(centralDirectory, pos) != CENTRAL_HEADER_SIGNATURE) {
+				throw new IOException("Invalid central directory header in " + file);
+			}
+			int flags = getShort(centralDirectory, pos + 8);
+			int nameLength = getShort(centralDirectory, pos + 28);
+			int extraLength = getShort(centralDirectory, pos + 30);
+			int commentLength = getShort(centralDirectory, pos + 32);
+			if (pos + CENTRAL_HEADER_SIZE + nameLength + extraLength > centralDirectory.length) {
+				throw new IOException("Invalid central directory header in " + file);
+			}
+			String name = getName(centralDirectory, pos + CENTRAL_HEADER_SIZE, nameLength);
+			long compressedSize = getInt(centralDirectory, pos + 20);
+			long size = getInt(centralDirectory, pos + 24);
+			long localHeaderOffset = getInt(centralDirectory, pos + 42);
+			if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+				// the actual values are in the zip64 extra field, in this order, but only those that do not fit
+				int zip64Pos = findExtraField(centralDirectory, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength, ZIP64_EXTRA_FIELD_ID);
+				if (zip64Pos < 0) {
+					throw new IOException("Missing ZIP64 extra field for zip entry " + name + " in " + file);
+				}
+				int zip64End = zip64Pos + 4 + getShort(centralDirectory, zip64Pos + 2);
+				zip64Pos += 4;
+				if (size == ZIP64_MAGIC && zip64Pos + 8 <= zip64End) {
+					size = getLong(centralDirectory, zip64Pos);
+					zip64Pos += 8;
+				}
+				if (compressedSize == ZIP64_MAGIC && zip64Pos + 8 <= zip64End) {
+					compressedSize = getLong(centralDirectory, zip64Pos);
+					zip64Pos += 8;
+				}
+				if (localHeaderOffset == ZIP64_MAGIC && zip64Pos + 8 <= zip64End) {
+					localHeaderOffset = getLong(centralDirectory, zip64Pos);
+				}
+			}
+			ZipDirectoryEntry entry = new ZipDirectoryEntry(name,
+					flags,
+					getShort(centralDirectory, pos + 10),
+					getInt(centralDirectory, pos + 12),
+					getInt(centralDirectory, pos + 16),
+					compressedSize,
+					size,
+					localHeaderOffset);
+			entries.put(name, entry);
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return new ZipDirectory(file, centralDirectoryOffset, entries);
+	}
+
+	/**
+	 * Searches the end of the file for the end of central directory record.
+	 * This record is followed by a variable length comment, so we search backwards from the end.
+	 */
+	private static long findEndOfCentralDirectory(File file, RandomAccessFile in) throws IOException {
+		long fileLength = in.length();
+		int searchLength = (int) Math.min(fileLength, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+		byte[] buffer = new byte[searchLength];
+		in.seek(fileLength - searchLength);
+		in.readFully(buffer);
+		for (int pos = searchLength - END_OF_CENTRAL_DIRECTORY_SIZE; pos >= 0; pos--) {
+			if (getInt(buffer, pos) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+				return fileLength - searchLength + pos;
+			}
+		}
+		throw new IOException(file + " is not a zip file: end of central directory not found");
+	}
+
+	/**
+	 * Reads the zip64 end of central directory record, which is found through the locator right before the end of central directory record.
+	 *
+	 * @return the zip64 end of central directory record, null if the zip file does not have one.
+	 */
+	private static byte[] findZip64EndOfCentralDirectory(File file, RandomAccessFile in, long endRecordOffset) throws IOException {
+		if (endRecordOffset < ZIP64_LOCATOR_SIZE) {
+			return null;
+		}
+		byte[] locator = new byte[ZIP64_LOCATOR_SIZE];
+		in.seek(endRecordOffset - ZIP64_LOCATOR_SIZE);
+		in.readFully(locator);
+		if (getInt(locator, 0) != ZIP64_LOCATOR_SIGNATURE) {
+			return null;
+		}
+		long zip64EndRecordOffset = getLong(locator, 8);
+		if (zip64EndRecordOffset < 0 || zip64EndRecordOffset + ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE > endRecordOffset) {
+			throw new IOException("Invalid ZIP64 end of central directory locator in " + file);
+		}
+		byte[] result = new byte[ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE];
+		in.seek(zip64EndRecordOffset);
+		in.readFully(result);
+		if (getInt(result, 0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+			throw new IOException("Invalid ZIP64 end of central directory record in " + file);
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the extra field with the given id among the extra fields at the given position.
+	 *
+	 * @return the position of the extra field's header, -1 if not found.
+	 */
+	private static int findExtraField(byte[] data, int offset, int length, int id) {
+		int end = offset + length;
+		for (int pos = offset; pos + 4 <= end; pos += 4 + getShort(data, pos + 2)) {
+			if (getShort(data, pos) == id) {
+				return pos + 4 + getShort(data, pos + 2) <= end ? pos : -1;
+			}
+		}
+		return -1;
+	}
+
+	private static String getName(byte[] data, int offset, int length) throws UnsupportedEncodingException {
+		// names without the utf-8 flag are officially cp437, in practice they are usually ascii or utf-8
+		return new String(data, offset, length, "UTF-8");
+	}
+
+	/**
+	 * Finds the position of the entry's data by reading the entry's local file header.
+	 *
+	 * @param entry
+	 * @return the position within the zip file of the first byte of the entry's (compressed) data.
+	 * @throws IOException
+	 */
+	public long getDataOffset(ZipDirectoryEntry entry) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return getDataOffset(entry, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds the position of the entry's data by reading the entry's local file header from the given file.
+	 *
+	 * @param entry
+	 * @param in the opened zip file
+	 * @return the position within the zip file of the first byte of the entry's (compressed) data.
+	 * @throws IOException
+	 */
+	public static long getDataOffset(ZipDirectoryEntry entry, RandomAccessFile in) throws IOException {
+		byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+		in.seek(entry.getLocalHeaderOffset());
+		in.readFully(localHeader);
+		return getDataOffset(entry, localHeader);
+	}
+
+	/**
+	 * Finds the position of the entry's data by reading the entry's local file header from the given zip file data,
+	 * such as a memory-mapped zip file.
+	 *
+	 * @param entry
+	 * @param zipData the data of the whole zip file, its position is not changed
+	 * @return the position within the zip file of the first byte of the entry's (compressed) data.
+	 * @throws IOException
+	 */
+	public static long getDataOffset(ZipDirectoryEntry entry, ByteBuffer zipData) throws IOException {
+		if (entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE > zipData.limit()) {
+			throw new IOException("Invalid local file header for zip entry " + entry.getName());
+		}
+		byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+		ByteBuffer header = zipData.duplicate();
+		header.position((int) entry.getLocalHeaderOffset());
+		header.get(localHeader);
+		return getDataOffset(entry, localHeader);
+	}
+
+	private static long getDataOffset(ZipDirectoryEntry entry, byte[] localHeader) throws IOException {
+		if (getInt(localHeader, 0) != LOCAL_HEADER_SIGNATURE) {
+			throw new IOException("Invalid local file header for zip entry " + entry.getName());
+		}
+		return entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + getShort(localHeader, 26) + getShort(localHeader, 28);
+	}
+
+	/**
+	 * The zip file this is the central directory of.
+	 *
+	 * @return the zip file this is the central directory of.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The position of the central directory within the zip file.
+	 * All entries' data is stored before this position.
+	 *
+	 * @return the position of the central directory within the zip file.
+	 */
+	public long getCentralDirectoryOffset() {
+		return centralDirectoryOffset;
+	}
+
+	/**
+	 * All entries, in the order they appear in the central directory.
+	 *
+	 * @return all entries, in the order they appear in the central directory.
+	 */
+	public List<ZipDirectoryEntry> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<ZipDirectoryEntry>(entries.values()));
+	}
+
+	/**
+	 * Gets the entry with the given name.
+	 *
+	 * @param name
+	 * @return null if not found.
+	 */
+	public ZipDirectoryEntry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	static int getShort(byte[] data, int offset) {
+		return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+	}
+
+	static long getInt(byte[] data, int offset) {
+		return (getShort(data, offset) | ((long) getShort(data, offset + 2) << 16)) & 0xffffffffL;
+	}
+
+	static long getLong(byte[] data, int offset) {
+		return getInt(data, offset) | (getInt(data, offset + 4) << 32);
+	}
+}
@@ -0,0 +1,123 @@
+package nl.siegmann.epublib.util.zip;
+
+import java.io.Serializable;
+import java.util.zip.ZipEntry;
+
+import nl.siegmann.epublib.util.StringUtil;
+
+/**
+ * An entry of a zip file's central directory.
+ *
+ * Unlike java.util.zip.ZipEntry this also knows where the entry is stored within the zip file.
+ *
+ * @author paul
+ *
+ */
+public class ZipDirectoryEntry implements Serializable {
+
+	private static final long serialVersionUID = -3306418133802232717L;
+
+	private String name;
+	private int flags;
+	private int method;
+	private long dosTime;
+	private long crc;
+	private long compressedSize;
+	private long size;
+	private long localHeaderOffset;
+
+	public ZipDirectoryEntry(String name, int flags, int method, long dosTime, long crc,
+			long compressedSize, long size, long localHeaderOffset) {
+		this.name = name;
+		this.flags = flags;
+		this.method = method;
+		this.dosTime = dosTime;
+		this.crc = crc;
+		this.compressedSize = compressedSize;
+		this.size = size;
+		this.localHeaderOffset = localHeaderOffset;
+	}
+
+	/**
+	 * The entry's full path within the zip file.
+	 *
+	 * @return the entry's full path within the zip file.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public boolean isDirectory() {
+		return name.endsWith("/");
+	}
+
+	/**
+	 * The general purpose bit flags of the entry.
+	 *
+	 * @return the general purpose bit flags of the entry.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * The compression method, either ZipEntry.STORED or ZipEntry.DEFLATED
+	 *
+	 * @return the compression method.
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	public boolean isStored() {
+		return method == ZipEntry.STORED;
+	}
+
+	/**
+	 * The last modification time in MS-DOS format, as it is stored in the zip file.
+	 *
+	 * @return the last modification time in MS-DOS format.
+	 */
+	public long getDosTime() {
+		return dosTime;
+	}
+
+	public long getCrc() {
+		return crc;
+	}
+
+	/**
+	 * The number of bytes the entry's data takes up in the zip file.
+	 *
+	 * @return the number of bytes the entry's data takes up in the zip file.
+	 */
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * The uncompressed size of the entry.
+	 *
+	 * @return the uncompressed size of the entry.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * The position of the entry's local file header within the zip file.
+	 *
+	 * @return the position of the entry's local file header within the zip file.
+	 */
+	public long getLocalHeaderOffset() {
+		return localHeaderOffset;
+	}
+
+	public String toString() {
+		return StringUtil.toString("name", name,
+				"method", method,
+				"compressedSize", compressedSize,
+				"size", size,
+				"localHeaderOffset", localHeaderOffset);
+	}
+}
@@ -0,0 +1,169 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.util.IOUtil;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+public class ResourceCacheTest extends TestCase {
+
+	public void testEviction() {
+		ResourceCache cache = new ResourceCache(100, 50);
+		Object a = new Object();
+		Object b = new Object();
+		Object c = new Object();
+		cache.put(a, new byte[40]);
+		cache.put(b, new byte[40]);
+		assertNotNull(cache.get(a));
+		// evicts b, the least recently used
+		cache.put(c, new byte[40]);
+		assertEquals(80, cache.getSize());
+		assertNotNull(cache.get(a));
+		assertNull(cache.get(b));
+		assertNotNull(cache.get(c));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// too large to cache
+		Object large = new Object();
+		cache.put(large, new byte[51]);
+		assertFalse(cache.contains(large));
+		assertEquals(2, cache.getEntryCount());
+
+		cache.put(a, new byte[10]);
+		assertEquals(50, cache.getSize());
+		cache.setMaxSize(20);
+		assertFalse(cache.contains(c));
+		assertTrue(cache.contains(a));
+		cache.remove(a);
+		assertEquals(0, cache.getSize());
+	}
+
+	public void testLazyResource() throws Exception {
+		File zipFile = File.createTempFile("epublib-cache", ".zip");
+		ResourceCache cache = ResourceCache.getInstance();
+		long maxSize = cache.getMaxSize();
+		try {
+			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+			out.putNextEntry(new ZipEntry("chapter1.html"));
+			out.write("chapter 1".getBytes("UTF-8"));
+			out.putNextEntry(new ZipEntry("chapter2.html"));
+			out.write("chapter 2".getBytes("UTF-8"));
+			out.close();
+			LazyResource chapter1 = new LazyResource(zipFile.getPath(), 9, "chapter1.html");
+			LazyResource chapter2 = new LazyResource(zipFile.getPath(), 9, "chapter2.html");
+
+			long hitCount = cache.getHitCount();
+			assertFalse(chapter1.isInitialized());
+			assertTrue(Arrays.equals("chapter 1".getBytes("UTF-8"), chapter1.getData()));
+			assertTrue(chapter1.isInitialized());
+			// changing the returned array does not change the cached data
+			byte[] data = chapter1.getData();
+			data[0] = 'C';
+			assertTrue(Arrays.equals("chapter 1".getBytes("UTF-8"), chapter1.getData()));
+			assertFalse(chapter1.isModified());
+			assertEquals(hitCount + 2, cache.getHitCount());
+
+			// no room for both chapters
+			cache.setMaxSize(cache.getSize() + 8);
+			chapter2.getData();
+			assertTrue(chapter2.isInitialized());
+			assertFalse(chapter1.isInitialized());
+			assertTrue(Arrays.equals("chapter 1".getBytes("UTF-8"), chapter1.getData()));
+
+			chapter1.setData("changed".getBytes("UTF-8"));
+			assertEquals("changed", new String(chapter1.getData(), "UTF-8"));
+			chapter2.close();
+			assertFalse(chapter2.isInitialized());
+		} finally {
+			cache.setMaxSize(maxSize);
+			zipFile.delete();
+		}
+	}
+
+	public void testSharedZipFile() throws Exception {
+		File zipFile = File.createTempFile("epublib-shared", ".zip");
+		try {
+			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+			out.putNextEntry(new ZipEntry("chapter1.html"));
+			out.write("chapter 1".getBytes("UTF-8"));
+			out.putNextEntry(new ZipEntry("chapter2.html"));
+			out.write("chapter 2".getBytes("UTF-8"));
+			out.close();
+			SharedZipFile sharedZipFile = new SharedZipFile(zipFile.getPath());
+			LazyResource chapter1 = new LazyResource(sharedZipFile, 9, "chapter1.html");
+			LazyResource chapter2 = new LazyResource(sharedZipFile, 9, "chapter2.html");
+			assertFalse(sharedZipFile.isOpen());
+			assertEquals("chapter 1", new String(chapter1.getData(), "UTF-8"));
+			assertTrue(sharedZipFile.isOpen());
+			assertSame(sharedZipFile, chapter2.getSharedZipFile());
+
+			// kept open until the stream is closed
+			InputStream in = chapter2.getInputStream();
+			sharedZipFile.close();
+			assertTrue(sharedZipFile.isOpen());
+			assertEquals("chapter 2", new String(IOUtil.toByteArray(in), "UTF-8"));
+			in.close();
+			in.close();
+			assertFalse(sharedZipFile.isOpen());
+
+			// opened again when needed
+			chapter1.close();
+			assertEquals("chapter 1", new String(chapter1.getData(), "UTF-8"));
+			assertTrue(sharedZipFile.isOpen());
+			sharedZipFile.close();
+			assertFalse(sharedZipFile.isOpen());
+			chapter1.close();
+		} finally {
+			zipFile.delete();
+		}
+	}
+
+	public void testGetInputStream() throws Exception {
+		File zipFile = File.createTempFile("epublib-stream", ".zip");
+		try {
+			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+			out.putNextEntry(new ZipEntry("chapter1.html"));
+			out.write("chapter 1".getBytes("UTF-8"));
+			out.close();
+
+			// streamed straight from the zip file, without caching the data
+			LazyResource chapter1 = new LazyResource(zipFile.getPath(), 9, "chapter1.html");
+			InputStream in = chapter1.getInputStream();
+			assertEquals("chapter 1", new String(IOUtil.toByteArray(in), "UTF-8"));
+			in.close();
+			assertFalse(chapter1.isInitialized());
+			assertEquals("chapter 1", IOUtils.toString(chapter1.getReader()));
+			assertFalse(chapter1.isInitialized());
+
+			ZipFile zip = new ZipFile(zipFile);
+			try {
+				chapter1 = new LazyResource(zip, zip.getEntry("chapter1.html"));
+				in = chapter1.getInputStream();
+				assertEquals("chapter 1", new String(IOUtil.toByteArray(in), "UTF-8"));
+				in.close();
+				assertFalse(chapter1.isInitialized());
+			} finally {
+				zip.close();
+			}
+
+			Resource file = new Resource(zipFile.getPath(), zipFile.length(), "chapters.zip");
+			in = file.getInputStream();
+			assertTrue(Arrays.equals(FileUtils.readFileToByteArray(zipFile), IOUtil.toByteArray(in)));
+			in.close();
+			assertFalse(file.isInitialized());
+		} finally {
+			zipFile.delete();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package nl.siegmann.epublib.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.util.IOUtil;
+
+import org.apache.commons.io.FileUtils;
+
+public class ResourceStorageTest extends TestCase {
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("epublib-storage", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	public void testStore() throws Exception {
+		ResourceStorage storage = new ResourceStorage(100, 150, directory);
+		ResourceContent small = storage.store(new ByteArrayInputStream(createData(80)));
+		assertTrue(small.isInMemory());
+		assertEquals(80, storage.getHeapSize());
+
+		// larger than the maximum resource size
+		ResourceContent large = storage.store(new ByteArrayInputStream(createData(101)));
+		assertFalse(large.isInMemory());
+		assertEquals(101, large.getSize());
+		assertTrue(Arrays.equals(createData(101), large.getData()));
+		assertTrue(Arrays.equals(createData(101), IOUtil.toByteArray(large.getInputStream())));
+		assertEquals(1, storage.getFileCount());
+		assertEquals(1, directory.list().length);
+
+		// does not fit in what is left of the budget
+		ResourceContent overBudget = storage.store(new ByteArrayInputStream(createData(80)), 80);
+		assertFalse(overBudget.isInMemory());
+		assertEquals(80, storage.getHeapSize());
+
+		small.release();
+		assertEquals(0, storage.getHeapSize());
+		assertTrue(storage.store(new ByteArrayInputStream(createData(80))).isInMemory());
+
+		large.release();
+		overBudget.release();
+		assertEquals(0, storage.getFileCount());
+		assertEquals(0, directory.list().length);
+	}
+
+	public void testResource() throws Exception {
+		ResourceStorage storage = new ResourceStorage(10, 100, directory);
+		byte[] data = "<html><body>stored in a file</body></html>".getBytes("UTF-8");
+		Resource resource = new Resource(new ByteArrayInputStream(data), "chapter1.html", storage, -1);
+		assertTrue(resource.isStoredInFile());
+		assertTrue(resource.isInitialized());
+		assertEquals(data.length, resource.getSize());
+		assertTrue(Arrays.equals(data, resource.getData()));
+		assertTrue(Arrays.equals(data, IOUtil.toByteArray(resource.getInputStream())));
+		assertEquals(new String(data, "UTF-8"), new String(IOUtil.toByteArray(resource.getReader(), "UTF-8"), "UTF-8"));
+
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(serialized);
+		out.writeObject(resource);
+		out.close();
+		Resource deserialized = (Resource) new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray())).readObject();
+		assertFalse(deserialized.isStoredInFile());
+		assertTrue(Arrays.equals(data, deserialized.getData()));
+
+		resource.setData("changed".getBytes("UTF-8"));
+		assertFalse(resource.isStoredInFile());
+		assertEquals(0, storage.getFileCount());
+		assertEquals(0, directory.list().length);
+	}
+
+	public void testClose() throws Exception {
+		ResourceStorage storage = new ResourceStorage(10, 100, directory);
+		byte[] data = "<html><body>stored in a file</body></html>".getBytes("UTF-8");
+		Resource chapter1 = new Resource(new ByteArrayInputStream(data), "chapter1.html", storage, -1);
+		assertTrue(chapter1.isStoredInFile());
+		chapter1.close();
+		assertEquals(0, storage.getFileCount());
+		assertEquals(0, directory.list().length);
+		try {
+			chapter1.getData();
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+
+		Resource chapter2 = new Resource(new ByteArrayInputStream(data), "chapter2.html", storage, -1);
+		ResourceContent small = storage.store(new ByteArrayInputStream(createData(10)));
+		assertEquals(1, storage.getFileCount());
+		assertEquals(10, storage.getHeapSize());
+		storage.close();
+		assertEquals(0, storage.getFileCount());
+		assertEquals(0, storage.getHeapSize());
+		assertEquals(0, directory.list().length);
+		try {
+			chapter2.getData();
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			small.getData();
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(storage.store(new ByteArrayInputStream(createData(10))).isInMemory());
+
+		try {
+			ResourceStorage.getDefaultStorage().close();
+			fail("expected UnsupportedOperationException");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	public void testDefaultStorage() throws Exception {
+		ResourceStorage storage = ResourceStorage.getDefaultStorage();
+		long heapSize = storage.getHeapSize();
+		byte[] data = "<html><body>chapter</body></html>".getBytes("UTF-8");
+		Resource chapter1 = new Resource(new ByteArrayInputStream(data), "chapter1.html", data.length, "chapter1.html");
+		Resource chapter2 = new Resource(new ByteArrayInputStream(data), "chapter2.html", data.length, "chapter2.html");
+		assertTrue(Arrays.equals(data, chapter2.getData()));
+		assertEquals(heapSize + 2 * data.length, storage.getHeapSize());
+		chapter1.close();
+		chapter2.close();
+		assertEquals(heapSize, storage.getHeapSize());
+	}
+
+	public void testOffHeap() throws Exception {
+		int pageSize = ResourceStorage.PAGE_SIZE;
+		ResourceStorage storage = new ResourceStorage(3 * pageSize, 4 * pageSize, directory, true);
+		byte[] data = createData(2 * pageSize + 10);
+		ResourceContent content = storage.store(new ByteArrayInputStream(data));
+		assertTrue(content.isInMemory());
+		assertTrue(content.isOffHeap());
+		assertEquals(data.length, content.getSize());
+		// the last 10 bytes take the smallest buffer
+		assertEquals(2 * pageSize + ResourceStorage.MIN_BUFFER_SIZE, storage.getHeapSize());
+		assertTrue(Arrays.equals(data, content.getData()));
+		assertTrue(Arrays.equals(data, IOUtil.toByteArray(content.getInputStream())));
+
+		// does not fit in what is left of the budget
+		byte[] largeData = createData(2 * pageSize);
+		ResourceContent large = storage.store(new ByteArrayInputStream(largeData));
+		assertFalse(large.isInMemory());
+		assertTrue(Arrays.equals(largeData, large.getData()));
+		assertEquals(2 * pageSize + ResourceStorage.MIN_BUFFER_SIZE, storage.getHeapSize());
+
+		content.release();
+		large.release();
+		assertEquals(0, storage.getHeapSize());
+		assertEquals(0, storage.getFileCount());
+
+		// closing the resource gives the memory back
+		byte[] chapter = "<html><body>stored off the heap</body></html>".getBytes("UTF-8");
+		Resource resource = new Resource(new ByteArrayInputStream(chapter), "chapter1.html", storage, -1);
+		assertFalse(resource.isStoredInFile());
+		assertEquals(ResourceStorage.MIN_BUFFER_SIZE, storage.getHeapSize());
+		assertTrue(Arrays.equals(chapter, IOUtil.toByteArray(resource.getInputStream())));
+		assertEquals(new String(chapter, "UTF-8"), new String(IOUtil.toByteArray(resource.getReader(), "UTF-8"), "UTF-8"));
+		resource.close();
+		assertEquals(0, storage.getHeapSize());
+		try {
+			resource.getData();
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void testOffHeap_smallResources() throws Exception {
+		int pageSize = ResourceStorage.PAGE_SIZE;
+		ResourceStorage storage = new ResourceStorage(pageSize, 8 * pageSize, directory, true);
+		byte[] data = createData(100);
+		for (int i = 0; i < 100; i++) {
+			ResourceContent content = storage.store(new ByteArrayInputStream(data));
+			assertTrue(content.isInMemory());
+			assertTrue(Arrays.equals(data, content.getData()));
+		}
+		assertEquals(100 * ResourceStorage.MIN_BUFFER_SIZE, storage.getHeapSize());
+		assertEquals(0, storage.getFileCount());
+
+		byte[] mediumData = createData(pageSize / 2 + 1);
+		ResourceContent medium = storage.store(new ByteArrayInputStream(mediumData));
+		assertEquals(100 * ResourceStorage.MIN_BUFFER_SIZE + pageSize, storage.getHeapSize());
+		assertTrue(Arrays.equals(mediumData, medium.getData()));
+		medium.release();
+		assertEquals(100 * ResourceStorage.MIN_BUFFER_SIZE, storage.getHeapSize());
+	}
+
+	public void testOffHeap_releasedWhileReading() throws Exception {
+		int pageSize = ResourceStorage.PAGE_SIZE;
+		ResourceStorage storage = new ResourceStorage(4 * pageSize, 4 * pageSize, directory, true);
+		byte[] data = createData(2 * pageSize + 10);
+		ResourceContent content = storage.store(new ByteArrayInputStream(data));
+		java.io.InputStream in = content.getInputStream();
+		byte[] head = new byte[10];
+		assertEquals(head.length, in.read(head));
+		content.release();
+		assertEquals(0, storage.getHeapSize());
+
+		// the pages of the released content must not be handed out while the stream still reads them
+		byte[] otherData = new byte[4 * pageSize];
+		Arrays.fill(otherData, (byte) 7);
+		ResourceContent other = storage.store(new ByteArrayInputStream(otherData));
+		assertTrue(other.isInMemory());
+
+		ByteArrayOutputStream rest = new ByteArrayOutputStream();
+		rest.write(head);
+		IOUtil.copy(in, rest);
+		in.close();
+		assertTrue(Arrays.equals(data, rest.toByteArray()));
+		assertTrue(Arrays.equals(otherData, other.getData()));
+		other.release();
+	}
+
+	private static byte[] createData(int size) {
+		byte[] result = new byte[size];
+		for (int i = 0; i < size; i++) {
+			result[i] = (byte) i;
+		}
+		return result;
+	}
+}
@@ -25,4 +25,113 @@ public class ResourcesTest extends TestCase {
 		assertEquals(3, resources.getResourcesByMediaTypes(new MediaTypeProperty[] {MediatypeService.XHTML, MediatypeService.PNG}).size());
 		assertEquals(3, resources.getResourcesByMediaTypes(new MediaTypeProperty[] {MediatypeService.CSS, MediatypeService.XHTML, MediatypeService.PNG}).size());
 	}
+
+	public void testGetResourcesByMediaType_updates() {
+		Resources resources = new Resources();
+		Resource foo = resources.add(new Resource("foo".getBytes(), MediatypeService.XHTML));
+		Resource bar = resources.add(new Resource("bar".getBytes(), MediatypeService.PNG));
+		java.util.List<Resource> xhtmlResources = resources.getResourcesByMediaType(MediatypeService.XHTML);
+		assertEquals(1, xhtmlResources.size());
+		assertSame(xhtmlResources, resources.getResourcesByMediaType(MediatypeService.XHTML));
+		try {
+			xhtmlResources.add(bar);
+			fail("expected the list to be read-only");
+		} catch (UnsupportedOperationException e) {
+		}
+		assertSame(bar, resources.findFirstResourceByMediaType(MediatypeService.PNG));
+		assertNull(resources.findFirstResourceByMediaType(MediatypeService.CSS));
+
+		bar.setMediaTypeProperty(MediatypeService.XHTML);
+		assertEquals(2, resources.getResourcesByMediaType(MediatypeService.XHTML).size());
+		assertEquals(0, resources.getResourcesByMediaType(MediatypeService.PNG).size());
+		assertNull(resources.findFirstResourceByMediaType(MediatypeService.PNG));
+
+		resources.remove(foo.getHref());
+		assertEquals(1, resources.getResourcesByMediaType(MediatypeService.XHTML).size());
+		foo.setMediaTypeProperty(MediatypeService.CSS);
+		assertNull(resources.findFirstResourceByMediaType(MediatypeService.CSS));
+
+		resources.set(java.util.Arrays.asList(foo));
+		assertSame(foo, resources.findFirstResourceByMediaType(MediatypeService.CSS));
+		assertEquals(0, resources.getResourcesByMediaType(MediatypeService.XHTML).size());
+		assertEquals(1, resources.getResourcesByMediaTypes(new MediaTypeProperty[] {MediatypeService.CSS, MediatypeService.CSS}).size());
+	}
+
+	public void testGetById() {
+		Resources resources = new Resources();
+		Resource chapter1 = resources.add(new Resource("chapter1".getBytes(), "text/chapter1.html"));
+		Resource chapter2 = resources.add(new Resource("ch2", "chapter2".getBytes(), "chapter2.html", MediatypeService.XHTML));
+		assertEquals("chapter1", chapter1.getId());
+		assertSame(chapter1, resources.getById("chapter1"));
+		assertSame(chapter2, resources.getById("ch2"));
+		assertSame(chapter2, resources.getByIdOrHref("chapter2.html"));
+		assertNull(resources.getById("chapter2"));
+		assertNull(resources.getById(""));
+
+		chapter1.setId("intro");
+		assertNull(resources.getById("chapter1"));
+		assertFalse(resources.containsId("chapter1"));
+		assertSame(chapter1, resources.getById("intro"));
+
+		assertSame(chapter2, resources.remove("chapter2.html"));
+		assertFalse(resources.containsId("ch2"));
+		chapter2.setId("other");
+		assertFalse(resources.containsId("other"));
+
+		resources.addAll(java.util.Arrays.asList(chapter2));
+		assertSame(chapter2, resources.getById("other"));
+
+		Resource replacement = resources.add(new Resource("replacement", "intro".getBytes(), "text/chapter1.html", MediatypeService.XHTML));
+		assertSame(replacement, resources.getByHref("text/chapter1.html"));
+		assertSame(replacement, resources.getById("replacement"));
+		assertNull(resources.getById("intro"));
+	}
+
+	public void testGetById_duplicateIds() {
+		Resources resources = new Resources();
+		Resource a = new Resource("x", "a".getBytes(), "a.html", MediatypeService.XHTML);
+		Resource b = new Resource("x", "b".getBytes(), "b.html", MediatypeService.XHTML);
+		resources.addAll(java.util.Arrays.asList(a, b));
+		assertSame(a, resources.getById("x"));
+
+		assertSame(b, resources.remove("b.html"));
+		assertTrue(resources.containsId("x"));
+		assertSame(a, resources.getById("x"));
+
+		resources.add(b);
+		b.setId("x");
+		a.setId("y");
+		assertSame(b, resources.getById("x"));
+		assertSame(a, resources.getById("y"));
+		b.setId("z");
+		assertFalse(resources.containsId("x"));
+	}
+
+	public void testFixResourceId_unique() {
+		Resources resources = new Resources();
+		resources.add(new Resource("item_2", "taken".getBytes(), "taken.html", MediatypeService.XHTML));
+		for (int i = 0; i < 5; i++) {
+			resources.add(new Resource(("" + i).getBytes(), MediatypeService.XHTML));
+		}
+		assertEquals(6, resources.size());
+		java.util.Set<String> ids = new java.util.HashSet<String>();
+		for (Resource resource: resources.getAll()) {
+			assertTrue(ids.add(resource.getId()));
+			assertSame(resource, resources.getById(resource.getId()));
+		}
+	}
+
+	public void testSerialization() throws Exception {
+		Resources resources = new Resources();
+		resources.add(new Resource("ch1", "chapter1".getBytes(), "chapter1.html", MediatypeService.XHTML));
+		java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+		java.io.ObjectOutputStream objectOut = new java.io.ObjectOutputStream(out);
+		objectOut.writeObject(resources);
+		objectOut.close();
+		Resources copy = (Resources) new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(out.toByteArray())).readObject();
+		Resource chapter1 = copy.getById("ch1");
+		assertNotNull(chapter1);
+		chapter1.setId("chapter1");
+		assertSame(chapter1, copy.getById("chapter1"));
+	}
 }
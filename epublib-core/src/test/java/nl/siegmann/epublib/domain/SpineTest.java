@@ -0,0 +1,87 @@
+package nl.siegmann.epublib.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.service.MediatypeService;
+
+public class SpineTest extends TestCase {
+
+	public void testGetResourceIndex() {
+		Spine spine = new Spine();
+		Resource chapter1 = new Resource("id1", "chapter 1".getBytes(), "chapter1.html", MediatypeService.XHTML);
+		Resource chapter2 = new Resource("id2", "chapter 2".getBytes(), "chapter2.html", MediatypeService.XHTML);
+		assertEquals(-1, spine.getResourceIndex("chapter1.html"));
+		spine.addResource(chapter1);
+		spine.addResource(chapter2);
+		spine.addResource(chapter1);
+		assertEquals(0, spine.getResourceIndex("chapter1.html"));
+		assertEquals(1, spine.getResourceIndex(chapter2));
+		assertEquals(1, spine.findFirstResourceById("id2"));
+		assertEquals(-1, spine.findFirstResourceById("id3"));
+		assertEquals(-1, spine.getResourceIndex(""));
+		assertEquals(-1, spine.getResourceIndex((Resource) null));
+
+		Resource chapter3 = new Resource("id3", "chapter 3".getBytes(), "chapter3.html", MediatypeService.XHTML);
+		spine.addResource(chapter3);
+		assertEquals(3, spine.findFirstResourceById("id3"));
+		assertEquals(3, spine.getResourceIndex("chapter3.html"));
+	}
+
+	public void testGetResourceIndex_changes() {
+		Resource chapter1 = new Resource("id1", "chapter 1".getBytes(), "chapter1.html", MediatypeService.XHTML);
+		Resource chapter2 = new Resource("id2", "chapter 2".getBytes(), "chapter2.html", MediatypeService.XHTML);
+		List<SpineReference> spineReferences = new ArrayList<SpineReference>();
+		spineReferences.add(new SpineReference(chapter1));
+		Spine spine = new Spine(spineReferences);
+		assertEquals(0, spine.findFirstResourceById("id1"));
+
+		// changes made directly to the list
+		spine.getSpineReferences().add(0, new SpineReference(chapter2));
+		assertEquals(0, spine.findFirstResourceById("id2"));
+		assertEquals(1, spine.getResourceIndex("chapter1.html"));
+
+		// changes made to the resources
+		chapter1.setId("intro");
+		assertEquals(1, spine.findFirstResourceById("intro"));
+		chapter2.setHref("preface.html");
+		assertEquals(0, spine.getResourceIndex("preface.html"));
+		assertEquals(-1, spine.getResourceIndex("chapter2.html"));
+
+		List<SpineReference> otherReferences = new ArrayList<SpineReference>();
+		otherReferences.add(new SpineReference(chapter1));
+		spine.setSpineReferences(otherReferences);
+		assertEquals(-1, spine.getResourceIndex("preface.html"));
+		assertEquals(0, spine.findFirstResourceById("intro"));
+	}
+
+	public void testGetResourceIndex_replacedReferences() {
+		Resource chapter1 = new Resource("id1", "chapter 1".getBytes(), "c1.html", MediatypeService.XHTML);
+		Resource chapter2 = new Resource("id2", "chapter 2".getBytes(), "c2.html", MediatypeService.XHTML);
+		Spine spine = new Spine();
+		spine.addResource(chapter1);
+		spine.addResource(chapter2);
+		assertEquals(1, spine.getResourceIndex("c2.html"));
+
+		spine.getSpineReferences().set(1, new SpineReference(chapter1));
+		assertEquals(-1, spine.getResourceIndex("c2.html"));
+		spine.getSpineReferences().get(0).setResource(chapter2);
+		assertEquals(0, spine.getResourceIndex("c2.html"));
+		assertEquals(1, spine.getResourceIndex("c1.html"));
+
+		java.util.Collections.sort(spine.getSpineReferences(), new java.util.Comparator<SpineReference>() {
+
+			@Override
+			public int compare(SpineReference spineReference1, SpineReference spineReference2) {
+				return spineReference1.getResource().getHref().compareTo(spineReference2.getResource().getHref());
+			}
+		});
+		assertEquals(0, spine.getResourceIndex("c1.html"));
+		assertEquals(1, spine.findFirstResourceById("id2"));
+
+		spine.getSpineReferences().remove(0);
+		assertEquals(-1, spine.getResourceIndex("c1.html"));
+		assertEquals(0, spine.getResourceIndex("c2.html"));
+	}
+}
@@ -0,0 +1,211 @@
+package nl.siegmann.epublib.epub;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.domain.Book;
+import nl.siegmann.epublib.domain.DcmesElement;
+import nl.siegmann.epublib.domain.Resource;
+
+import org.apache.commons.io.FileUtils;
+
+public class EpubBatchProcessorTest extends TestCase {
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("epublib-batch", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	public void testProcess() throws Exception {
+		writeBook(new File(directory, "a.epub"), "Book a");
+		writeBook(new File(directory, "sub/b.epub"), "Book b");
+		writeBook(new File(directory, "sub/deeper/c.epub"), "Book c");
+		FileUtils.writeStringToFile(new File(directory, "sub/broken.epub"), "this is not a zip file");
+		FileUtils.writeStringToFile(new File(directory, "notes.txt"), "not an epub");
+
+		EpubBatchProcessor batchProcessor = new EpubBatchProcessor(2, 2);
+		final AtomicInteger processedCount = new AtomicInteger();
+		batchProcessor.setBookProcessor(new BookProcessor() {
+
+			@Override
+			public Book processBook(Book book) {
+				processedCount.incrementAndGet();
+				return book;
+			}
+		});
+		CollectingSink sink = new CollectingSink();
+		EpubBatchProcessor.Report report = batchProcessor.process(EpubBatchProcessor.findEpubFiles(directory), sink);
+
+		assertEquals(4, report.getBookCount());
+		assertEquals(3, report.getSucceededCount());
+		assertEquals(1, report.getFailedCount());
+		assertTrue(report.getByteCount() > 0);
+		assertEquals(3, processedCount.get());
+		Collections.sort(sink.titles);
+		assertEquals("[Book a, Book b, Book c]", sink.titles.toString());
+		assertEquals("[broken.epub]", sink.failedFiles.toString());
+	}
+
+	public void testProcess_failing_sink() throws Exception {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 4; i++) {
+			File file = new File(directory, "book" + i + ".epub");
+			writeBook(file, "Book " + i);
+			files.add(file);
+		}
+		CollectingSink sink = new CollectingSink() {
+
+			@Override
+			public void bookRead(File file, Book book) throws Exception {
+				if (file.getName().equals("book1.epub")) {
+					throw new IllegalStateException("sink failure");
+				}
+				super.bookRead(file, book);
+			}
+		};
+		EpubBatchProcessor.Report report = new EpubBatchProcessor(2).process(files, sink);
+		assertEquals(3, report.getSucceededCount());
+		assertEquals(1, report.getFailedCount());
+		assertEquals("[book1.epub]", sink.failedFiles.toString());
+	}
+
+	public void testProcess_failing_processor() throws Exception {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 4; i++) {
+			File file = new File(directory, "book" + i + ".epub");
+			writeBook(file, "Book " + i);
+			files.add(file);
+		}
+		EpubBatchProcessor batchProcessor = new EpubBatchProcessor(2);
+		batchProcessor.setBookProcessor(new BookProcessor() {
+
+			@Override
+			public Book processBook(Book book) {
+				String title = book.getMetadata().getFirstTitle().getValue();
+				if (title.equals("Book 1")) {
+					throw new AssertionError("processor failure");
+				} else if (title.equals("Book 2")) {
+					throw new StackOverflowError();
+				} else if (title.equals("Book 3")) {
+					throw new InternalError("fatal processor failure");
+				}
+				return book;
+			}
+		});
+		CollectingSink sink = new CollectingSink();
+		EpubBatchProcessor.Report report = batchProcessor.process(files, sink);
+		assertEquals(4, report.getBookCount());
+		assertEquals(1, report.getSucceededCount());
+		assertEquals(3, report.getFailedCount());
+		Collections.sort(sink.failedFiles);
+		assertEquals("[book1.epub, book2.epub, book3.epub]", sink.failedFiles.toString());
+	}
+
+	public void testProcess_bounded_in_flight() throws Exception {
+		File file = new File(directory, "book.epub");
+		writeBook(file, "Book");
+		final int bookCount = 50;
+		final int maxBooksInFlight = 3;
+		final AtomicInteger takenCount = new AtomicInteger();
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final File bookFile = file;
+		// hands out the same file over and over, counting how far ahead of the sink it is taken
+		Iterator<File> files = new Iterator<File>() {
+
+			@Override
+			public boolean hasNext() {
+				return takenCount.get() < bookCount;
+			}
+
+			@Override
+			public File next() {
+				takenCount.incrementAndGet();
+				int current = inFlight.incrementAndGet();
+				synchronized (maxInFlight) {
+					maxInFlight.set(Math.max(maxInFlight.get(), current));
+				}
+				return bookFile;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		BookSink sink = new CollectingSink() {
+
+			@Override
+			public void bookRead(File file, Book book) throws Exception {
+				Thread.sleep(2);
+				inFlight.decrementAndGet();
+			}
+		};
+		EpubBatchProcessor.Report report = new EpubBatchProcessor(2, maxBooksInFlight).process(files, sink);
+		assertEquals(bookCount, report.getSucceededCount());
+		assertTrue("max in flight: " + maxInFlight.get(), maxInFlight.get() <= maxBooksInFlight);
+	}
+
+	public void testInvalidParallelism() {
+		try {
+			new EpubBatchProcessor(0);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new EpubBatchProcessor(4, 2);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private void writeBook(File file, String title) throws IOException {
+		Book book = new Book();
+		DcmesElement titleElement = new DcmesElement();
+		titleElement.setValue(title);
+		book.getMetadata().addTitle(titleElement);
+		book.addSection("Chapter 1", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			new EpubWriter().write(book, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static class CollectingSink implements BookSink {
+
+		final List<String> titles = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> failedFiles = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void bookRead(File file, Book book) throws Exception {
+			// touch a lazily loaded resource while the epub file is still open
+			assertTrue(book.getSpine().getResource(0).getData().length > 0);
+			titles.add(book.getMetadata().getFirstTitle().getValue());
+		}
+
+		@Override
+		public void bookFailed(File file, Throwable error) {
+			failedFiles.add(file.getName());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package nl.siegmann.epublib.epub;
+
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.domain.Resource;
+import nl.siegmann.epublib.util.ResourceUtil;
+
+import org.w3c.dom.Document;
+import org.xmlpull.v1.XmlSerializer;
+
+public class EpubProcessorSupportTest extends TestCase {
+
+	private static final String XHTML_11 = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1//EN\" \"http://www.w3.org/TR/xhtml11/DTD/xhtml11.dtd\">\n"
+			+ "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><title>Chapter&nbsp;1</title></head>"
+			+ "<body><p>caf&eacute;</p></body></html>";
+
+	public void testGetDocumentBuilder() throws Exception {
+		DocumentBuilder documentBuilder = EpubProcessorSupport.getDocumentBuilder();
+		assertNotNull(documentBuilder);
+		assertSame(documentBuilder, EpubProcessorSupport.getDocumentBuilder());
+
+		final DocumentBuilder[] otherThreadDocumentBuilder = new DocumentBuilder[1];
+		Thread thread = new Thread() {
+			public void run() {
+				otherThreadDocumentBuilder[0] = EpubProcessorSupport.getDocumentBuilder();
+			}
+		};
+		thread.start();
+		thread.join();
+		assertNotNull(otherThreadDocumentBuilder[0]);
+		assertNotSame(documentBuilder, otherThreadDocumentBuilder[0]);
+	}
+
+	public void testGetEntityData() throws Exception {
+		byte[] dtd = EpubProcessorSupport.getEntityData("dtd/www.w3.org/TR/xhtml11/DTD/xhtml11.dtd");
+		assertNotNull(dtd);
+		assertTrue(dtd.length > 0);
+		assertSame(dtd, EpubProcessorSupport.getEntityData("dtd/www.w3.org/TR/xhtml11/DTD/xhtml11.dtd"));
+		int cacheSize = EpubProcessorSupport.entityCache.size();
+		for (int i = 0; i < 10; i++) {
+			assertNull(EpubProcessorSupport.getEntityData("dtd/www.example.com/missing" + i + ".dtd"));
+		}
+		assertEquals(cacheSize, EpubProcessorSupport.entityCache.size());
+
+		// found, but not a dtd, entity or module file
+		assertNotNull(EpubProcessorSupport.getEntityData("dtd/www.w3.org/TR/xhtml-modularization/DTD/xhtml-symbol.ent.1"));
+		assertEquals(cacheSize, EpubProcessorSupport.entityCache.size());
+	}
+
+	public void testParseXhtml11() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			Document document = ResourceUtil.getAsDocument(new Resource(XHTML_11.getBytes("UTF-8"), "chapter" + i + ".html"));
+			assertEquals("Chapter 1", document.getElementsByTagName("title").item(0).getTextContent());
+			assertEquals("café", document.getElementsByTagName("p").item(0).getTextContent());
+		}
+	}
+
+	public void testGetXmlPullParserFactory() throws Exception {
+		assertSame(EpubProcessorSupport.getXmlPullParserFactory(), EpubProcessorSupport.getXmlPullParserFactory());
+		assertTrue(EpubProcessorSupport.getXmlPullParserFactory().isNamespaceAware());
+	}
+
+	public void testCreateXmlSerializer_compact() throws Exception {
+		StringWriter indented = new StringWriter();
+		writeDocument(EpubProcessorSupport.createXmlSerializer(indented, true));
+		StringWriter compact = new StringWriter();
+		XmlSerializer serializer = EpubProcessorSupport.createXmlSerializer(compact, false);
+		writeDocument(serializer);
+		assertTrue(indented.toString(), indented.toString().contains("\n  <item"));
+		assertTrue(compact.toString(), compact.toString().endsWith("<package><item /><item /></package>"));
+
+		// a serializer can be reused for the next document
+		StringWriter next = new StringWriter();
+		EpubProcessorSupport.resetXmlSerializer(serializer, next, false);
+		writeDocument(serializer);
+		assertEquals(compact.toString(), next.toString());
+	}
+
+	private static void writeDocument(XmlSerializer serializer) throws Exception {
+		serializer.startDocument("UTF-8", false);
+		serializer.startTag("", "package");
+		serializer.startTag("", "item");
+		serializer.endTag("", "item");
+		serializer.startTag("", "item");
+		serializer.endTag("", "item");
+		serializer.endTag("", "package");
+		serializer.endDocument();
+	}
+}
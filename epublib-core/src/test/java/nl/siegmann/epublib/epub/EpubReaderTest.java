@@ -1,11 +1,30 @@
 package nl.siegmann.epublib.epub;
 
 import junit.framework.TestCase;
+import nl.siegmann.epublib.domain.Author;
 import nl.siegmann.epublib.domain.Book;
+import nl.siegmann.epublib.domain.DcmesElement;
+import nl.siegmann.epublib.domain.LazyResource;
+import nl.siegmann.epublib.domain.MappedResource;
+import nl.siegmann.epublib.domain.PackageMetadata;
 import nl.siegmann.epublib.domain.Resource;
+import nl.siegmann.epublib.domain.SharedZipFile;
 import nl.siegmann.epublib.service.MediatypeService;
+import nl.siegmann.epublib.util.IOUtil;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class EpubReaderTest extends TestCase {
 	
@@ -75,6 +94,301 @@ public class EpubReaderTest extends TestCase {
 		}
 	}
 
+	public void testReadEpubLazy() throws IOException {
+		Book book = new Book();
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.generateSpineFromTableOfContents();
+		File epubFile = writeToTempFile(book);
+		ZipFile zipFile = new ZipFile(epubFile);
+		try {
+			Book readBook = new EpubReader().readEpubLazy(zipFile, "UTF-8");
+			assertEquals(1, readBook.getSpine().size());
+			assertEquals(1, readBook.getTableOfContents().size());
+			Resource chapter = readBook.getSpine().getResource(0);
+			assertTrue(chapter instanceof LazyResource);
+			assertFalse(chapter.isInitialized());
+			byte[] expected = book.getSpine().getResource(0).getData();
+			assertTrue(Arrays.equals(expected, chapter.getData()));
+			assertTrue(chapter.isInitialized());
+			chapter.close();
+			assertFalse(chapter.isInitialized());
+		} finally {
+			zipFile.close();
+			epubFile.delete();
+		}
+	}
+
+	public void testReadEpub_lazy_above_threshold() throws IOException {
+		Book book = new Book();
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.generateSpineFromTableOfContents();
+		File epubFile = writeToTempFile(book);
+		try {
+			EpubReader epubReader = new EpubReader();
+			epubReader.setLazyLoadThreshold(epubFile.length());
+			Book readBook = epubReader.readEpub(epubFile.getPath(), "UTF-8");
+			assertNull(readBook.getZipPath());
+			Resource chapter = readBook.getSpine().getResource(0);
+			assertTrue(chapter instanceof LazyResource);
+			assertFalse(chapter.isInitialized());
+			assertTrue(Arrays.equals(book.getSpine().getResource(0).getData(), chapter.getData()));
+			SharedZipFile sharedZipFile = ((LazyResource) chapter).getSharedZipFile();
+			assertTrue(sharedZipFile.isOpen());
+			readBook.close();
+			assertFalse(sharedZipFile.isOpen());
+			assertFalse(chapter.isInitialized());
+			assertTrue(Arrays.equals(book.getSpine().getResource(0).getData(), chapter.getData()));
+			readBook.close();
+
+			epubReader.setLazyLoadThreshold(epubFile.length() + 1);
+			readBook = epubReader.readEpub(epubFile.getPath(), "UTF-8");
+			assertFalse(readBook.getSpine().getResource(0) instanceof LazyResource);
+		} finally {
+			epubFile.delete();
+		}
+	}
+
+	public void testReadEpub_parallel() throws IOException {
+		Book book = new Book();
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.addSection("Second chapter", new Resource(this.getClass().getResourceAsStream("/book1/chapter2.html"), "chapter2.html"));
+		book.generateSpineFromTableOfContents();
+		File epubFile = writeToTempFile(book);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Book readBook = new EpubReader().readEpub(epubFile.getPath(), "UTF-8", executor);
+			assertEquals(2, readBook.getSpine().size());
+			assertEquals(2, readBook.getTableOfContents().size());
+			assertNotNull(readBook.getCoverImage());
+			for (int i = 0; i < 2; i++) {
+				Resource chapter = readBook.getSpine().getResource(i);
+				assertFalse(chapter instanceof LazyResource);
+				assertTrue(Arrays.equals(book.getSpine().getResource(i).getData(), chapter.getData()));
+			}
+		} finally {
+			executor.shutdown();
+			epubFile.delete();
+		}
+	}
+
+	public void testReadEpub_parallel_failure() throws Exception {
+		Book book = new Book();
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.addSection("Second chapter", new Resource(this.getClass().getResourceAsStream("/book1/chapter2.html"), "chapter2.html"));
+		book.generateSpineFromTableOfContents();
+		File epubFile = writeToTempFile(book);
+		File tempDirectory = File.createTempFile("epublib-reader", "");
+		tempDirectory.delete();
+		tempDirectory.mkdirs();
+		final java.util.List<Thread> threads = new java.util.ArrayList<Thread>();
+		try {
+			EpubReader epubReader = new EpubReader();
+			epubReader.setMaxBookHeapSize(0);
+			epubReader.setTempDirectory(tempDirectory);
+			try {
+				// runs two tasks, which store their resource in a temporary file, and then fails
+				epubReader.readEpub(epubFile.getPath(), "UTF-8", new java.util.concurrent.Executor() {
+
+					@Override
+					public void execute(Runnable task) {
+						if (threads.size() == 2) {
+							throw new java.util.concurrent.RejectedExecutionException("test");
+						}
+						Thread thread = new Thread(task);
+						threads.add(thread);
+						thread.start();
+						try {
+							thread.join();
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				});
+				fail("expected RejectedExecutionException");
+			} catch (java.util.concurrent.RejectedExecutionException e) {
+			}
+			assertEquals(2, threads.size());
+			assertEquals(0, tempDirectory.list().length);
+		} finally {
+			epubFile.delete();
+			tempDirectory.delete();
+		}
+	}
+
+	public void testReadEpub_heap_budget() throws IOException {
+		Book book = new Book();
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.generateSpineFromTableOfContents();
+		File epubFile = writeToTempFile(book);
+		try {
+			EpubReader epubReader = new EpubReader();
+			epubReader.setMaxBookHeapSize(0);
+			Book readBook = epubReader.readEpub(new FileInputStream(epubFile));
+			Resource chapter = readBook.getSpine().getResource(0);
+			assertTrue(chapter.isStoredInFile());
+			assertTrue(Arrays.equals(book.getSpine().getResource(0).getData(), chapter.getData()));
+			assertTrue(readBook.getCoverImage().isStoredInFile());
+			assertTrue(Arrays.equals(book.getCoverImage().getData(), readBook.getCoverImage().getData()));
+
+			readBook = new EpubReader().readEpub(new FileInputStream(epubFile));
+			assertFalse(readBook.getSpine().getResource(0).isStoredInFile());
+		} finally {
+			epubFile.delete();
+		}
+	}
+
+	public void testReadEpubAsync() throws Exception {
+		Book book = new Book();
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.addSection("Second chapter", new Resource(this.getClass().getResourceAsStream("/book1/chapter2.html"), "chapter2.html"));
+		book.generateSpineFromTableOfContents();
+		File epubFile = writeToTempFile(book);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			EpubReader epubReader = new EpubReader();
+			Future<Book> futureBook = epubReader.readEpubAsync(epubFile.getPath(), executor);
+			Book readBook = futureBook.get();
+			assertEquals(2, readBook.getSpine().size());
+			assertEquals(2, readBook.getTableOfContents().size());
+
+			Resource coverImage = readBook.getCoverImage();
+			assertTrue(coverImage instanceof LazyResource);
+			assertFalse(coverImage.isInitialized());
+			byte[] coverData = epubReader.readResourceAsync(coverImage, executor).get();
+			assertTrue(Arrays.equals(book.getCoverImage().getData(), coverData));
+
+			// wait for the prefetching of the chapters to finish
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 2; i++) {
+				Resource chapter = readBook.getSpine().getResource(i);
+				assertTrue(chapter instanceof LazyResource);
+				assertTrue(chapter.isInitialized());
+				assertTrue(Arrays.equals(book.getSpine().getResource(i).getData(), chapter.getData()));
+			}
+		} finally {
+			executor.shutdownNow();
+			epubFile.delete();
+		}
+	}
+
+	public void testReadEpubAsync_missing_file() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			new EpubReader().readEpubAsync("no-such-file.epub", executor).get();
+			fail("Expected an ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testReadEpubMapped() throws IOException {
+		Book book = new Book();
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.generateSpineFromTableOfContents();
+		File epubFile = writeToTempFile(book);
+		File storedEpubFile = storeUncompressed(epubFile, ".png");
+		try {
+			Book readBook = new EpubReader().readEpubMapped(storedEpubFile.getPath(), "UTF-8");
+			assertEquals(1, readBook.getSpine().size());
+			assertEquals(1, readBook.getTableOfContents().size());
+
+			Resource coverImage = readBook.getCoverImage();
+			assertTrue(coverImage instanceof MappedResource);
+			byte[] expected = book.getCoverImage().getData();
+			ByteBuffer byteBuffer = coverImage.getByteBuffer();
+			assertTrue(byteBuffer.isReadOnly());
+			byte[] actual = new byte[byteBuffer.remaining()];
+			byteBuffer.get(actual);
+			assertTrue(Arrays.equals(expected, actual));
+			assertTrue(Arrays.equals(expected, coverImage.getData()));
+			assertFalse(coverImage.isInitialized());
+
+			Resource chapter = readBook.getSpine().getResource(0);
+			assertTrue(Arrays.equals(book.getSpine().getResource(0).getData(), chapter.getData()));
+			// the resources share the mapping of the epub file
+			assertSame(((MappedResource) coverImage).getMappedZipFile(), ((MappedResource) chapter).getMappedZipFile());
+
+			// the data can be read again after the resource is closed
+			coverImage.close();
+			assertTrue(Arrays.equals(expected, coverImage.getData()));
+		} finally {
+			epubFile.delete();
+			storedEpubFile.delete();
+		}
+	}
+
+	public void testReadMetadata() throws IOException {
+		Book book = new Book();
+		DcmesElement title = new DcmesElement();
+		title.setValue("Metadata test");
+		book.getMetadata().addTitle(title);
+		book.getMetadata().addAuthor(new Author("Joe", "Tester"));
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		File epubFile = writeToTempFile(book);
+		try {
+			PackageMetadata packageMetadata = new EpubReader().readMetadata(epubFile.getPath());
+			assertEquals("OEBPS/content.opf", packageMetadata.getPackageHref());
+			assertEquals("Metadata test", packageMetadata.getMetadata().getFirstTitle().getValue());
+			assertEquals("Joe Tester", packageMetadata.getMetadata().getAuthors().get(0).getValue());
+			assertEquals(book.getMetadata().getIdentifiers().get(0).getValue(), packageMetadata.getMetadata().getIdentifiers().get(0).getValue());
+			assertEquals("cover.png", packageMetadata.getCoverImageHref());
+
+			assertNull(new EpubReader().readMetadata(epubFile.getPath(), false).getCoverImageHref());
+		} finally {
+			epubFile.delete();
+		}
+	}
+
+	/**
+	 * Copies the given zip file, storing the entries with the given extension uncompressed.
+	 */
+	private File storeUncompressed(File zipFile, String extension) throws IOException {
+		File result = File.createTempFile("epublib-test", ".epub");
+		ZipInputStream in = new ZipInputStream(new FileInputStream(zipFile));
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(result));
+		try {
+			for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+				ZipEntry resultEntry = new ZipEntry(entry.getName());
+				ByteArrayOutputStream data = new ByteArrayOutputStream();
+				IOUtil.copy(in, data);
+				if (entry.getMethod() == ZipEntry.STORED || entry.getName().endsWith(extension)) {
+					CRC32 crc = new CRC32();
+					crc.update(data.toByteArray());
+					resultEntry.setMethod(ZipEntry.STORED);
+					resultEntry.setSize(data.size());
+					resultEntry.setCrc(crc.getValue());
+				}
+				out.putNextEntry(resultEntry);
+				data.writeTo(out);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return result;
+	}
+
+	private File writeToTempFile(Book book) throws IOException {
+		File result = File.createTempFile("epublib-test", ".epub");
+		OutputStream out = new FileOutputStream(result);
+		try {
+			new EpubWriter().write(book, out);
+		} finally {
+			out.close();
+		}
+		return result;
+	}
+
     public static void main(String[] args) throws IOException {
 //        Book book = new EpubReader().readEpub(new FileInputStream("F:\\TDDOWNLOAD\\epub3\\cc-shared-culture-20120130.epub"));
         Book book = new EpubReader().readEpub(new FileInputStream("F:\\TDDOWNLOAD\\epub2.epub"));
@@ -2,9 +2,24 @@ package nl.siegmann.epublib.epub;
 
 import junit.framework.TestCase;
 import nl.siegmann.epublib.domain.*;
+import nl.siegmann.epublib.service.MediatypeService;
 import nl.siegmann.epublib.util.CollectionUtil;
+import nl.siegmann.epublib.util.IOUtil;
+import nl.siegmann.epublib.util.zip.ZipDirectory;
+import nl.siegmann.epublib.util.zip.ZipDirectoryEntry;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
 
 public class EpubWriterTest extends TestCase {
 
@@ -64,6 +79,408 @@ public class EpubWriterTest extends TestCase {
 		}
 	}
 	
+	public void testRewriteCopiesUnchangedResources() throws Exception {
+		File original = File.createTempFile("epublib-original", ".epub");
+		File rewritten = File.createTempFile("epublib-rewritten", ".epub");
+		try {
+			FileOutputStream out = new FileOutputStream(original);
+			new EpubWriter().write(createTestBook(), out);
+			out.close();
+
+			ZipFile zipFile = new ZipFile(original);
+			Book book = new EpubReader().readEpubLazy(zipFile, "UTF-8");
+			DcmesElement title = new DcmesElement();
+			title.setValue("Rewritten");
+			book.getMetadata().addTitle(title);
+			book.getResources().getByHref("chapter1.html").setData("<html><body>changed</body></html>".getBytes("UTF-8"));
+			// loaded but not changed
+			book.getResources().getByHref("chapter2.html").getData();
+			out = new FileOutputStream(rewritten);
+			new EpubWriter().write(book, out);
+			out.close();
+			zipFile.close();
+
+			ZipDirectory originalDirectory = ZipDirectory.read(original);
+			ZipDirectory rewrittenDirectory = ZipDirectory.read(rewritten);
+			for (String name: new String[] {"OEBPS/chapter2.html", "OEBPS/flowers.jpg", "OEBPS/book1.css"}) {
+				ZipDirectoryEntry originalEntry = originalDirectory.getEntry(name);
+				ZipDirectoryEntry rewrittenEntry = rewrittenDirectory.getEntry(name);
+				assertEquals(originalEntry.getCrc(), rewrittenEntry.getCrc());
+				assertEquals(originalEntry.getCompressedSize(), rewrittenEntry.getCompressedSize());
+				assertEquals(originalEntry.getDosTime(), rewrittenEntry.getDosTime());
+				assertTrue(Arrays.equals(readRawData(originalDirectory, originalEntry), readRawData(rewrittenDirectory, rewrittenEntry)));
+			}
+
+			Book readBook = new EpubReader().readEpub(new FileInputStream(rewritten));
+			assertEquals("<html><body>changed</body></html>", new String(readBook.getResources().getByHref("chapter1.html").getData(), "UTF-8"));
+			assertTrue(Arrays.equals(IOUtil.toByteArray(getClass().getResourceAsStream("/book1/flowers_320x240.jpg")),
+					readBook.getResources().getByHref("flowers.jpg").getData()));
+			assertEquals("Rewritten", readBook.getMetadata().getTitles().get(readBook.getMetadata().getTitles().size() - 1).getValue());
+			assertEquals(5, readBook.getSpine().size());
+		} finally {
+			original.delete();
+			rewritten.delete();
+		}
+	}
+
+	public void testRewriteWithUncopyableEntry() throws Exception {
+		File original = File.createTempFile("epublib-original", ".epub");
+		File rewritten = File.createTempFile("epublib-rewritten", ".epub");
+		try {
+			FileOutputStream out = new FileOutputStream(original);
+			new EpubWriter().write(createTestBook(), out);
+			out.close();
+
+			ZipFile zipFile = new ZipFile(original);
+			Book book = new EpubReader().readEpubLazy(zipFile, "UTF-8");
+			byte[] chapter2 = book.getResources().getByHref("chapter2.html").getData();
+			// breaks the local header, so the entry cannot be copied as is anymore
+			RandomAccessFile file = new RandomAccessFile(original, "rw");
+			try {
+				file.seek(ZipDirectory.read(original).getEntry("OEBPS/chapter2.html").getLocalHeaderOffset());
+				file.writeInt(0);
+			} finally {
+				file.close();
+			}
+			out = new FileOutputStream(rewritten);
+			new EpubWriter().write(book, out);
+			out.close();
+			zipFile.close();
+
+			Book readBook = new EpubReader().readEpub(new FileInputStream(rewritten));
+			assertTrue(Arrays.equals(chapter2, readBook.getResources().getByHref("chapter2.html").getData()));
+			assertEquals(5, readBook.getSpine().size());
+		} finally {
+			original.delete();
+			rewritten.delete();
+		}
+	}
+
+	public void testUpdate() throws Exception {
+		File epubFile = File.createTempFile("epublib-update", ".epub");
+		try {
+			FileOutputStream out = new FileOutputStream(epubFile);
+			new EpubWriter().write(createTestBook(), out);
+			out.close();
+			ZipDirectory originalDirectory = ZipDirectory.read(epubFile);
+
+			ZipFile zipFile = new ZipFile(epubFile);
+			Book book = new EpubReader().readEpubLazy(zipFile, "UTF-8");
+			book.getResources().getByHref("chapter1.html").setData("<html><body>changed</body></html>".getBytes("UTF-8"));
+			book.getResources().getByHref("chapter2.html").getData();
+			zipFile.close();
+			new EpubWriter().update(book, epubFile);
+
+			ZipDirectory updatedDirectory = ZipDirectory.read(epubFile);
+			for (String name: new String[] {"mimetype", "OEBPS/chapter2.html", "OEBPS/flowers.jpg", "OEBPS/book1.css"}) {
+				assertEquals(name, originalDirectory.getEntry(name).getLocalHeaderOffset(), updatedDirectory.getEntry(name).getLocalHeaderOffset());
+			}
+			assertTrue(updatedDirectory.getEntry("OEBPS/chapter1.html").getLocalHeaderOffset() >= originalDirectory.getCentralDirectoryOffset());
+			assertEquals(originalDirectory.size(), updatedDirectory.size());
+			assertUpdatedBook(epubFile);
+
+			long updatedLength = epubFile.length();
+			new EpubWriter().compact(epubFile);
+			assertTrue(epubFile.length() < updatedLength);
+			assertEquals(originalDirectory.size(), ZipDirectory.read(epubFile).size());
+			assertUpdatedBook(epubFile);
+		} finally {
+			epubFile.delete();
+		}
+	}
+
+	public void testSaveLazyBookToItsOwnFile() throws Exception {
+		File epubFile = File.createTempFile("epublib-save", ".epub");
+		try {
+			FileOutputStream out = new FileOutputStream(epubFile);
+			new EpubWriter().write(createTestBook(), out);
+			out.close();
+			EpubReader epubReader = new EpubReader();
+			epubReader.setLazyLoadThreshold(0);
+			Book book = epubReader.readEpub(epubFile.getPath(), "UTF-8");
+			book.addSection("Chapter 4", new Resource("<html><body>chapter 4</body></html>".getBytes("UTF-8"), "chapter4.html"));
+			new EpubWriter().update(book, epubFile);
+			book.close();
+
+			book = epubReader.readEpub(epubFile.getPath(), "UTF-8");
+			assertEquals(6, book.getSpine().size());
+			assertEquals("<html><body>chapter 4</body></html>", new String(book.getResources().getByHref("chapter4.html").getData(), "UTF-8"));
+			assertTrue(Arrays.equals(IOUtil.toByteArray(EpubWriterTest.class.getResourceAsStream("/book1/chapter1.html")),
+					book.getResources().getByHref("chapter1.html").getData()));
+
+			// the stream empties the file the lazy resources are read from, which must fail instead of dropping them
+			book.getResources().getByHref("chapter1.html").close();
+			out = new FileOutputStream(epubFile);
+			try {
+				new EpubWriter().write(book, out);
+				fail("expected IOException");
+			} catch (IOException e) {
+			} finally {
+				out.close();
+				book.close();
+			}
+		} finally {
+			epubFile.delete();
+		}
+	}
+
+	public void testUpdate_not_an_epub() throws Exception {
+		File epubFile = File.createTempFile("epublib-update", ".epub");
+		try {
+			FileUtils.writeStringToFile(epubFile, "not a zip file");
+			new EpubWriter().update(createTestBook(), epubFile);
+			Book readBook = new EpubReader().readEpub(new FileInputStream(epubFile));
+			assertEquals(5, readBook.getSpine().size());
+		} finally {
+			epubFile.delete();
+		}
+	}
+
+	private static void assertUpdatedBook(File epubFile) throws IOException {
+		// read both through the central directory and sequentially
+		ZipFile zipFile = new ZipFile(epubFile);
+		Book readBook = new EpubReader().readEpubLazy(zipFile, "UTF-8");
+		assertEquals("<html><body>changed</body></html>", new String(readBook.getResources().getByHref("chapter1.html").getData(), "UTF-8"));
+		assertEquals(5, readBook.getSpine().size());
+		zipFile.close();
+		InputStream in = new FileInputStream(epubFile);
+		readBook = new EpubReader().readEpub(in);
+		in.close();
+		assertEquals("<html><body>changed</body></html>", new String(readBook.getResources().getByHref("chapter1.html").getData(), "UTF-8"));
+		assertTrue(Arrays.equals(IOUtil.toByteArray(EpubWriterTest.class.getResourceAsStream("/book1/flowers_320x240.jpg")),
+				readBook.getResources().getByHref("flowers.jpg").getData()));
+		assertEquals(5, readBook.getSpine().size());
+	}
+
+	public void testWriteGeneratedDocuments() throws Exception {
+		Book book = createTestBook();
+		DcmesElement title = new DcmesElement();
+		title.setValue("Generated documents");
+		book.getMetadata().addTitle(title);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new EpubWriter().writeEpub3(book, out);
+		// the documents were serialized into the zip file without keeping them in memory
+		assertFalse(book.getSpine().getTocResource().isInitialized());
+		Resource navResource = book.getResources().getByHref("nav.xhtml");
+		assertFalse(navResource.isInitialized());
+
+		Book readBook = new EpubReader().readEpub(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(Arrays.equals(book.getSpine().getTocResource().getData(), readBook.getSpine().getTocResource().getData()));
+		assertTrue(Arrays.equals(navResource.getData(), readBook.getNavResource().getData()));
+		assertEquals(book.getTableOfContents().size(), readBook.getTableOfContents().size());
+	}
+
+	public void testWriteCompact() throws Exception {
+		byte[] indentedData = writeBookToByteArray(createTestBook());
+		EpubWriter epubWriter = new EpubWriter();
+		epubWriter.setIndentOutput(false);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		epubWriter.write(createTestBook(), out);
+
+		String indentedPackageDocument = readEntry(indentedData, "OEBPS/content.opf");
+		String compactPackageDocument = readEntry(out.toByteArray(), "OEBPS/content.opf");
+		assertTrue(compactPackageDocument.length() < indentedPackageDocument.length());
+		assertEquals(indentedPackageDocument.replaceAll(">\\s+<", "><"), compactPackageDocument.replaceAll(">\\s+<", "><"));
+		assertTrue(readEntry(out.toByteArray(), "OEBPS/toc.ncx").length() < readEntry(indentedData, "OEBPS/toc.ncx").length());
+		Book readBook = new EpubReader().readEpub(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(5, readBook.getSpine().size());
+		assertEquals(new EpubReader().readEpub(new ByteArrayInputStream(indentedData)).getTableOfContents().size(), readBook.getTableOfContents().size());
+	}
+
+	public void testWriteCompact_generatedDataRead() throws Exception {
+		Book book = createTestBook();
+		DcmesElement title = new DcmesElement();
+		title.setValue("Generated documents");
+		book.getMetadata().addTitle(title);
+		Resource navResource = NavDocument.createGeneratedNavResource(book);
+		book.getResources().add(navResource);
+		book.setNavResource(navResource);
+		// generates the nav document with the default indentation
+		String indentedNavDocument = new String(navResource.getData(), "UTF-8");
+
+		EpubWriter epubWriter = new EpubWriter();
+		epubWriter.setIndentOutput(false);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		epubWriter.writeEpub3(book, out);
+		String compactNavDocument = readEntry(out.toByteArray(), "OEBPS/nav.xhtml");
+		assertTrue(compactNavDocument.length() < indentedNavDocument.length());
+		assertEquals(indentedNavDocument.replaceAll(">\\s+<", "><"), compactNavDocument);
+
+		// data that was set is written as is
+		navResource.setData(indentedNavDocument.getBytes("UTF-8"));
+		out = new ByteArrayOutputStream();
+		epubWriter.writeEpub3(book, out);
+		assertEquals(indentedNavDocument, readEntry(out.toByteArray(), "OEBPS/nav.xhtml"));
+	}
+
+	private static String readEntry(byte[] epubData, String name) throws IOException {
+		ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(epubData));
+		for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+			if (entry.getName().equals(name)) {
+				return new String(IOUtil.toByteArray(in), "UTF-8");
+			}
+		}
+		fail("entry " + name + " not found");
+		return null;
+	}
+
+	public void testWriteParallel() throws Exception {
+		byte[] sequentialData = writeBookToByteArray(createTestBook());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		byte[] parallelData;
+		try {
+			EpubWriter epubWriter = new EpubWriter();
+			epubWriter.setExecutor(executor);
+			epubWriter.setMaxPendingEntries(2);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			epubWriter.write(createTestBook(), out);
+			parallelData = out.toByteArray();
+		} finally {
+			executor.shutdown();
+		}
+
+		// mimetype first and stored, so it can be found at a fixed offset
+		assertEquals("mimetype", new String(parallelData, 30, 8, "US-ASCII"));
+		assertEquals("application/epub+zip", new String(parallelData, 38, 20, "US-ASCII"));
+
+		List<String> sequentialNames = new ArrayList<String>();
+		List<String> parallelNames = new ArrayList<String>();
+		ZipInputStream sequentialIn = new ZipInputStream(new ByteArrayInputStream(sequentialData));
+		ZipInputStream parallelIn = new ZipInputStream(new ByteArrayInputStream(parallelData));
+		for (ZipEntry entry = sequentialIn.getNextEntry(); entry != null; entry = sequentialIn.getNextEntry()) {
+			sequentialNames.add(entry.getName());
+			ZipEntry parallelEntry = parallelIn.getNextEntry();
+			parallelNames.add(parallelEntry.getName());
+			if (entry.getName().equals(parallelEntry.getName()) && ! entry.getName().endsWith(".opf") && ! entry.getName().endsWith(".ncx")) {
+				assertTrue(entry.getName(), Arrays.equals(IOUtil.toByteArray(sequentialIn), IOUtil.toByteArray(parallelIn)));
+			}
+		}
+		assertNull(parallelIn.getNextEntry());
+		assertEquals(sequentialNames, parallelNames);
+
+		Book readBook = new EpubReader().readEpub(new ByteArrayInputStream(parallelData));
+		assertEquals(5, readBook.getSpine().size());
+		assertEquals(4, readBook.getTableOfContents().size());
+	}
+
+	public void testWriteParallel_large_resources() throws Exception {
+		File dataFile = File.createTempFile("epublib-data", ".bin");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			byte[] data = new byte[100 * 1024];
+			new java.util.Random(1).nextBytes(data);
+			FileUtils.writeByteArrayToFile(dataFile, data);
+			Book book = createTestBook();
+			// its size is wrong, so deflating it ahead runs out of room
+			book.addResource(new Resource(dataFile.getPath(), 200, "large.css"));
+			EpubWriter epubWriter = new EpubWriter();
+			epubWriter.setExecutor(executor);
+			// the chapters are streamed by the calling thread
+			epubWriter.setMaxParallelDeflateSize(1000);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			epubWriter.write(book, out);
+
+			Book readBook = new EpubReader().readEpub(new ByteArrayInputStream(out.toByteArray()));
+			assertTrue(Arrays.equals(data, readBook.getResources().getByHref("large.css").getData()));
+			assertTrue(Arrays.equals(IOUtil.toByteArray(getClass().getResourceAsStream("/book1/chapter1.html")),
+					readBook.getResources().getByHref("chapter1.html").getData()));
+			assertEquals(5, readBook.getSpine().size());
+		} finally {
+			executor.shutdown();
+			dataFile.delete();
+		}
+	}
+
+	public void testCompressionPolicy() throws Exception {
+		Book book = createTestBook();
+		book.addResource(new Resource("p { }".getBytes("UTF-8"), "tiny.css"));
+		ZipDirectory zipDirectory = writeBookToZipDirectory(book, new EpubWriter());
+		assertTrue(zipDirectory.getEntry("mimetype").isStored());
+		assertTrue(zipDirectory.getEntry("OEBPS/flowers.jpg").isStored());
+		assertTrue(zipDirectory.getEntry("OEBPS/cover.png").isStored());
+		assertTrue(zipDirectory.getEntry("OEBPS/tiny.css").isStored());
+		assertFalse(zipDirectory.getEntry("OEBPS/chapter1.html").isStored());
+		assertFalse(zipDirectory.getEntry("OEBPS/chapter2_1.html").isStored());
+
+		MediaTypeCompressionPolicy compressionPolicy = new MediaTypeCompressionPolicy();
+		compressionPolicy.setCompressionLevel(MediatypeService.CSS, Deflater.NO_COMPRESSION);
+		compressionPolicy.setStoredSizeThreshold(0);
+		EpubWriter epubWriter = new EpubWriter();
+		epubWriter.setCompressionPolicy(compressionPolicy);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			epubWriter.setExecutor(executor);
+			zipDirectory = writeBookToZipDirectory(createTestBook(), epubWriter);
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(zipDirectory.getEntry("OEBPS/book1.css").isStored());
+		assertTrue(zipDirectory.getEntry("OEBPS/flowers.jpg").isStored());
+		assertFalse(zipDirectory.getEntry("OEBPS/cover.html").isStored());
+
+		epubWriter = new EpubWriter();
+		epubWriter.setCompressionPolicy(CompressionPolicy.DEFLATE_ALL);
+		zipDirectory = writeBookToZipDirectory(createTestBook(), epubWriter);
+		assertFalse(zipDirectory.getEntry("OEBPS/flowers.jpg").isStored());
+		assertTrue(zipDirectory.getEntry("mimetype").isStored());
+	}
+
+	public void testWriteStoredResourceFromFile() throws Exception {
+		File imageFile = File.createTempFile("epublib-image", ".jpg");
+		try {
+			byte[] imageData = IOUtil.toByteArray(this.getClass().getResourceAsStream("/book1/flowers_320x240.jpg"));
+			FileUtils.writeByteArrayToFile(imageFile, imageData);
+			Book book = createTestBook();
+			Resource image = new Resource(imageFile.getPath(), imageFile.length(), "large.jpg");
+			book.addResource(image);
+			byte[] epubData = writeBookToByteArray(book);
+
+			// streamed from the file, without reading it into memory
+			assertFalse(image.isInitialized());
+			ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(epubData));
+			try {
+				for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+					if (entry.getName().equals("OEBPS/large.jpg")) {
+						assertEquals(ZipEntry.STORED, entry.getMethod());
+						assertTrue(Arrays.equals(imageData, IOUtil.toByteArray(in)));
+						return;
+					}
+				}
+			} finally {
+				in.close();
+			}
+			fail("OEBPS/large.jpg not found");
+		} finally {
+			imageFile.delete();
+		}
+	}
+
+	private static ZipDirectory writeBookToZipDirectory(Book book, EpubWriter epubWriter) throws IOException {
+		File file = File.createTempFile("epublib-test", ".epub");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			epubWriter.write(book, out);
+		} finally {
+			out.close();
+		}
+		Book readBook = new EpubReader().readEpub(new FileInputStream(file));
+		assertEquals(5, readBook.getSpine().size());
+		return ZipDirectory.read(file);
+	}
+
+	private static byte[] readRawData(ZipDirectory zipDirectory, ZipDirectoryEntry entry) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(zipDirectory.getFile(), "r");
+		try {
+			byte[] result = new byte[(int) entry.getCompressedSize()];
+			in.seek(zipDirectory.getDataOffset(entry));
+			in.readFully(result);
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
 	private Book createTestBook() throws IOException {
 		Book book = new Book();
 		
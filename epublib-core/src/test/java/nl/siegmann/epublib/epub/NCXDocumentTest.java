@@ -2,6 +2,8 @@ package nl.siegmann.epublib.epub;
 
 import nl.siegmann.epublib.domain.Book;
 import nl.siegmann.epublib.domain.Resource;
+import nl.siegmann.epublib.domain.Resources;
+import nl.siegmann.epublib.domain.TOCReference;
 import nl.siegmann.epublib.service.MediatypeService;
 import org.apache.commons.io.FileUtils;
 import org.junit.*;
@@ -54,4 +56,90 @@ public class NCXDocumentTest {
         NCXDocument.read(book, new EpubReader());
         assertEquals("xhtml/chapter1.html", book.getTableOfContents().getTocReferences().get(0).getCompleteHref());
     }
+
+    @Test
+    public void testReadNestedTOC() {
+        Book book = new Book();
+        Resource ncxResource = new Resource(ncxData, "toc.ncx");
+        book.getSpine().setTocResource(ncxResource);
+        for (String href: new String[] {"chapter1.html", "chapter2.html", "chapter2_1.html", "chapter3.html"}) {
+            book.addResource(new Resource(href.getBytes(), href));
+        }
+
+        NCXDocument.read(book, new EpubReader());
+        assertEquals(3, book.getTableOfContents().getTocReferences().size());
+        assertEquals(4, book.getTableOfContents().size());
+        TOCReference secondChapter = book.getTableOfContents().getTocReferences().get(1);
+        assertEquals("Second Chapter", secondChapter.getTitle());
+        assertEquals("chapter2.html", secondChapter.getCompleteHref());
+        assertEquals(1, secondChapter.getChildren().size());
+        assertEquals("Chapter 2, section 1", secondChapter.getChildren().get(0).getTitle());
+        assertEquals("chapter2_1.html", secondChapter.getChildren().get(0).getResource().getHref());
+        assertEquals(0, secondChapter.getChildren().get(0).getChildren().size());
+    }
+
+    /**
+     * Reads ever deeper nested NCX documents, every navPoint must be resolved exactly once.
+     */
+    @Test(timeout = 10000)
+    public void testReadDeeplyNestedTOC() {
+        for (int depth = 10; depth <= 5000; depth *= 10) {
+            CountingResources resources = new CountingResources();
+            Book book = createBookWithNestedTOC(depth, resources);
+            NCXDocument.read(book, new EpubReader());
+            assertEquals(depth, resources.getByHrefCount);
+            assertEquals(depth, book.getTableOfContents().calculateDepth());
+            assertEquals(depth, book.getTableOfContents().size());
+
+            TOCReference tocReference = book.getTableOfContents().getTocReferences().get(0);
+            for (int i = 1; i < depth; i++) {
+                assertEquals(1, tocReference.getChildren().size());
+                tocReference = tocReference.getChildren().get(0);
+            }
+            assertEquals("Chapter " + depth, tocReference.getTitle());
+            assertEquals("chapter" + depth + ".html", tocReference.getResource().getHref());
+            assertEquals("section", tocReference.getFragmentId());
+        }
+    }
+
+    @Test
+    public void testReadWithoutNavMap() {
+        Book book = new Book();
+        Resource ncxResource = new Resource("<ncx xmlns=\"http://www.daisy.org/z3986/2005/ncx/\"/>".getBytes(), "toc.ncx");
+        book.getSpine().setTocResource(ncxResource);
+        NCXDocument.read(book, new EpubReader());
+        assertEquals(0, book.getTableOfContents().size());
+    }
+
+    private static Book createBookWithNestedTOC(int depth, Resources resources) {
+        StringBuilder ncx = new StringBuilder();
+        ncx.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        ncx.append("<ncx xmlns=\"http://www.daisy.org/z3986/2005/ncx/\" version=\"2005-1\"><navMap>");
+        for (int i = 1; i <= depth; i++) {
+            ncx.append("<navPoint id=\"navPoint-" + i + "\" playOrder=\"" + i + "\">");
+            ncx.append("<navLabel><text>Chapter " + i + "</text></navLabel>");
+            ncx.append("<content src=\"chapter" + i + ".html#section\"/>");
+            resources.add(new Resource(("chapter " + i).getBytes(), "chapter" + i + ".html"));
+        }
+        for (int i = 1; i <= depth; i++) {
+            ncx.append("</navPoint>");
+        }
+        ncx.append("</navMap></ncx>");
+
+        Book book = new Book();
+        book.setResources(resources);
+        book.getSpine().setTocResource(new Resource(ncx.toString().getBytes(), "toc.ncx"));
+        return book;
+    }
+
+    private static class CountingResources extends Resources {
+        private static final long serialVersionUID = 1L;
+        int getByHrefCount = 0;
+
+        @Override
+        public Resource getByHref(String href) {
+            getByHrefCount++;
+            return super.getByHref(href);
+        }
+    }
 }
@@ -0,0 +1,152 @@
+package nl.siegmann.epublib.epub;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.domain.*;
+import nl.siegmann.epublib.util.IOUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URLDecoder;
+
+public class PackageDocumentPullReaderTest extends TestCase {
+
+	public void testSameAsDomReader_epub2() throws Exception {
+		// test1.opf has no identifier, which the package id needs
+		String opf = new String(readOpf("/opf/test1.opf"), "UTF-8");
+		opf = opf.replace("<dc:title>", "<dc:identifier id=\"BookId\">test1</dc:identifier><dc:title>");
+		Book book = assertSameAsDomReader(opf.getBytes("UTF-8"));
+		assertEquals("cover.html", book.getCoverPage().getHref());
+		assertEquals("toc.ncx", book.getSpine().getTocResource().getHref());
+		assertEquals(5, book.getSpine().size());
+
+		assertSameAsDomReader(readOpf("/opf/test2.opf"));
+	}
+
+	public void testSameAsDomReader_epub3() throws Exception {
+		Book book = assertSameAsDomReader(readOpf("/opf/test3.opf"));
+		assertEquals("Creative Commons - A Shared Culture", book.getMetadata().getFirstTitle().getValue());
+		assertEquals("images/326261902_3fa36f548d.jpg", book.getCoverImage().getHref());
+		assertEquals("xhtml/toc.xhtml", book.getNavResource().getHref());
+		assertEquals(8, book.getSpine().size());
+		assertFalse(book.getSpine().getSpineReferences().get(0).isLinear());
+		assertEquals(2, book.getMetadata().getMetas().size());
+		assertEquals(3, book.getMetadata().getLinks().size());
+	}
+
+	public void testSameAsDomReader_written_book() throws Exception {
+		Book book = new Book();
+		DcmesElement title = new DcmesElement();
+		title.setValue("Pull test");
+		book.getMetadata().addTitle(title);
+		book.getMetadata().addAuthor(new Author("Joe", "Tester"));
+		book.setCoverImage(new Resource(this.getClass().getResourceAsStream("/book1/cover.png"), "cover.png"));
+		book.addSection("Introduction", new Resource(this.getClass().getResourceAsStream("/book1/chapter1.html"), "chapter1.html"));
+		book.addSection("Second chapter", new Resource(this.getClass().getResourceAsStream("/book1/chapter2.html"), "chapter2.html"));
+		book.generateSpineFromTableOfContents();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new EpubWriter().write(book, out);
+		byte[] epubData = out.toByteArray();
+
+		Book domBook = new EpubReader().readEpub(new ByteArrayInputStream(epubData));
+		EpubReader epubReader = new EpubReader();
+		epubReader.setStreamingPackageReader(true);
+		Book pullBook = epubReader.readEpub(new ByteArrayInputStream(epubData));
+		assertEquals(describe(domBook), describe(pullBook));
+		assertEquals("Pull test", pullBook.getMetadata().getFirstTitle().getValue());
+		assertEquals(2, pullBook.getSpine().size());
+		assertEquals(2, pullBook.getTableOfContents().size());
+		assertEquals("cover.png", pullBook.getCoverImage().getHref());
+	}
+
+	/**
+	 * Reads the given package document with both readers and checks that the resulting books are the same.
+	 *
+	 * @return the book read by the PackageDocumentPullReader
+	 */
+	private Book assertSameAsDomReader(byte[] opfData) throws Exception {
+		Book domBook = new Book();
+		Resource packageResource = new Resource(opfData, "OEBPS/content.opf");
+		PackageDocumentReader.read(packageResource, new EpubReader(), domBook, createResources(opfData));
+
+		Book pullBook = new Book();
+		packageResource = new Resource(opfData, "OEBPS/content.opf");
+		PackageDocumentPullReader.read(packageResource, new EpubReader(), pullBook, createResources(opfData));
+
+		assertEquals(describe(domBook), describe(pullBook));
+		return pullBook;
+	}
+
+	private byte[] readOpf(String path) throws Exception {
+		return IOUtil.toByteArray(getClass().getResourceAsStream(path));
+	}
+
+	/**
+	 * Creates an empty resource for every item in the manifest of the given package document.
+	 */
+	private static Resources createResources(byte[] opfData) throws Exception {
+		Document document = EpubProcessorSupport.createDocumentBuilder().parse(new ByteArrayInputStream(opfData));
+		NodeList items = document.getElementsByTagNameNS(PackageDocumentBase.NAMESPACE_OPF, "item");
+		Resources result = new Resources();
+		for (int i = 0; i < items.getLength(); i++) {
+			String href = URLDecoder.decode(((Element) items.item(i)).getAttribute("href"), "UTF-8");
+			result.add(new Resource(new byte[0], "OEBPS/" + href));
+		}
+		return result;
+	}
+
+	private static String describe(Book book) {
+		StringBuilder result = new StringBuilder();
+		result.append("version: ").append(book.getVersion()).append('\n');
+		result.append("uniqueId: ").append(book.getUniqueId()).append('\n');
+		result.append("prefix: ").append(book.getPrefix()).append('\n');
+		result.append("packageId: ").append(book.getPackageId()).append('\n');
+		Metadata metadata = book.getMetadata();
+		result.append("identifiers: ");
+		for (Identifier identifier : metadata.getIdentifiers()) {
+			result.append(identifier).append(" id=").append(identifier.getId()).append(" bookId=").append(identifier.isBookId()).append(", ");
+		}
+		result.append('\n');
+		result.append("titles: ").append(metadata.getTitles()).append('\n');
+		result.append("languages: ").append(metadata.getLanguages()).append('\n');
+		result.append("authors: ").append(metadata.getAuthors()).append('\n');
+		for (Author author : metadata.getAuthors()) {
+			result.append("author role: ").append(author.getRelator()).append('\n');
+		}
+		result.append("contributors: ").append(metadata.getContributors()).append('\n');
+		result.append("dates: ").append(metadata.getDates()).append('\n');
+		result.append("source: ").append(metadata.getSource()).append('\n');
+		result.append("types: ").append(metadata.getTypes()).append('\n');
+		result.append("publishers: ").append(metadata.getPublishers()).append('\n');
+		result.append("descriptions: ").append(metadata.getDescriptions()).append('\n');
+		result.append("rights: ").append(metadata.getRights()).append('\n');
+		result.append("subjects: ").append(metadata.getSubjects()).append('\n');
+		for (Meta meta : metadata.getMetas()) {
+			result.append("meta: ").append(meta).append(" lang=").append(meta.getLang()).append(' ').append(meta.getCustomProperties()).append('\n');
+		}
+		result.append("links: ").append(metadata.getLinks()).append('\n');
+		result.append("dcmes ids: ").append(metadata.getDcmesElementMap().keySet()).append('\n');
+		for (ManifestItemReference reference : book.getManifest().getReferences()) {
+			Resource resource = reference.getResource();
+			result.append("item: ").append(resource.getId()).append(' ').append(resource.getHref()).append(' ').append(resource.getMediaTypeProperty())
+				.append(' ').append(reference.getProperties()).append(' ').append(reference.getFallback()).append(' ').append(reference.getMediaOverlay()).append('\n');
+		}
+		result.append("resources: ").append(book.getResources().getAllHrefs()).append('\n');
+		Spine spine = book.getSpine();
+		result.append("spine: ").append(spine.getId()).append(' ').append(spine.getDirection()).append(' ').append(spine.getTocResource() == null ? null : spine.getTocResource().getHref()).append('\n');
+		for (SpineReference spineReference : spine.getSpineReferences()) {
+			result.append("itemref: ").append(spineReference.getIdref()).append(' ').append(spineReference.getResource().getHref())
+				.append(' ').append(spineReference.isLinear()).append(' ').append(spineReference.getProperties()).append('\n');
+		}
+		for (GuideReference guideReference : book.getGuide().getReferences()) {
+			result.append("guide: ").append(guideReference.getType()).append(' ').append(guideReference.getCompleteHref()).append(' ').append(guideReference.getTitle()).append('\n');
+		}
+		result.append("bindings: ").append(book.getBindings().getMediaTypes().size()).append('\n');
+		result.append("cover page: ").append(book.getCoverPage() == null ? null : book.getCoverPage().getHref()).append('\n');
+		result.append("cover image: ").append(book.getCoverImage() == null ? null : book.getCoverImage().getHref()).append('\n');
+		result.append("nav: ").append(book.getNavResource() == null ? null : book.getNavResource().getHref()).append('\n');
+		return result.toString();
+	}
+}
@@ -0,0 +1,61 @@
+package nl.siegmann.epublib.service;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.domain.MediaTypeProperty;
+
+public class MediatypeServiceTest extends TestCase {
+
+	public void testDetermineMediaType() {
+		assertSame(MediatypeService.XHTML, MediatypeService.determineMediaType("chapter1.html"));
+		assertSame(MediatypeService.XHTML, MediatypeService.determineMediaType("OEBPS/Text/Chapter1.XHTML"));
+		assertSame(MediatypeService.XHTML, MediatypeService.determineMediaType("chapter1.htm"));
+		assertSame(MediatypeService.JPG, MediatypeService.determineMediaType("images/cover.JPEG"));
+		assertSame(MediatypeService.CSS, MediatypeService.determineMediaType("archive.tar.css"));
+		assertNull(MediatypeService.determineMediaType("mimetype"));
+		assertNull(MediatypeService.determineMediaType("images.d/cover"));
+		assertNull(MediatypeService.determineMediaType("cover.heic"));
+		assertNull(MediatypeService.determineMediaType(""));
+		assertNull(MediatypeService.determineMediaType(null));
+	}
+
+	public void testGetMediaType_unknown() {
+		MediaTypeProperty avif = MediatypeService.getMediaType("images/cover.avif", "image/avif");
+		assertEquals("image/avif", avif.getName());
+		assertEquals("", avif.getDefaultExtension());
+		assertSame(avif, MediatypeService.getMediaType("images/other.avif", "image/avif"));
+		assertSame(avif, MediatypeService.getMediaType("images/cover", "image/avif"));
+		assertNull(MediatypeService.getMediaTypeByName("image/avif"));
+		assertSame(MediatypeService.PNG, MediatypeService.getMediaType("images/cover.png", "image/png"));
+		assertNull(MediatypeService.getMediaType("images/cover.png", null).getName());
+	}
+
+	public void testGetMediaType_manyUnknown() {
+		MediaTypeProperty first = MediatypeService.getMediaType("item.x", "application/x-epublib-first");
+		for (int i = 0; i < 2000; i++) {
+			MediaTypeProperty mediaTypeProperty = MediatypeService.getMediaType("item.x", "application/x-epublib-" + i);
+			assertSame(mediaTypeProperty, MediatypeService.getMediaType("item.y", "application/x-epublib-" + i));
+			// kept as it is used all the time
+			assertSame(first, MediatypeService.getMediaType("item.x", "application/x-epublib-first"));
+		}
+	}
+
+	public void testRegister() {
+		// registered mediatypes stay registered, so use one no other test uses
+		MediaTypeProperty testType = new MediaTypeProperty("application/x-epublib-test", ".epublibtest");
+		MediaTypeProperty unknown = MediatypeService.getMediaType("item.epublibtest", "application/x-epublib-test");
+		assertNull(MediatypeService.determineMediaType("item.epublibtest"));
+		MediatypeService.register(testType);
+		assertSame(testType, MediatypeService.determineMediaType("item.EpublibTest"));
+		assertSame(testType, MediatypeService.getMediaTypeByName("application/x-epublib-test"));
+		assertSame(testType, MediatypeService.getMediaType("item.epublibtest", "application/x-epublib-test"));
+		assertNotSame(unknown, testType);
+		assertTrue(Arrays.asList(MediatypeService.mediatypes).contains(testType));
+		try {
+			MediatypeService.register(new MediaTypeProperty("application/x-epublib-test", ".epublibtest"));
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -52,6 +52,22 @@ public class IOUtilTest extends TestCase {
 		}
 	}
 	
+	public void testCopyLarge() throws IOException {
+		byte[] testArray = new byte[(IOUtil.IO_COPY_BUFFER_SIZE * 3) + 10];
+		new Random().nextBytes(testArray);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		assertEquals(testArray.length, IOUtil.copyLarge(new ByteArrayInputStream(testArray), result));
+		assertTrue(Arrays.equals(testArray, result.toByteArray()));
+	}
+
+	public void testToByteArrayTooLarge() {
+		try {
+			IOUtil.toByteArray(new ByteArrayInputStream(new byte[0]), Integer.MAX_VALUE + 1L);
+			fail("expected IOException");
+		} catch (IOException e) {
+		}
+	}
+
 	public void testCalcNrRead() {
 		Integer[] testData = new Integer[] {
 			// nrRead, totalNrRead, reault
@@ -0,0 +1,209 @@
+package nl.siegmann.epublib.util.zip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+import nl.siegmann.epublib.util.IOUtil;
+
+public class RawZipOutputStreamTest extends TestCase {
+
+	public void testWrite() throws IOException {
+		byte[] storedData = "stored data".getBytes("UTF-8");
+		byte[] deflatedData = "deflated data deflated data deflated data".getBytes("UTF-8");
+		File source = File.createTempFile("epublib-test", ".zip");
+		File copy = File.createTempFile("epublib-test", ".zip");
+		try {
+			RawZipOutputStream out = new RawZipOutputStream(new FileOutputStream(source));
+			ZipEntry storedEntry = new ZipEntry("stored.txt");
+			storedEntry.setMethod(ZipEntry.STORED);
+			storedEntry.setSize(storedData.length);
+			storedEntry.setCrc(crc(storedData));
+			out.putNextEntry(storedEntry);
+			out.write(storedData);
+			out.putNextEntry(new ZipEntry("dir/déflated.txt"));
+			out.write(deflatedData);
+			out.putNextEntry(new ZipEntry("empty.txt"));
+			try {
+				out.putNextEntry(new ZipEntry("stored.txt"));
+				fail("expected ZipException for duplicate entry");
+			} catch (ZipException e) {
+			}
+			out.close();
+			assertContents(source, "dir/déflated.txt", deflatedData);
+			assertContents(source, "stored.txt", storedData);
+			assertContents(source, "empty.txt", new byte[0]);
+
+			// copy the entries from the first zip without decompressing them
+			ZipDirectory zipDirectory = ZipDirectory.read(source);
+			RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+			out = new RawZipOutputStream(new FileOutputStream(copy));
+			for (ZipDirectoryEntry entry: zipDirectory.getEntries()) {
+				assertTrue(RawZipOutputStream.canCopy(entry));
+				out.writeRawEntry("copy/" + entry.getName(), entry, sourceFile);
+			}
+			out.close();
+			sourceFile.close();
+			assertContents(copy, "copy/dir/déflated.txt", deflatedData);
+			assertContents(copy, "copy/stored.txt", storedData);
+			ZipDirectoryEntry copiedEntry = ZipDirectory.read(copy).getEntry("copy/dir/déflated.txt");
+			ZipDirectoryEntry sourceEntry = zipDirectory.getEntry("dir/déflated.txt");
+			assertEquals(sourceEntry.getCompressedSize(), copiedEntry.getCompressedSize());
+			assertEquals(sourceEntry.getCrc(), copiedEntry.getCrc());
+			assertEquals(sourceEntry.getDosTime(), copiedEntry.getDosTime());
+		} finally {
+			source.delete();
+			copy.delete();
+		}
+	}
+
+	public void testStoredEntryWithWrongSize() throws IOException {
+		RawZipOutputStream out = new RawZipOutputStream(new java.io.ByteArrayOutputStream());
+		ZipEntry storedEntry = new ZipEntry("stored.txt");
+		storedEntry.setMethod(ZipEntry.STORED);
+		storedEntry.setSize(3);
+		storedEntry.setCrc(crc("abc".getBytes("UTF-8")));
+		out.putNextEntry(storedEntry);
+		out.write("abcd".getBytes("UTF-8"));
+		try {
+			out.closeEntry();
+			fail("expected ZipException");
+		} catch (ZipException e) {
+		}
+	}
+
+	public void testZip64ManyEntries() throws IOException {
+		File file = File.createTempFile("epublib-test", ".zip");
+		try {
+			RawZipOutputStream out = new RawZipOutputStream(new FileOutputStream(file));
+			int entryCount = 0xFFFF + 10;
+			for (int i = 0; i < entryCount; i++) {
+				ZipEntry entry = new ZipEntry("entry" + i);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(0);
+				entry.setCrc(0);
+				out.putNextEntry(entry);
+			}
+			out.close();
+			ZipFile zipFile = new ZipFile(file);
+			try {
+				assertEquals(entryCount, zipFile.size());
+			} finally {
+				zipFile.close();
+			}
+			ZipDirectory zipDirectory = ZipDirectory.read(file);
+			assertEquals(entryCount, zipDirectory.size());
+			assertNotNull(zipDirectory.getEntry("entry" + (entryCount - 1)));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testZip64Offsets() throws IOException {
+		byte[] storedData = "stored data".getBytes("UTF-8");
+		byte[] deflatedData = "deflated data deflated data deflated data".getBytes("UTF-8");
+		// a sparse file with the entries beyond 4GB
+		long offset = 0x140000000L;
+		File file = File.createTempFile("epublib-test", ".zip");
+		File copy = File.createTempFile("epublib-test", ".zip");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(offset);
+				RawZipOutputStream out = new RawZipOutputStream(new FileOutputStream(raf.getFD()), offset, new ArrayList<ZipDirectoryEntry>());
+				ZipEntry storedEntry = new ZipEntry("stored.txt");
+				storedEntry.setMethod(ZipEntry.STORED);
+				storedEntry.setSize(storedData.length);
+				storedEntry.setCrc(crc(storedData));
+				out.putNextEntry(storedEntry);
+				out.write(storedData);
+				out.putNextEntry(new ZipEntry("deflated.txt"));
+				out.write(deflatedData);
+				out.finish();
+				raf.setLength(out.getPosition());
+			} finally {
+				raf.close();
+			}
+			ZipFile zipFile = new ZipFile(file);
+			try {
+				assertEquals("stored data", new String(IOUtil.toByteArray(zipFile.getInputStream(zipFile.getEntry("stored.txt"))), "UTF-8"));
+				assertEquals(new String(deflatedData, "UTF-8"), new String(IOUtil.toByteArray(zipFile.getInputStream(zipFile.getEntry("deflated.txt"))), "UTF-8"));
+			} finally {
+				zipFile.close();
+			}
+			ZipDirectory zipDirectory = ZipDirectory.read(file);
+			assertTrue(zipDirectory.getCentralDirectoryOffset() > offset);
+			assertEquals(offset, zipDirectory.getEntry("stored.txt").getLocalHeaderOffset());
+			assertEquals(storedData.length, zipDirectory.getEntry("stored.txt").getSize());
+
+			RandomAccessFile sourceFile = new RandomAccessFile(file, "r");
+			RawZipOutputStream out = new RawZipOutputStream(new FileOutputStream(copy));
+			try {
+				for (ZipDirectoryEntry entry: zipDirectory.getEntries()) {
+					out.writeRawEntry(entry.getName(), entry, sourceFile);
+				}
+			} finally {
+				out.close();
+				sourceFile.close();
+			}
+			assertContents(copy, "stored.txt", storedData);
+			assertContents(copy, "deflated.txt", deflatedData);
+		} finally {
+			file.delete();
+			copy.delete();
+		}
+	}
+
+	public void testDeflatedDataMaxLength() throws IOException {
+		byte[] data = new byte[10000];
+		new java.util.Random(1).nextBytes(data);
+		DeflatedData deflatedData = DeflatedData.deflate(new java.io.ByteArrayInputStream(data), Deflater.DEFAULT_COMPRESSION, 20000);
+		assertEquals(data.length, deflatedData.getSize());
+		assertEquals(crc(data), deflatedData.getCrc());
+		try {
+			DeflatedData.deflate(new java.io.ByteArrayInputStream(data), Deflater.DEFAULT_COMPRESSION, 5000);
+			fail("expected IOException");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Checks the entry's data both through the central directory and through the local headers.
+	 */
+	private static void assertContents(File file, String name, byte[] expected) throws IOException {
+		ZipFile zipFile = new ZipFile(file);
+		try {
+			assertEquals(new String(expected, "UTF-8"), new String(IOUtil.toByteArray(zipFile.getInputStream(zipFile.getEntry(name))), "UTF-8"));
+		} finally {
+			zipFile.close();
+		}
+		ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+		try {
+			for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+				if (entry.getName().equals(name)) {
+					assertEquals(new String(expected, "UTF-8"), new String(IOUtil.toByteArray(in), "UTF-8"));
+					return;
+				}
+			}
+			fail("entry " + name + " not found");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+}
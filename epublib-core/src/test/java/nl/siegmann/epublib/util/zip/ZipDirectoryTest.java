@@ -0,0 +1,78 @@
+package nl.siegmann.epublib.util.zip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+public class ZipDirectoryTest extends TestCase {
+
+	public void testRead() throws IOException {
+		byte[] storedData = "stored data".getBytes("UTF-8");
+		byte[] deflatedData = "deflated data deflated data deflated data".getBytes("UTF-8");
+		File file = File.createTempFile("epublib-test", ".zip");
+		try {
+			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+			ZipEntry storedEntry = new ZipEntry("stored.txt");
+			storedEntry.setMethod(ZipEntry.STORED);
+			storedEntry.setSize(storedData.length);
+			CRC32 crc = new CRC32();
+			crc.update(storedData);
+			storedEntry.setCrc(crc.getValue());
+			out.putNextEntry(storedEntry);
+			out.write(storedData);
+			out.putNextEntry(new ZipEntry("dir/deflated.txt"));
+			out.write(deflatedData);
+			out.setComment("a zip comment");
+			out.close();
+
+			ZipDirectory zipDirectory = ZipDirectory.read(file);
+			assertEquals(2, zipDirectory.size());
+			List<ZipDirectoryEntry> entries = zipDirectory.getEntries();
+			assertEquals("stored.txt", entries.get(0).getName());
+			assertEquals("dir/deflated.txt", entries.get(1).getName());
+
+			ZipDirectoryEntry stored = zipDirectory.getEntry("stored.txt");
+			assertTrue(stored.isStored());
+			assertEquals(crc.getValue(), stored.getCrc());
+			assertEquals(storedData.length, stored.getSize());
+			assertEquals(storedData.length, stored.getCompressedSize());
+			assertEquals(0, stored.getLocalHeaderOffset());
+
+			byte[] actual = new byte[storedData.length];
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			in.seek(zipDirectory.getDataOffset(stored));
+			in.readFully(actual);
+			in.close();
+			assertEquals("stored data", new String(actual, "UTF-8"));
+
+			ZipDirectoryEntry deflated = zipDirectory.getEntry("dir/deflated.txt");
+			assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+			assertEquals(deflatedData.length, deflated.getSize());
+			assertNull(zipDirectory.getEntry("missing.txt"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testReadNoZip() throws IOException {
+		File file = File.createTempFile("epublib-test", ".zip");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write("not a zip file".getBytes("UTF-8"));
+			out.close();
+			ZipDirectory.read(file);
+			fail("expected an IOException");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			file.delete();
+		}
+	}
+}